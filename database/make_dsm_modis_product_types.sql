@@ -89,3 +89,7 @@ INSERT INTO `ProductTypes` VALUES
 ('aqua.modis.landst','AQUA','modis','land surface temperature','2','gsfcdata/aqua/modis/level2/'),
 ('terra.modis.landst','TERRA','modis','land surface temperature','2','gsfcdata/terra/modis/level2/')
 ;
+
+/* Tell running stations that the product types changed */
+INSERT INTO ChangeCounters (name,counter) VALUES ('ProductTypes',1)
+    ON DUPLICATE KEY UPDATE counter=counter+1;
@@ -47,3 +47,7 @@ UNLOCK TABLES;
 /*!40101 SET COLLATION_CONNECTION=@OLD_COLLATION_CONNECTION */;
 /*!40111 SET SQL_NOTES=@OLD_SQL_NOTES */;
 
+
+/* Tell running stations that the product types changed */
+INSERT INTO ChangeCounters (name,counter) VALUES ('ProductTypes',1)
+    ON DUPLICATE KEY UPDATE counter=counter+1;
@@ -57,6 +57,30 @@ CREATE TABLE Mutex(
 ) ENGINE=InnoDB COMMENT="Table used for joins to allow atomic non-duplicate insert into Markers" ;
 INSERT INTO Mutex(i) VALUES (0), (1);
 
+/* Per-gopherColony work queues. A colony subscribes to a product type
+(or a LIKE mask, compareOp='LIKE') when one of its stations first reserves
+it. ProductStore then adds a WorkQueue row for every subscribed colony when
+it stores a product, and Reservation dequeues with FOR UPDATE SKIP LOCKED
+instead of anti-joining Markers against all of Products. Queue rows are
+hints; the Markers grab still decides who owns a product. */
+DROP TABLE IF EXISTS WorkQueueSubscriptions;
+CREATE TABLE WorkQueueSubscriptions (
+    gopherColony VARCHAR(32) NOT NULL,
+    productType VARCHAR(128) NOT NULL,         #a product type or LIKE mask
+    compareOp VARCHAR(4) NOT NULL DEFAULT '=', #'=' or 'LIKE'
+    creation DATETIME NOT NULL,
+    PRIMARY KEY (gopherColony,productType)
+) ENGINE=InnoDB COMMENT="Which product types each gopherColony reserves";
+
+DROP TABLE IF EXISTS WorkQueue;
+CREATE TABLE WorkQueue (
+    gopherColony VARCHAR(32) NOT NULL,
+    product MEDIUMINT UNSIGNED NOT NULL,       #reference to Products(id)
+    productType VARCHAR(128) NOT NULL,         #copied from Products
+    PRIMARY KEY (gopherColony,productType,product),
+    INDEX (product)
+) ENGINE=InnoDB COMMENT="Products each gopherColony has not reserved yet";
+
 DROP TABLE IF EXISTS Passes;
 CREATE TABLE Passes (
     id MEDIUMINT UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY,
@@ -94,6 +118,13 @@ CREATE TABLE ProductTypes (
     is_directory VARCHAR(128) NULL
 ) ENGINE=InnoDB COMMENT="A product may reference one product type. Optional but encouraged.";
 
+DROP TABLE IF EXISTS ChangeCounters;
+CREATE TABLE ChangeCounters (
+    name VARCHAR(32) NOT NULL PRIMARY KEY,     #the table that changed
+    counter INT UNSIGNED NOT NULL DEFAULT 0
+) ENGINE=InnoDB COMMENT="Bumped on every change to a rarely changed table, so caches know when to reload";
+INSERT INTO ChangeCounters(name) VALUES ('ProductTypes');
+
 DROP TABLE IF EXISTS Directories;
 CREATE TABLE Directories (
     id MEDIUMINT UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY,
@@ -195,7 +226,7 @@ CREATE TABLE TimeAncillaries (
     deleteProtected TINYINT(1) NOT NULL DEFAULT '0',
     deleteMark TINYINT(1) NOT NULL DEFAULT '0',    #marked for deletion
     published TINYINT(1) NOT NULL DEFAULT '0',
-    INDEX (akey(8),time)
+    INDEX (akey,time)                          #full akey, so nearest-time probes read the index in time order
 ) ENGINE=InnoDB;
 
 DROP TABLE IF EXISTS TimeAncillarySites;
@@ -218,7 +249,7 @@ CREATE TABLE SatTimeAncillaries (
     deleteProtected TINYINT(1) NOT NULL DEFAULT '0',
     deleteMark TINYINT(1) NOT NULL DEFAULT '0',    #marked for deletion
     published TINYINT(1) NOT NULL DEFAULT '0',
-    INDEX (akey(8),spacecraft,time)
+    INDEX (akey,spacecraft,time)
 ) ENGINE=InnoDB;
 
 DROP TABLE IF EXISTS SatTimeAncillarySites;
@@ -244,6 +275,20 @@ CREATE TABLE TransferCommands (
     complete TINYINT(1) NOT NULL DEFAULT '0'
 ) ENGINE=InnoDB COMMENT="A queue for site-to-site file transfer requests";
 
+/* ProductStore appends a row here for every product it stores, in the
+same transaction as the product itself. Clients blocked in fetchProduct
+watch this table (seq > the last seq they saw) instead of re-running their
+product query every few seconds. Old rows are trimmed by GCDatabase. */
+DROP TABLE IF EXISTS ProductEvents;
+CREATE TABLE ProductEvents (
+    seq INT UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    product MEDIUMINT UNSIGNED NOT NULL,       #reference to Products(id)
+    productType VARCHAR(128) NOT NULL,         #reference to ProductTypes
+    pass MEDIUMINT UNSIGNED NOT NULL,          #reference to Passes(id)
+    creation DATETIME NOT NULL,
+    INDEX (creation)
+) ENGINE=InnoDB COMMENT="A change sequence of stored products";
+
 /* This table is intended to be the database equivalent of a Java
 	Properties container.  The sizes are conservatively small in the
 	vague hope of portability.  NOTE that MySQL will not accept a
@@ -0,0 +1,395 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.io.File;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import gov.nasa.gsfc.nisgs.properties.Utility;
+
+/**
+ * AncillaryCache keeps the time-ancillary rows of the keys this JVM asks
+ * for, so that the LEAPSEC, UTCPOLE and TLE lookups that every processing
+ * run repeats, with nearly the same time, are answered from memory. There
+ * is one cache per JVM.
+ * <p>
+ * Each key (table, akey and spacecraft, for one site) has a map of its
+ * files by time. Each file remembers where this site found it locally, so
+ * a repeat lookup only checks that the file is still there and skips the
+ * site table query and any copy request. A file that is not local yet is
+ * still passed to the depot, which finds or fetches it as before.
+ * <p>
+ * A key is brought up to date at most every dsm.ancillaryCacheMillis
+ * (default 10 seconds) by reading only rows with a higher id than any we
+ * have, less dsm.ancillaryIdWindow (default 1000). Ids are handed out when
+ * rows are inserted, not when they commit, so a row can turn up after one
+ * with a higher id; re-reading that trailing window catches it, and rows
+ * we already have are skipped. Every dsm.ancillaryReloadMillis (default
+ * 5 minutes) it is read
+ * again in full, which drops files deleted by other JVMs. This JVM's own
+ * stores and deletes mark the key's table out of date at once.
+ * Up to dsm.ancillaryCacheKeys keys (default 64) are kept; 0 turns the
+ * cache off.
+ * @version 3.23 Added.
+ */
+public final class AncillaryCache
+{
+    private static final long REFRESH =
+        Long.getLong("dsm.ancillaryCacheMillis", 10000L).longValue();
+    private static final long RELOAD =
+        Long.getLong("dsm.ancillaryReloadMillis", 5L * 60L * 1000L).longValue();
+    private static final int KEYS = Integer.getInteger("dsm.ancillaryCacheKeys", 64).intValue();
+    private static final long ID_WINDOW =
+        Long.getLong("dsm.ancillaryIdWindow", 1000L).longValue();
+
+    /**
+     * AncillaryDepot finds or fetches one file for us.
+     */
+    interface Locator
+    {
+        /**
+         * @return the local file, or null if it cannot be had
+         */
+        File locate(String id, String path) throws Exception;
+    }
+
+    /** One ancillary row, and where this site has it. */
+    private static final class Entry
+    {
+        final String id;
+        final String path;
+        final long time;
+        volatile File local = null;
+
+        Entry(String id, String path, long time)
+        {
+            this.id = id;
+            this.path = path;
+            this.time = time;
+        }
+    }
+
+    /** All the files of one key. */
+    private static final class Index
+    {
+        final String table;
+        final String sql;
+        final Object[] args;
+        // Replaced, never changed, so readers need no lock
+        volatile NavigableMap<Long,Entry[]> byTime = new TreeMap<Long,Entry[]>();
+        long lastId = 0L;
+        final Set<Long> known = new HashSet<Long>();   // ids in byTime
+        volatile long lastRefresh = 0L;     // zero means refresh at next lookup
+        volatile long lastLoad = 0L;        // when we last read the table
+        long lastReload = 0L;
+
+        Index(String table, String where, Object[] args)
+        {
+            this.table = table;
+            this.sql = "SELECT id,path,time FROM " + table + " WHERE " + where
+                + " AND id>? ORDER BY id";
+            this.args = args;
+        }
+    }
+
+    private static final Map<String,Index> indexes =
+        new LinkedHashMap<String,Index>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry<String,Index> eldest) {
+                return size() > KEYS;
+            }
+        };
+
+    // The counters have their own lock; refresh() counts holding a key's lock
+    private static final Object counters = new Object();
+    private static long hits = 0L;
+    private static long misses = 0L;
+    private static long refreshes = 0L;
+    private static long reloads = 0L;
+
+    private AncillaryCache() {}
+
+    /**
+     * Determine if the cache is turned on.
+     */
+    static boolean isEnabled()
+    {
+        return KEYS > 0;
+    }
+
+    /**
+     * Find the file nearest in time to t0 within the date window that the
+     * locator can find or fetch.
+     * @param where the key conditions, with "?" for each of args
+     * @return the file, or null if none will do
+     */
+    static File find(Connection connection, String site, String table,
+            String where, Object[] args, long t0, TimeWindow tw, Locator locator)
+            throws Exception
+    {
+        Index index = getIndex(connection, site, table, where, args);
+        NavigableMap<Long,Entry[]> byTime = index.byTime;
+        Iterator<Entry[]> before = byTime.headMap(Long.valueOf(t0), true)
+            .descendingMap().values().iterator();
+        Iterator<Entry[]> after = byTime.tailMap(Long.valueOf(t0), false).values().iterator();
+        long first = (tw.getPreDate() == Long.MAX_VALUE)? Long.MIN_VALUE : t0 - tw.getPreDate();
+        long last = (tw.getPostDate() == Long.MAX_VALUE)? Long.MAX_VALUE : t0 + tw.getPostDate();
+
+        // Walk outward from t0, always taking the nearer side
+        Entry[] b = next(before);
+        Entry[] a = next(after);
+        boolean looked = false;
+        while (true)
+        {
+            if (b != null && b[0].time < first) b = null;
+            if (a != null && a[0].time > last) a = null;
+            Entry[] e;
+            if (b == null && a == null) break;
+            if (a == null || (b != null && t0 - b[0].time <= a[0].time - t0))
+            {
+                e = b;
+                b = next(before);
+            }
+            else
+            {
+                e = a;
+                a = next(after);
+            }
+            for (Entry entry : e)
+            {
+                File local = entry.local;
+                if (local != null && local.exists())
+                {
+                    count(!looked);
+                    return local;
+                }
+                looked = true;
+                entry.local = null;
+                local = locator.locate(entry.id, entry.path);
+                if (local != null)
+                {
+                    entry.local = local;
+                    count(false);
+                    return local;
+                }
+            }
+        }
+        count(false);
+        return null;
+    }
+
+    /**
+     * Make every key of a table check for new rows at its next lookup.
+     */
+    static synchronized void refreshSoon(String table)
+    {
+        for (Index index : indexes.values())
+        {
+            if (index.table.equals(table))
+            {
+                index.lastRefresh = 0L;
+            }
+        }
+    }
+
+    /**
+     * Forget every key of a table, because some of its rows went away.
+     */
+    static synchronized void forget(String table)
+    {
+        Iterator<Index> i = indexes.values().iterator();
+        while (i.hasNext())
+        {
+            if (i.next().table.equals(table))
+            {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget everything.
+     */
+    public static synchronized void clear()
+    {
+        indexes.clear();
+    }
+
+    /**
+     * Get the cache counters, for logging. A hit is a lookup answered
+     * without the database. Staleness is the age of the least recently
+     * read key.
+     */
+    public static synchronized String getStatistics()
+    {
+        long now = System.currentTimeMillis();
+        long stalest = 0L;
+        int files = 0;
+        for (Index index : indexes.values())
+        {
+            if (index.lastLoad != 0L)
+            {
+                stalest = Math.max(stalest, now - index.lastLoad);
+            }
+            files += index.byTime.size();
+        }
+        synchronized (counters)
+        {
+            long total = hits + misses;
+            return "ancillaryKeys=" + indexes.size() + " times=" + files
+                + " hits=" + hits + " misses=" + misses
+                + " hitRatio=" + ((total == 0L)? 0 : (100L * hits / total)) + "%"
+                + " refreshes=" + refreshes + " reloads=" + reloads
+                + " stalenessMillis=" + stalest;
+        }
+    }
+
+    private static Entry[] next(Iterator<Entry[]> i)
+    {
+        return i.hasNext()? i.next() : null;
+    }
+
+    private static void count(boolean hit)
+    {
+        synchronized (counters)
+        {
+            if (hit) ++hits; else ++misses;
+        }
+    }
+
+    private static Index getIndex(Connection connection, String site, String table,
+            String where, Object[] args) throws Exception
+    {
+        StringBuffer sb = new StringBuffer(128);
+        sb.append(site).append('|').append(table).append('|').append(where);
+        for (Object arg : args)
+        {
+            sb.append('|').append(arg);
+        }
+        String name = sb.toString();
+        Index index;
+        synchronized (AncillaryCache.class)
+        {
+            index = indexes.get(name);
+            if (index == null)
+            {
+                index = new Index(table, where, args);
+                indexes.put(name, index);
+            }
+        }
+        refresh(connection, index);
+        return index;
+    }
+
+    /**
+     * Read the key's new rows, or all of them when a reload is due.
+     * Other threads keep using the old map until the new one is ready.
+     * New rows are those past the id watermark less ID_WINDOW that we do
+     * not have already.
+     */
+    private static void refresh(Connection connection, Index index) throws Exception
+    {
+        synchronized (index)
+        {
+            long now = System.currentTimeMillis();
+            if (now - index.lastRefresh < REFRESH) return;
+            boolean reload = now - index.lastReload >= RELOAD;
+            long after = reload? 0L : Math.max(0L, index.lastId - ID_WINDOW);
+
+            Object[] args = new Object[index.args.length + 1];
+            System.arraycopy(index.args, 0, args, 0, index.args.length);
+            args[args.length - 1] = Long.valueOf(after);
+            List<Entry> rows = new ArrayList<Entry>();
+            ResultSet r = StatementCache.query(connection, index.sql, args);
+            try
+            {
+                while (r.next())
+                {
+                    String id = r.getString("id");
+                    if (!reload && index.known.contains(Long.valueOf(id))) continue;
+                    rows.add(new Entry(id, r.getString("path"),
+                                       Utility.parse(r.getString("time")).getTime()));
+                }
+            }
+            finally
+            {
+                r.close();
+            }
+
+            TreeMap<Long,Entry[]> byTime;
+            if (reload)
+            {
+                // Keep what we know of files that are still there
+                Map<String,File> local = new HashMap<String,File>();
+                for (Entry[] es : index.byTime.values())
+                {
+                    for (Entry e : es)
+                    {
+                        if (e.local != null) local.put(e.id, e.local);
+                    }
+                }
+                byTime = new TreeMap<Long,Entry[]>();
+                for (Entry e : rows)
+                {
+                    e.local = local.get(e.id);
+                }
+                index.lastId = 0L;
+                index.known.clear();
+                index.lastReload = now;
+                countRefresh(reload);
+            }
+            else if (rows.isEmpty())
+            {
+                index.lastRefresh = index.lastLoad = now;
+                countRefresh(reload);
+                return;
+            }
+            else
+            {
+                byTime = new TreeMap<Long,Entry[]>(index.byTime);
+                countRefresh(reload);
+            }
+            for (Entry e : rows)
+            {
+                Long t = Long.valueOf(e.time);
+                Entry[] old = byTime.get(t);
+                Entry[] es;
+                if (old == null)
+                {
+                    es = new Entry[] {e};
+                }
+                else
+                {
+                    es = new Entry[old.length + 1];
+                    System.arraycopy(old, 0, es, 0, old.length);
+                    es[old.length] = e;
+                }
+                byTime.put(t, es);
+                long id = Long.parseLong(e.id);
+                index.known.add(Long.valueOf(id));
+                index.lastId = Math.max(index.lastId, id);
+            }
+            index.byTime = byTime;
+            index.lastRefresh = index.lastLoad = now;
+        }
+    }
+
+    private static void countRefresh(boolean reload)
+    {
+        synchronized (counters)
+        {
+            if (reload) ++reloads; else ++refreshes;
+        }
+    }
+}
@@ -20,6 +20,9 @@ import gov.nasa.gsfc.nisgs.properties.Utility;
  * AncillaryDepot marks an ancillary as published if the site is the IS.
  * @version 3.18 Added "published" database field.
  * @version 3.20 Added "delete" flag database field.
+ * @version 3.23 Directory IDs and paths come from DirectoryCache.
+ * @version 3.23 Nearest-time lookups probe the time index on each side of t0.
+ * @version 3.23 Nearest-time lookups go through AncillaryCache.
  */
 final class AncillaryDepot
 {
@@ -27,6 +30,7 @@ final class AncillaryDepot
     private String mysite;
     private File rootDataDirectory;
     private String informationServicesSite;
+    private TransferWatcher transferWatcher;
     static String IS = "IS";   //when site==IS, ancillary.published is true.
 
     static void setInformationServicesSite(String is)
@@ -35,12 +39,13 @@ final class AncillaryDepot
     }
 
     AncillaryDepot(String mysite, java.sql.Connection connection, File rootDataDirectory,
-            String is_site)
+            String is_site, TransferWatcher transferWatcher)
     {
         this.mysite = mysite;
         this.connection = connection;
         this.rootDataDirectory = rootDataDirectory;
         informationServicesSite = is_site;
+        this.transferWatcher = transferWatcher;
     }
 
     /**
@@ -101,12 +106,9 @@ final class AncillaryDepot
 			     TimeWindow tw)
             throws Exception
     {
-	String bquery = "SELECT id,path,time FROM SatTimeAncillaries"
-	    + " WHERE spacecraft="+ Utility.quote(spacecraft.toUpperCase())
-	    + " AND akey=" + Utility.quote(key);
-
-	return getBestFile(bquery, time, tw,
-			   "SatTimeAncillarySites", "SatTimeAncillaries");
+	return getBestFile("SatTimeAncillaries", "spacecraft=? AND akey=?",
+			   new Object[] {spacecraft.toUpperCase(), key},
+			   time, tw, "SatTimeAncillarySites");
     }
 
     /**
@@ -126,14 +128,186 @@ final class AncillaryDepot
 			   TimeWindow tw)
             throws Exception
     {
-        String sql = "SELECT id, path, time FROM TimeAncillaries WHERE akey=" + Utility.quote(key);
-        return getBestFile(sql, time, tw,
-			   "TimeAncillarySites","TimeAncillaries");
+        return getBestFile("TimeAncillaries", "akey=?", new Object[] {key},
+			   time, tw, "TimeAncillarySites");
+    }
+
+    /**
+     * Pick the ancillary file nearest in time to t0 that fits the time
+     * window and that getFile() can find or fetch.
+     * @param where the key conditions, with "?" for each of args
+     */
+    private File getBestFile(String table, String where, Object[] args,
+			     Date t0date, TimeWindow tw, String siteTable)
+            throws Exception
+    {
+	if(tw.getPreTime() != Long.MAX_VALUE
+	   || tw.getPostTime() != Long.MAX_VALUE) {
+	    return getBestFileByTimeOfDay(table, where, args, t0date, tw,
+					  siteTable);
+	}
+
+	if (AncillaryCache.isEnabled()) {
+	    return AncillaryCache.find(connection, mysite, table, where, args,
+				       t0date.getTime(), tw, new Locator(siteTable, table));
+	}
+
+	// Walk outward from t0 on both sides at once, always taking the
+	// nearer of the two next candidates. Usually the first one will do,
+	// so each side reads only a page of PROBE rows.
+	long t0 = t0date.getTime();
+	Probe before = new Probe(table, where, args, t0, tw, false);
+	Probe after = new Probe(table, where, args, t0, tw, true);
+	while (true)
+	    {
+		Candidate b = before.peek();
+		Candidate a = after.peek();
+		Candidate c;
+		if (b == null && a == null) return null;
+		if (a == null || (b != null && t0 - b.time <= a.time - t0)) {
+		    c = b;
+		    before.advance();
+		}
+		else {
+		    c = a;
+		    after.advance();
+		}
+		File result = getFile(siteTable, table, c.id, c.path);
+		if (result != null) return result;
+	    }
+    }
+
+    /** Hands AncillaryCache's picks to getFile(). */
+    private final class Locator implements AncillaryCache.Locator
+    {
+	private final String siteTable;
+	private final String table;
+
+	Locator(String siteTable, String table)
+	{
+	    this.siteTable = siteTable;
+	    this.table = table;
+	}
+
+	public File locate(String id, String path) throws Exception
+	{
+	    return getFile(siteTable, table, id, path);
+	}
+    }
+
+    /** Rows each nearest-time probe reads at a time, from dsm.ancillaryProbe. */
+    private static final int PROBE = Integer.getInteger("dsm.ancillaryProbe", 4).intValue();
+
+    /** One ancillary row that might be the one we want. */
+    private static final class Candidate
+    {
+	final String id;
+	final String path;
+	final long time;
+
+	Candidate(String id, String path, long time)
+	{
+	    this.id = id;
+	    this.path = path;
+	    this.time = time;
+	}
+    }
+
+    /**
+     * Probe reads ancillary rows on one side of t0, nearest first, a page
+     * at a time. Each page is an index range scan on (akey, [spacecraft,]
+     * time) that stops after PROBE rows:
+     *
+     * ... AND time <= last AND (time < last OR id < lastId)
+     *     ORDER BY time DESC, id DESC LIMIT n
+     *
+     * or the same turned around for the rows after t0. Rows at exactly t0
+     * belong to the before side. The date window, if any, bounds the far
+     * end of the range.
+     */
+    private final class Probe
+    {
+	private final String sql;
+	private final Object[] keyArgs;
+	private final String limit;
+	private final java.util.ArrayList<Candidate> page =
+	    new java.util.ArrayList<Candidate>(PROBE);
+	private int index = 0;
+	private long lastTime;
+	private long lastId = Long.MAX_VALUE;
+	private boolean done = false;
+
+	Probe(String table, String where, Object[] keyArgs, long t0,
+	      TimeWindow tw, boolean ascending)
+	{
+	    this.keyArgs = keyArgs;
+	    lastTime = t0;
+	    String lt = ascending? ">" : "<";
+	    StringBuffer sb = new StringBuffer(256);
+	    sb.append("SELECT id,path,time FROM ");
+	    sb.append(table);
+	    sb.append(" WHERE ");
+	    sb.append(where);
+	    sb.append(" AND time " + lt + "=? AND (time " + lt + "? OR id " + lt + "?)");
+	    long window = ascending? tw.getPostDate() : tw.getPreDate();
+	    if (window != Long.MAX_VALUE) {
+		sb.append(ascending? " AND time <=?" : " AND time >=?");
+		limit = Utility.format(new Date(ascending? t0 + window : t0 - window));
+	    }
+	    else {
+		limit = null;
+	    }
+	    sb.append(ascending? " ORDER BY time, id LIMIT " : " ORDER BY time DESC, id DESC LIMIT ");
+	    sb.append(PROBE);
+	    sql = sb.toString();
+	}
+
+	/**
+	 * Get the next candidate without using it up.
+	 * @return the candidate, or null if this side has no more
+	 */
+	Candidate peek() throws Exception
+	{
+	    if (index < page.size()) return page.get(index);
+	    if (done) return null;
+	    page.clear();
+	    index = 0;
+	    int n = keyArgs.length;
+	    Object[] args = new Object[n + ((limit == null)? 3 : 4)];
+	    System.arraycopy(keyArgs, 0, args, 0, n);
+	    String last = Utility.format(new Date(lastTime));
+	    args[n] = last;
+	    args[n + 1] = last;
+	    // Long.MAX_VALUE on the first page: the before side takes every
+	    // row at t0, the after side none
+	    args[n + 2] = Long.valueOf(lastId);
+	    if (limit != null) args[n + 3] = limit;
+	    ResultSet r = StatementCache.query(connection, sql, args);
+	    try {
+		while (r.next()) {
+		    page.add(new Candidate(r.getString("id"), r.getString("path"),
+					   Utility.parse(r.getString("time")).getTime()));
+		}
+	    }
+	    finally {
+		r.close();
+	    }
+	    if (page.size() < PROBE) done = true;
+	    if (page.isEmpty()) return null;
+	    Candidate c = page.get(page.size() - 1);
+	    lastTime = c.time;
+	    lastId = Long.parseLong(c.id);
+	    return page.get(0);
+	}
+
+	void advance()
+	{
+	    ++index;
+	}
     }
 
     // Useful SimpleDateFormat string for yanking times out of Date objects
-    // Quoted and ready-to-go for SQL
-    private static String timeonlySDF = "''HH:mm:ss''";
+    private static String timeonlySDF = "HH:mm:ss";
     /**
      * This generates a medium hairy SQL statement to pick the best ancillary
      * file fitting certain date and time criteria.  The resulting SQL is
@@ -142,14 +316,22 @@ final class AncillaryDepot
      * SELECT id, path, time  FROM TimeAncillaries WHERE akey="ancillary-type"
      * [ AND spacecraft="satellite" ]
      * [ AND time >= t0.preDate() AND time <= t0.postDate() ]
-     * [ AND TIME(time) >= t0.preTime() AND TIME(time) <= t0.postTime() ]
+     * AND TIME(time) >= t0.preTime() AND TIME(time) <= t0.postTime()
      * ORDER BY ABS(TIMEDIFF(time, t0))
      *
+     * MySQL cannot use an index for the TIME(time) test or the sort, so
+     * this reads and sorts every file of the key. It is only used when the
+     * TimeWindow sets a time of day.
      */
-    private File getBestFile(String sql, Date t0date, TimeWindow tw,
-			     String siteTable, String table)
+    private File getBestFileByTimeOfDay(String table, String where,
+					Object[] keyArgs, Date t0date,
+					TimeWindow tw, String siteTable)
             throws Exception
     {
+	String sql = "SELECT id,path,time FROM " + table + " WHERE " + where;
+	java.util.List<Object> args =
+	    new java.util.ArrayList<Object>(java.util.Arrays.asList(keyArgs));
+
 	// If we do any date/time manipulation, this is going to be a
 	// popular number...
 	long t0 = t0date.getTime();
@@ -157,11 +339,13 @@ final class AncillaryDepot
 	// If we have a date window, tack it on
 	if(tw.getPreDate() != Long.MAX_VALUE) {
 	    Date predate = new Date(t0 - tw.getPreDate());
-	    sql += " AND time >= " + Utility.quote(Utility.format(predate));
+	    sql += " AND time >= ?";
+	    args.add(Utility.format(predate));
 	}
 	if(tw.getPostDate() != Long.MAX_VALUE) {
 	    Date postdate = new Date(t0 + tw.getPostDate());
-	    sql += " AND time <= " + Utility.quote(Utility.format(postdate));
+	    sql += " AND time <= ?";
+	    args.add(Utility.format(postdate));
 	}
 
 	// Time windows are potentially weird because they might wrap outside
@@ -171,72 +355,60 @@ final class AncillaryDepot
 	//
 	// We are assured by the TimeWindow constructor that time windows
 	// are properly bounded - either they're both infinite, or both
-	// set and the total width is less than 24 hours, so the only case
-	// we care about is:
-	if(tw.getPreTime() != Long.MAX_VALUE
-	   || tw.getPostTime() != Long.MAX_VALUE) {
+	// set and the total width is less than 24 hours.
 
-	    // We first compute the t0's milliseconds since midnight
-	    Calendar t0midnight = new GregorianCalendar();
-	    t0midnight.setTime(t0date);
-	    t0midnight.set(Calendar.HOUR_OF_DAY, 0);
-	    t0midnight.set(Calendar.MINUTE, 0);
-	    t0midnight.set(Calendar.SECOND, 0);
-	    t0midnight.set(Calendar.MILLISECOND, 0);
-	    long millitod = t0 - t0midnight.getTimeInMillis();
-	    Date pretime;
-	    Date posttime;
-	    SimpleDateFormat localSDF =  new SimpleDateFormat(timeonlySDF);
-
-	    // OK, so there are three possible cases here, which degenerate
-	    // into two cases, really:
-	    
-	    if ((tw.getPreTime() > millitod)
-		|| (millitod + tw.getPostTime() > 86400 * 1000)) {
-		// pre or post time land outside the 24-hour window
-		// (time <= posttime OR time >= pretime)
-		// This works because the SimpleDateFormat.format operation
-		// is inherently modulo 24-hours
-		pretime = new Date(t0 - tw.getPreTime());
-		posttime = new Date(t0 + tw.getPostTime());
-
-	    sql += " AND ( TIME(time) >= " + localSDF.format(pretime)
-		+ " OR TIME(time) <= " + localSDF.format(posttime) + ")";
-	    }
-	    else {
-		// pre and post time fit in 24 hour window
-		// (time >= pretime AND time <= posttime)
-		pretime = new Date(t0 - tw.getPreTime());
-		posttime = new Date(t0 + tw.getPostTime());
-	    sql += " AND TIME(time) >= " + localSDF.format(pretime)
-		+ " AND TIME(time) <= " + localSDF.format(posttime);
-	    }
+	// We first compute the t0's milliseconds since midnight
+	Calendar t0midnight = new GregorianCalendar();
+	t0midnight.setTime(t0date);
+	t0midnight.set(Calendar.HOUR_OF_DAY, 0);
+	t0midnight.set(Calendar.MINUTE, 0);
+	t0midnight.set(Calendar.SECOND, 0);
+	t0midnight.set(Calendar.MILLISECOND, 0);
+	long millitod = t0 - t0midnight.getTimeInMillis();
+	SimpleDateFormat localSDF =  new SimpleDateFormat(timeonlySDF);
+	// SimpleDateFormat.format is inherently modulo 24-hours
+	Date pretime = new Date(t0 - tw.getPreTime());
+	Date posttime = new Date(t0 + tw.getPostTime());
 
+	// OK, so there are three possible cases here, which degenerate
+	// into two cases, really:
+	if ((tw.getPreTime() > millitod)
+	    || (millitod + tw.getPostTime() > 86400 * 1000)) {
+	    // pre or post time land outside the 24-hour window
+	    // (time <= posttime OR time >= pretime)
+	    sql += " AND ( TIME(time) >= ? OR TIME(time) <= ?)";
+	}
+	else {
+	    // pre and post time fit in 24 hour window
+	    // (time >= pretime AND time <= posttime)
+	    sql += " AND TIME(time) >= ? AND TIME(time) <= ?";
 	}
+	args.add(localSDF.format(pretime));
+	args.add(localSDF.format(posttime));
+
 	// Tack on the sort
-	sql += " ORDER BY ABS(TIMEDIFF(time, "
-	    + Utility.quote(Utility.format(t0date))
-	    + "))";
+	sql += " ORDER BY ABS(TIMEDIFF(time, ?))";
+	args.add(Utility.format(t0date));
 
 	// Do the query, loop down the results, and return the first one
-	// that getFile() approves
-        Statement statement = connection.createStatement();
-	File result = null;
+	// that getFile() approves. The rows are read first because getFile()
+	// uses the statement cache too.
+	java.util.List<String[]> rows = new java.util.ArrayList<String[]>();
+	ResultSet r = StatementCache.query(connection, sql, args.toArray());
 	try {
-	    ResultSet r = Utility.executeQuery(statement, sql);
 	    while (r.next())
 		{
-		    String id = r.getString("id");
-		    String filename = r.getString("path");
-		    result = getFile(siteTable, table, id, filename);
-		    if(result != null) break;
+		    rows.add(new String[] {r.getString("id"), r.getString("path")});
 		}
 	}
 	finally {
-        statement.close();
+	    r.close();
 	}
-
-        return result;
+	for (String[] row : rows) {
+	    File result = getFile(siteTable, table, row[0], row[1]);
+	    if(result != null) return result;
+	}
+        return null;
     }
 
     /**
@@ -246,17 +418,15 @@ final class AncillaryDepot
     {
         String fileName = null;
         String aid = null;
-        Statement statement = connection.createStatement();
-        String sql = "SELECT * FROM StaticAncillaries WHERE akey=" +
-                Utility.quote(akey);
-        ResultSet r = Utility.executeQuery(statement, sql);
+        ResultSet r = StatementCache.query(connection,
+                "SELECT * FROM StaticAncillaries WHERE akey=?", akey);
 
         if (r.next())
         {
             fileName = r.getString("path");
             aid = r.getString("id");
         }
-        statement.close();
+        r.close();
 
         File file = null;
         if (aid != null)
@@ -270,21 +440,12 @@ final class AncillaryDepot
             String ancillaryId, String fileName) throws Exception
     {
         File file = null;
-        Statement s = connection.createStatement();
-        StringBuffer sb = new StringBuffer(512);
-        sb.append("SELECT path FROM Directories,");
-        sb.append(siteTable);
-        sb.append(" WHERE aid=");
-        sb.append(ancillaryId);
-        sb.append(" AND site=");
-        sb.append(Utility.quote(mysite));
-        sb.append(" AND id=directory");
-        String sql = sb.toString();
-        ResultSet r = Utility.executeQuery(s, sql);
+        String sql = "SELECT directory FROM " + siteTable + " WHERE aid=? AND site=?";
+        ResultSet r = StatementCache.query(connection, sql, ancillaryId, mysite);
         boolean isLocal = r.next();
         if (isLocal)
         {
-            file = new File(r.getString(1),fileName);
+            file = new File(DirectoryCache.getPath(connection,r.getString(1)),fileName);
             if (!file.isAbsolute())
             {
                 //this happens on the IS where files are relative.
@@ -301,13 +462,14 @@ final class AncillaryDepot
         if (!isLocal && !mysite.equals(informationServicesSite) &&
             copy(ancillaryTable,ancillaryId))
         {
-            r = Utility.executeQuery(s, sql);
+            r.close();
+            r = StatementCache.query(connection, sql, ancillaryId, mysite);
             if (r.next())
             {
                 file = new File(r.getString(1),fileName);
             }
         }
-        s.close();
+        r.close();
         return file;
     }
 
@@ -367,28 +529,8 @@ final class AncillaryDepot
      */
     boolean copy(String ancillaryTable, String ancillaryId) throws Exception
     {
-        Statement s = connection.createStatement();
-        String today = Utility.format(new java.util.Date());
-        String sql = "INSERT LOW_PRIORITY INTO TransferCommands VALUES (DEFAULT," +
-                Utility.quoteComma(ancillaryTable) +
-                ancillaryId + Utility.COMMA + Utility.quoteComma(mysite) +
-                Utility.quoteComma(today) + "0)";
-        Utility.executeUpdate(s, sql);
-        Utility.commitConnection(connection);
-        String id = Utility.getLastAutoIncrementedValue(s);
-        int complete = 0;
-        do
-        {
-            try { Thread.sleep(15000L); } catch ( InterruptedException e) {}
-            ResultSet r = Utility.executeQuery(s, "SELECT complete FROM TransferCommands WHERE id=" + id);
-            if (r.next())
-            {
-                complete = r.getInt(1);
-            }
-        }
-        while (complete == 0);
-        s.close();
-        return complete == 1;
+        String id = transferWatcher.request(connection, ancillaryTable, ancillaryId);
+        return TransferWatcher.await(transferWatcher.watch(id)).intValue() == 1;
     }
 
     /**
@@ -408,7 +550,7 @@ final class AncillaryDepot
 	File file = new File(path);
 	String filename = file.getName();
 	String filepath = file.getParent();
-	String directoryID = Utility.getDirectoryId(connection, filepath, true);
+	String directoryID = DirectoryCache.getId(connection, filepath);
 	// NOTE - The query below does a join on the siteTable to get the
 	// exact entry pair that should represent this file.  It used to
 	// cheat and only query the mainTable on filename and type, making
@@ -462,6 +604,7 @@ final class AncillaryDepot
 		// }
 	    // And commit everything
 	    Utility.commitConnection(connection);
+	    AncillaryCache.refreshSoon(mainTable);
 	}
         catch (SQLException e) {
             connection.rollback();
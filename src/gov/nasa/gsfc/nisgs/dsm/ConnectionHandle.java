@@ -0,0 +1,120 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * ConnectionHandle is the Connection a DSM gives its helpers (Reservation,
+ * AncillaryDepot) and its callers. It passes every call through to the
+ * pooled connection until the DSM is disposed; after that every call
+ * throws, as a closed connection did before connections were pooled.
+ * Without it, a helper of a disposed DSM would quietly run, commit and
+ * roll back inside whichever DSM borrowed the connection next.
+ * <p>
+ * close() on a handle only cuts it off; the connection itself belongs to
+ * the DSM. StatementCache keys on the connection under the handle, so
+ * statements prepared through one DSM's handle serve the next DSM's too.
+ */
+final class ConnectionHandle implements InvocationHandler
+{
+    private volatile Connection target;
+
+    private ConnectionHandle(Connection target)
+    {
+        this.target = target;
+    }
+
+    /**
+     * Make a handle on a connection.
+     */
+    static Connection wrap(Connection target)
+    {
+        return (Connection)Proxy.newProxyInstance(ConnectionHandle.class.getClassLoader(),
+                                                  new Class<?>[] {Connection.class},
+                                                  new ConnectionHandle(target));
+    }
+
+    /**
+     * Cut a handle off from its connection. Anything else is left alone.
+     */
+    static void release(Connection connection)
+    {
+        ConnectionHandle h = handler(connection);
+        if (h != null) h.target = null;
+    }
+
+    /**
+     * Get the connection under a handle, or the connection itself if it is
+     * not a handle.
+     * @throws SQLException if the handle has been released
+     */
+    static Connection unwrap(Connection connection) throws SQLException
+    {
+        ConnectionHandle h = handler(connection);
+        return (h == null)? connection : h.target();
+    }
+
+    private static ConnectionHandle handler(Connection connection)
+    {
+        if (connection != null && Proxy.isProxyClass(connection.getClass()))
+        {
+            InvocationHandler h = Proxy.getInvocationHandler(connection);
+            if (h instanceof ConnectionHandle) return (ConnectionHandle)h;
+        }
+        return null;
+    }
+
+    private Connection target() throws SQLException
+    {
+        Connection c = target;
+        if (c == null)
+        {
+            throw new SQLException("Connection used after its DSM was disposed");
+        }
+        return c;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        String name = method.getName();
+        if (name.equals("equals") && args != null && args.length == 1)
+        {
+            return Boolean.valueOf(proxy == args[0]);
+        }
+        if (name.equals("hashCode") && (args == null || args.length == 0))
+        {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        }
+        if (name.equals("toString") && (args == null || args.length == 0))
+        {
+            Connection c = target;
+            return "ConnectionHandle[" + ((c == null)? "released" : c.toString()) + "]";
+        }
+        if (name.equals("close") && (args == null || args.length == 0))
+        {
+            target = null;
+            return null;
+        }
+        if (name.equals("isClosed") && (args == null || args.length == 0))
+        {
+            Connection c = target;
+            return Boolean.valueOf(c == null || c.isClosed());
+        }
+        try
+        {
+            return method.invoke(target(), args);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import gov.nasa.gsfc.nisgs.properties.Utility;
+
+/**
+ * ConnectionPool keeps DsmProperties objects with open database connections
+ * so that a DSM (or DSMAdministrator) built by every agent cycle does not pay
+ * for a property load and a MySQL handshake each time. There is one pool per
+ * JVM. DSM borrows in its constructor and returns in dispose().
+ * <p>
+ * A borrowed connection is checked with "SELECT 1" and rolled back, so it
+ * starts a fresh transaction. A returned connection is rolled back too,
+ * which throws away anything the DSM did not commit, as closing it used to.
+ * Connections idle for longer than dsm.pool.idleMillis are closed, which
+ * also bounds how stale the pooled properties can get.
+ * <p>
+ * Sizing is set with system properties: dsm.pool.maxTotal (connections
+ * borrowed at once, default 0, meaning no limit, as before there was a
+ * pool), dsm.pool.maxIdle (default 8), dsm.pool.idleMillis (default five
+ * minutes) and dsm.pool.maxWaitMillis (how long borrow() waits when
+ * maxTotal are out, default 30 seconds, after which it throws). Each DSM
+ * may hold several connections at once (its own, its TransferWatcher's,
+ * and brief ones for ProductLoader and DirectoryCache), so a limit should
+ * allow for that.
+ */
+public final class ConnectionPool
+{
+    private static final int MAX_TOTAL = Integer.getInteger("dsm.pool.maxTotal", 0).intValue();
+    private static final int MAX_IDLE = Integer.getInteger("dsm.pool.maxIdle", 8).intValue();
+    private static final long IDLE_TIME =
+        Long.getLong("dsm.pool.idleMillis", 5L * 60L * 1000L).longValue();
+    private static final long MAX_WAIT =
+        Long.getLong("dsm.pool.maxWaitMillis", 30L * 1000L).longValue();
+
+    /** An idle connection and when it was returned. */
+    private static final class Idle
+    {
+        final DsmProperties dsmp;
+        final long since;
+
+        Idle(DsmProperties dsmp, long since)
+        {
+            this.dsmp = dsmp;
+            this.since = since;
+        }
+    }
+
+    // Most recently returned first, so the tail is the oldest
+    private static final Deque<Idle> idle = new ArrayDeque<Idle>();
+    private static int active = 0;
+
+    // Metrics
+    private static long created = 0L;
+    private static long reused = 0L;
+    private static long evicted = 0L;
+    private static long invalid = 0L;
+    private static long waits = 0L;
+
+    private ConnectionPool() {}
+
+    /**
+     * Borrow a DsmProperties with an open, validated connection.
+     * Give it back with release(), or with invalidate() if its connection
+     * has gone bad.
+     */
+    static DsmProperties borrow() throws Exception
+    {
+        long deadline = System.currentTimeMillis() + MAX_WAIT;
+        while (true)
+        {
+            List<DsmProperties> old;
+            synchronized (ConnectionPool.class)
+            {
+                old = expired(System.currentTimeMillis());
+            }
+            for (DsmProperties dsmp : old) close(dsmp);
+
+            Idle candidate = null;
+            synchronized (ConnectionPool.class)
+            {
+                candidate = idle.pollFirst();
+                if (candidate == null)
+                {
+                    long now = System.currentTimeMillis();
+                    if (MAX_TOTAL > 0 && active >= MAX_TOTAL)
+                    {
+                        if (now >= deadline)
+                        {
+                            throw new Exception("ConnectionPool exhausted: " + active
+                                                + " connections in use");
+                        }
+                        ++waits;
+                        ConnectionPool.class.wait(deadline - now);
+                        continue;
+                    }
+                }
+                // Count it as out now, so we do not open more than MAX_TOTAL
+                ++active;
+            }
+
+            if (candidate == null)
+            {
+                try
+                {
+                    DsmProperties dsmp = new DsmProperties();
+                    dsmp.initializeConnection();
+                    synchronized (ConnectionPool.class) { ++created; }
+                    return dsmp;
+                }
+                catch (Exception e)
+                {
+                    giveBack();
+                    throw e;
+                }
+            }
+
+            if (validate(candidate.dsmp))
+            {
+                synchronized (ConnectionPool.class) { ++reused; }
+                return candidate.dsmp;
+            }
+            synchronized (ConnectionPool.class) { ++invalid; }
+            close(candidate.dsmp);
+            giveBack();
+        }
+    }
+
+    /**
+     * Return a borrowed DsmProperties. Its uncommitted work is rolled back.
+     */
+    static void release(DsmProperties dsmp)
+    {
+        boolean keep = true;
+        try
+        {
+            dsmp.getConnection().rollback();
+        }
+        catch (Exception e)
+        {
+            keep = false;
+        }
+        DsmProperties extra = null;
+        synchronized (ConnectionPool.class)
+        {
+            --active;
+            if (keep)
+            {
+                idle.addFirst(new Idle(dsmp, System.currentTimeMillis()));
+                if (idle.size() > MAX_IDLE)
+                {
+                    extra = idle.pollLast().dsmp;
+                    ++evicted;
+                }
+            }
+            else
+            {
+                ++invalid;
+            }
+            ConnectionPool.class.notifyAll();
+        }
+        if (!keep) close(dsmp);
+        if (extra != null) close(extra);
+    }
+
+    /**
+     * Return a borrowed DsmProperties whose connection should not be reused.
+     */
+    static void invalidate(DsmProperties dsmp)
+    {
+        synchronized (ConnectionPool.class)
+        {
+            ++invalid;
+        }
+        close(dsmp);
+        giveBack();
+    }
+
+    /**
+     * Close every idle connection. Borrowed ones are not affected.
+     */
+    public static void clear()
+    {
+        Idle[] all;
+        synchronized (ConnectionPool.class)
+        {
+            all = idle.toArray(new Idle[idle.size()]);
+            idle.clear();
+            evicted += all.length;
+        }
+        for (Idle i : all)
+        {
+            close(i.dsmp);
+        }
+    }
+
+    /**
+     * Get the pool counters, for logging.
+     */
+    public static synchronized String getStatistics()
+    {
+        return "active=" + active + " idle=" + idle.size()
+            + " created=" + created + " reused=" + reused
+            + " evicted=" + evicted + " invalid=" + invalid
+            + " waits=" + waits;
+    }
+
+    /**
+     * Take idle connections past IDLE_TIME out of the pool. Caller must
+     * hold the pool lock, and should close them after letting go of it.
+     */
+    private static List<DsmProperties> expired(long now)
+    {
+        List<DsmProperties> old = new ArrayList<DsmProperties>();
+        Iterator<Idle> ii = idle.descendingIterator();
+        while (ii.hasNext())
+        {
+            Idle i = ii.next();
+            if (now - i.since < IDLE_TIME) break;
+            ii.remove();
+            old.add(i.dsmp);
+            ++evicted;
+        }
+        return old;
+    }
+
+    private static void giveBack()
+    {
+        synchronized (ConnectionPool.class)
+        {
+            --active;
+            ConnectionPool.class.notifyAll();
+        }
+    }
+
+    private static boolean validate(DsmProperties dsmp)
+    {
+        try
+        {
+            Connection c = dsmp.getConnection();
+            Statement s = c.createStatement();
+            try
+            {
+                Utility.executeQuery(s, "SELECT 1");
+            }
+            finally
+            {
+                s.close();
+            }
+            c.rollback();
+            return true;
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+    }
+
+    private static void close(DsmProperties dsmp)
+    {
+        StatementCache.clear(dsmp.getConnection());
+        try { dsmp.dispose(); }
+        catch (Exception e) {}
+    }
+}
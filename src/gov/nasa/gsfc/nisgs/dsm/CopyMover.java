@@ -6,15 +6,31 @@ All rights reserved.
 package gov.nasa.gsfc.nisgs.dsm;
 import java.io.*;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 
 /**
  * Copies file between locations managed by the DSM.
+ * @version 3.23 Copies into a part file and renames it when done; a copy
+ *      that was cut off carries on from the end of its part file.
+ *      When both ends are on one file system, relocateFile() renames
+ *      instead of copying. With -Ddsm.copy.hardLinks=true, moveFile()
+ *      makes a hard link there too.
  */
 
 public class CopyMover extends FileMover
 {
+	// A hard link shares its data with the source, so a tool that
+	// rewrites its input in place would change both; only when asked
+	private static final boolean HARD_LINKS = Boolean.getBoolean("dsm.copy.hardLinks");
+
+	// Whether two directories share a file store, by "from|to"
+	private static final Map<String,Boolean> sameStore =
+		new ConcurrentHashMap<String,Boolean>();
 
 	String fromSite;
 	String toSite;
@@ -44,6 +60,28 @@ public class CopyMover extends FileMover
 		moveFiles(from, to);
 	}
 
+	/**
+	 * Renames the file when from and to are on one file system, which
+	 * takes no time however large the file is.  Otherwise it is copied.
+	 */
+	public void relocateFile(File from, File to) throws Exception {
+		from = makeAbsolute(from, fromSite);
+		to = makeAbsolute(to, toSite);
+		if(from.isAbsolute() && to.isAbsolute() && sameStore(from, to)) {
+			try {
+				Files.move(from.toPath(), to.toPath(),
+						   StandardCopyOption.ATOMIC_MOVE,
+						   StandardCopyOption.REPLACE_EXISTING);
+				return;
+			}
+			catch (IOException e) {
+				// Not a plain rename after all (a directory that is
+				// already there, say); copy it
+			}
+		}
+		moveFile(from, to);
+	}
+
     private void moveFiles(File from, File to) throws Exception {
 		if(from.isDirectory()) {
 			to.mkdir();
@@ -53,10 +91,17 @@ public class CopyMover extends FileMover
 				moveFiles(subfiles[i], new File(to, subfiles[i].getName()));
 			}
 		}
+		else if(HARD_LINKS && sameStore(from, to) && link(from, to)) {
+			return;
+		}
 		else {
+			// A part file left by an earlier copy is kept, and we
+			// carry on from its end
+			File part = partFile(to);
+			long position = resumeOffset(part, from.length(), from.lastModified());
 			try (
 					FileInputStream fromStream = new FileInputStream(from);
-					FileOutputStream toStream = new FileOutputStream(to);
+					FileOutputStream toStream = new FileOutputStream(part, position > 0);
 					FileChannel sourceChannel = fromStream.getChannel();
 					FileChannel destinationChannel = toStream.getChannel();
 				){
@@ -70,15 +115,62 @@ public class CopyMover extends FileMover
 
 				int maxCount = (64 * 1024 * 1024) - (32 * 1024);
 				long size = sourceChannel.size();
-				long position = 0;
 				while (position < size) {
 					position += sourceChannel.transferTo(position, maxCount, destinationChannel);
 				}
 			}
+			finishPart(part, to);
 		}
 	}
 
 
+	/**
+	 * Makes to a hard link to from, by way of the part file so a file
+	 * already at to is replaced in one step.
+	 * @return false if the file system would not make the link
+	 */
+	private static boolean link(File from, File to) {
+		File part = partFile(to);
+		try {
+			part.delete();
+			Files.createLink(part.toPath(), from.toPath());
+			finishPart(part, to);
+			return true;
+		}
+		catch (Exception e) {
+			part.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Determines if from and to are on one file store, by their
+	 * directories.  The answer is remembered, since finding a file's
+	 * store reads the mount table.
+	 */
+	private static boolean sameStore(File from, File to) {
+		File fromDir = from.getAbsoluteFile().getParentFile();
+		File toDir = to.getAbsoluteFile().getParentFile();
+		if(fromDir == null || toDir == null)
+			return false;
+		String key = fromDir.getPath() + "|" + toDir.getPath();
+		Boolean same = sameStore.get(key);
+		if(same == null) {
+			try {
+				same = Boolean.valueOf(Files.getFileStore(fromDir.toPath())
+						.equals(Files.getFileStore(toDir.toPath())));
+			}
+			catch (IOException e) {
+				// Most likely to's directory is not there yet
+				return false;
+			}
+			if(sameStore.size() >= 256)
+				sameStore.clear();
+			sameStore.put(key, same);
+		}
+		return same.booleanValue();
+	}
+
 	public void mkdirs(File todirpath) throws Exception {
 		todirpath = makeAbsolute(todirpath, toSite);
 		// If it doesn't already exist, try to create it
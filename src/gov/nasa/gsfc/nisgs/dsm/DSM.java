@@ -9,6 +9,11 @@ import java.sql.*;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import gov.nasa.gsfc.nisgs.dsm.DsmProperties;
 import gov.nasa.gsfc.nisgs.dsm.FileMover;
 import gov.nasa.gsfc.nisgs.properties.Utility;
@@ -23,19 +28,35 @@ import gov.nasa.gsfc.nisgs.properties.Utility;
  * you should instantiate more than one DSM object.
  * @version 3.0 Added support for transfer commands
  * @version 3.22 Fixed an infinite blocking problem in all fetchProduct methods.
+ * @version 3.23 fetchProduct methods wait on ProductNotifier instead of sleep-polling.
+ * @version 3.23 Added copyProductAsync; transfers are watched by one TransferWatcher.
+ * @version 3.23 The preferred constructor borrows its connection from ConnectionPool.
+ *      Helpers and getConnection() callers get a ConnectionHandle, which
+ *      stops working when the DSM is disposed.
+ * @version 3.23 Added getProducts() for many product IDs at once.
+ * @version 3.23 Products load their rarely used parts on first use; see
+ *      setEagerLoading().
+ * @version 3.23 Added storeProducts() to store many products at once.
+ * @version 3.23 Added getTLEElements(), backed by TLECache.
  */
 public class DSM implements AutoCloseable
 {
     private static final int ONE_SECOND = 1000;
     private int timeQuota = 300 * ONE_SECOND;
     private int timeSleep = 5 * ONE_SECOND;
+    private static final int EVENT_RECHECK = 60 * ONE_SECOND;
     private String thisSite;
     private String thisGroup;
     private String thisUser;
     private String thisPid;
     protected DsmProperties dsmProperties;
+    private boolean pooled = false;
+    // What helpers and callers get instead of the connection itself
+    protected Connection connection;
     protected AncillaryDepot ancillaryDepot;
     protected Reservation reservation;
+    private TransferWatcher transferWatcher;
+    private ProductLoader productLoader;
     protected File rootDataDirectory;
 
     /**
@@ -75,11 +96,20 @@ public class DSM implements AutoCloseable
     {
         thisGroup = myGroup;
         thisUser = myName;
-        dsmProperties = new DsmProperties();
-	thisSite = dsmProperties.getSite();
-        String dir = dsmProperties.getLocalDataDirectory();
-        rootDataDirectory = new File(dir);
-        finishInit(dsmProperties.getIS_Site());
+        dsmProperties = ConnectionPool.borrow();
+        pooled = true;
+        try
+        {
+            thisSite = dsmProperties.getSite();
+            String dir = dsmProperties.getLocalDataDirectory();
+            rootDataDirectory = new File(dir);
+            finishInit(dsmProperties.getIS_Site());
+        }
+        catch (Exception e)
+        {
+            abandon();
+            throw e;
+        }
     }
 
     /**
@@ -112,8 +142,17 @@ public class DSM implements AutoCloseable
         thisUser = myName;
         thisSite = mySite;
 	dsmProperties = new DsmProperties(mySite, dbhost, dbuser, dbpassword);
+	dsmProperties.initializeConnection();
 
-        finishInit("IS");
+        try
+        {
+            finishInit("IS");
+        }
+        catch (Exception e)
+        {
+            abandon();
+            throw e;
+        }
     }
 
     /**
@@ -143,22 +182,52 @@ public class DSM implements AutoCloseable
     private void finishInit(String informationServicesSite)
 	throws Exception
     {
-	dsmProperties.initializeConnection();
+        connection = ConnectionHandle.wrap(dsmProperties.getConnection());
+        transferWatcher = new TransferWatcher(thisSite);
+        productLoader = new ProductLoader(this);
         ancillaryDepot = new AncillaryDepot(thisSite,
-					    dsmProperties.getConnection(),
+					    connection,
 					    rootDataDirectory,
-					    informationServicesSite);
-        reservation = new Reservation(dsmProperties.getConnection(),thisSite, informationServicesSite);
+					    informationServicesSite,
+					    transferWatcher);
+        reservation = new Reservation(connection,thisSite, informationServicesSite,
+                                      transferWatcher, productLoader);
+    }
+
+    /**
+     * Give back the connection of a DSM whose constructor failed.
+     */
+    private void abandon()
+    {
+        try { dispose(); }
+        catch (Exception e) {}
     }
 
 
 
     /**
-     * Shut down the DSM object. This will close the network connection.
+     * Shut down the DSM object. This will return the network connection to
+     * the pool (or close it, if it was not pooled). Uncommitted work is
+     * rolled back. Calling it again does nothing.
      */
     public void dispose() throws Exception
     {
-	dsmProperties.dispose();
+        DsmProperties dsmp;
+        synchronized (this)
+        {
+            dsmp = dsmProperties;
+            dsmProperties = null;
+        }
+        if (dsmp == null) return;
+        ConnectionHandle.release(connection);
+        if (transferWatcher != null) transferWatcher.dispose();
+        if (pooled)
+            ConnectionPool.release(dsmp);
+        else
+        {
+            StatementCache.clear(dsmp.getConnection());
+            dsmp.dispose();
+        }
     }
 
     /**
@@ -231,6 +300,8 @@ public class DSM implements AutoCloseable
     /**
      * Set the number of seconds between attempts that reserveProduct or fetchProduct
      * waits before trying to reserve or fetch a product. The default is 5 seconds.
+     * fetchProduct only polls when product notification is unavailable;
+     * otherwise it is woken when the product is stored.
      */
     public void setTimeSleep(int seconds)
     {
@@ -238,6 +309,19 @@ public class DSM implements AutoCloseable
         timeSleep = seconds * ONE_SECOND;
     }
 
+    /**
+     * Choose whether products this DSM gets, fetches or reserves are read
+     * completely at once (eager), or read their thumbnails, contributors,
+     * ancestors, subproduct attributes and marker ID from the database the
+     * first time one of them is asked for. The default is not eager, which
+     * makes reserving faster for stations that only use the resources and
+     * the pass. DSMAdministrator is eager.
+     */
+    public void setEagerLoading(boolean eager)
+    {
+        productLoader.setEager(eager);
+    }
+
     /**
      * This method allows convenient control of database commit behavior
      */
@@ -280,6 +364,32 @@ public class DSM implements AutoCloseable
         return storeProduct(product, true);
     }
 
+    /**
+     * Store many new products in the DSM database at once. This is much
+     * faster than calling storeProduct() for each one. Either all of the
+     * products are stored or, if there is an exception, none of them is.
+     * @param products Product objects
+     * @param commitp boolean controlling whether we should commit this store now
+     * @return the product IDs, in the order of the products.
+     */
+    public List<String> storeProducts(java.util.Collection<Product> products, boolean commitp)
+	throws Exception
+    {
+        return ProductStore.storeAll(dsmProperties.getConnection(),
+                                     products,thisSite,thisUser,commitp);
+    }
+
+    /**
+     * Store many new products in the DSM database, and commit by default.
+     * @param products Product objects
+     * @return the product IDs, in the order of the products.
+     */
+    public List<String> storeProducts(java.util.Collection<Product> products)
+	throws Exception
+    {
+        return storeProducts(products, true);
+    }
+
     /**
      * Get a product object from the database by its unique product ID.
      * No files are copied.
@@ -289,7 +399,21 @@ public class DSM implements AutoCloseable
      */
     public Product getProduct(String productID) throws Exception
     {
-        return queryProduct("SELECT * FROM Products WHERE id=" + productID);
+        return ProductFactory.getProduct(dsmProperties.getConnection(),thisSite,productID,
+                                         productLoader);
+    }
+
+    /**
+     * Get many product objects from the database by their product IDs.
+     * No files are copied. This is much faster than calling getProduct()
+     * for each ID.
+     * The products are read completely, with batched queries.
+     * @param productIDs Product IDs
+     * @return The products that exist, in the order of productIDs.
+     */
+    public List<Product> getProducts(List<String> productIDs) throws Exception
+    {
+        return ProductFactory.makeProducts(dsmProperties.getConnection(),thisSite,productIDs);
     }
 
     /**
@@ -348,51 +472,30 @@ public class DSM implements AutoCloseable
      * @return a Product object or null if the product is unavailable within the
      *      allotted time.
      */
-    public Product fetchProduct(String productID) throws Exception
+    public Product fetchProduct(final String productID) throws Exception
     {
-        Product product = getProduct(productID);
+        Product product = waitForProduct(
+                ProductNotifier.register(dsmProperties.getConnection(), productID),
+                new ProductLookup() {
+                    public Product get() throws Exception {
+                        return getProduct(productID);
+                    }
+                });
 
-        if (product == null) {
-	    int attempts = timeQuota / timeSleep;
-	    for (int n = 0; n < attempts; n++) {
-		try { Thread.sleep((long)timeSleep); }
-		catch (InterruptedException ie) {}
-		product = getProduct(productID);
-		if (product != null) break;
-	    }
-	}
         if ((product != null) && !product.resourcesAreLocal()) {
-	    // Reservation.copyProduct() can wait forever, so we have to
-	    // subthread it in the usual Java verbose manner...
-	    class CopyProduct extends Thread
-	    {
-		String productID;
-		CopyProduct(String productID) {
-		    this.productID = productID;
-		}
-		public Exception exception = null;
-		public Product product = null;
-		public void run() {
-		    try {
-			product =  reservation.copyProduct(productID);
-		    }
-		    catch (Exception e) {
-			exception = e;
-		    }
-		}
-	    };
-	    CopyProduct cp = new CopyProduct(productID);
-	    cp.start();
-	    cp.join(timeQuota);
-
-	    if(cp.isAlive()) {
-		cp.interrupt();
+	    // The copy can wait forever, so we bound it by the time quota
+	    CompletableFuture<Product> copy = reservation.copyProductAsync(productID);
+	    try {
+		product = copy.get(timeQuota, TimeUnit.MILLISECONDS);
+	    }
+	    catch (TimeoutException te) {
+		copy.cancel(true);
 		throw new Exception("Reservation.CopyProduct timed out");
 	    }
-	    if(cp.exception != null)
-		throw cp.exception;
-
-	    product = cp.product;
+	    catch (ExecutionException ee) {
+		Throwable t = ee.getCause();
+		throw (t instanceof Exception)? (Exception)t : ee;
+	    }
         }
         return product;
     }
@@ -401,7 +504,7 @@ public class DSM implements AutoCloseable
      * Fetch the product for this product type and this pass.
      * The DSM copies the product to the local site, which is the same site as
      * identified in the constructor.
-     * It will poll the database and wait for the product to appear.
+     * It waits for the product to appear, up to the time quota.
      * @param productType A product type
      * @param pass A pass
      * @return A product of this product type and linked to the specified pass.
@@ -409,20 +512,16 @@ public class DSM implements AutoCloseable
      *      first one that the database returns. It returns null if no product
      *      satisfies the conditions within the allotted time.
      */
-    public Product fetchProduct(String productType, Pass pass) throws Exception
+    public Product fetchProduct(final String productType, final Pass pass) throws Exception
     {
-        Product product = getProduct(productType,pass);
-        if (product == null)
-        {
-            int attempts = timeQuota / timeSleep;
-            for (int n = 0; n < attempts; n++)
-            {
-                try { Thread.sleep((long)timeSleep); }
-                catch (InterruptedException ie) {}
-                product = getProduct(productType,pass);
-                if (product != null) break;
-            }
-        }
+        Product product = waitForProduct(
+                ProductNotifier.register(dsmProperties.getConnection(),
+                                         productType, pass.getId()),
+                new ProductLookup() {
+                    public Product get() throws Exception {
+                        return getProduct(productType,pass);
+                    }
+                });
         if ((product != null) && !product.resourcesAreLocal())
         {
             product = reservation.copyProduct(product.getId());
@@ -435,7 +534,7 @@ public class DSM implements AutoCloseable
      * end time that brackets this time.
      * The DSM copies the product to the local site, which is the same site as
      * identified in the constructor.
-     * It will poll the database and wait for the product to appear.
+     * It waits for the product to appear, up to the time quota.
      * @param productType A product type
      * @param pass A pass
      * @param time A date and time
@@ -445,26 +544,97 @@ public class DSM implements AutoCloseable
      *      first one that the database returns. It returns null if no product
      *      satisfies the conditions within the allotted time.
      */
-    public Product fetchProduct(String productType, Pass pass, java.util.Date time)
+    public Product fetchProduct(final String productType, final Pass pass,
+                                final java.util.Date time)
+            throws Exception
+    {
+        Product product = waitForProduct(
+                ProductNotifier.register(dsmProperties.getConnection(),
+                                         productType, pass.getId()),
+                new ProductLookup() {
+                    public Product get() throws Exception {
+                        return getProduct(productType,pass,time);
+                    }
+                });
+        if ((product != null) && !product.resourcesAreLocal())
+        {
+            product = reservation.copyProduct(product.getId());
+        }
+        return product;
+    }
+
+    /**
+     * Start copying a product to the local site, which is the same site as
+     * identified in the constructor, and return without waiting.
+     * Unlike fetchProduct, it does not wait for the product to exist, and
+     * it has no time limit; use get(timeout, unit) on the future for one.
+     * Any number of copies may be in flight at once; they are all watched
+     * by one thread, which completes each future when DSMR finishes it.
+     * @param productID A product ID string that uniquely identifies a product.
+     * @return a future for the Product object with local resources. It
+     *      completes with null if DSMR could not copy the product, and
+     *      exceptionally if this DSM is disposed first.
+     */
+    public CompletableFuture<Product> copyProductAsync(String productID) throws Exception
+    {
+        return reservation.copyProductAsync(productID);
+    }
+
+    /**
+     * One of the getProduct queries, as seen by waitForProduct.
+     */
+    private interface ProductLookup
+    {
+        Product get() throws Exception;
+    }
+
+    /**
+     * Run the lookup until it finds a product or timeQuota runs out.
+     * Between lookups we block on the ProductNotifier, which wakes us when
+     * a matching product is stored, and look again anyway every
+     * EVENT_RECHECK as a safety net. If the notifier is unavailable
+     * (waiter is null or it fails later) we poll every timeSleep instead.
+     */
+    private Product waitForProduct(ProductNotifier.Waiter waiter, ProductLookup lookup)
             throws Exception
     {
-        Product product = getProduct(productType,pass,time);
-        if (product == null)
+        try
         {
-            int attempts = timeQuota / timeSleep;
-            for (int n = 0; n < attempts; n++)
+            Product product = lookup.get();
+            long deadline = System.currentTimeMillis() + (long)timeQuota;
+            while (product == null)
             {
-                try { Thread.sleep((long)timeSleep); }
+                long now = System.currentTimeMillis();
+                if (now >= deadline) break;
+                boolean stored = false;
+                try
+                {
+                    if (waiter != null)
+                    {
+                        long until = Math.min(deadline, now + (long)EVENT_RECHECK);
+                        stored = ProductNotifier.await(dsmProperties.getConnection(),
+                                                       waiter, until);
+                        if (!stored && System.currentTimeMillis() < until)
+                        {
+                            // The notifier gave up on us
+                            ProductNotifier.unregister(waiter);
+                            waiter = null;
+                        }
+                    }
+                    else
+                    {
+                        Thread.sleep(Math.min((long)timeSleep, deadline - now));
+                    }
+                }
                 catch (InterruptedException ie) {}
-                product = getProduct(productType,pass,time);
-                if (product != null) break;
+                product = lookup.get();
             }
+            return product;
         }
-        if ((product != null) && !product.resourcesAreLocal())
+        finally
         {
-            product = reservation.copyProduct(product.getId());
+            ProductNotifier.unregister(waiter);
         }
-        return product;
     }
 
     /**
@@ -481,6 +651,23 @@ public class DSM implements AutoCloseable
         return reservation.reserveProduct(thisGroup,productType,otherTypes, timeSleep);
     }
 
+    /**
+     * Get up to maxCount products of type productType that are unmarked by
+     * this group, in one pass over the candidate list. It marks the products
+     * with this group name, and you must release or fail each one.
+     * The DSM copies the products to the local site. This method blocks
+     * until at least one product is available.
+     * @param productType A product type
+     * @param otherTypes space-separated list of other product types
+     * @param maxCount The most products to reserve in this call
+     * @return A list of one to maxCount products.
+     */
+    public List<Product> reserveProducts(String productType, String otherTypes, int maxCount)
+	throws Exception
+    {
+        if (maxCount < 1) maxCount = 1;
+        return reservation.reserveProducts(thisGroup,productType,otherTypes,maxCount,timeSleep);
+    }
 
     /**
      * Get a product of type productType that is unmarked by this group.
@@ -746,6 +933,7 @@ public class DSM implements AutoCloseable
         String id = Utility.getLastAutoIncrementedValue(statement);
         pass.setId(id);
         statement.close();
+        PassCache.invalidate(id);
         return id;
     }
 
@@ -1130,6 +1318,34 @@ public class DSM implements AutoCloseable
         return getSatTimedAncillary("drl.tle",product.getStartTime(),product.getSpacecraft());
     }
 
+    /**
+     * Get a spacecraft's TLE elements for a time. It finds the TLE file the
+     * way getTLE() does, then picks the spacecraft's element set whose epoch
+     * is nearest the time. Parsed TLE files are kept in TLECache.
+     * @param time A date and time for the TLE
+     * @param spacecraft The spacecraft name, as the TLE file spells it
+     * @return The spacecraft name and lines 1 and 2 of its elements, or null
+     *      if there is no TLE file or it does not hold the spacecraft.
+     */
+    public String[] getTLEElements(java.util.Date time, String spacecraft)
+            throws Exception
+    {
+        String path = getTLE(time, spacecraft);
+        return (path == null)? null :
+            TLECache.getElements(new File(path), spacecraft, time);
+    }
+
+    /**
+     * Get TLE elements for a product's spacecraft at its start time.
+     * @param product A product
+     * @return The spacecraft name and lines 1 and 2 of its elements, or null
+     *      if there is no TLE file or it does not hold the spacecraft.
+     */
+    public String[] getTLEElements(Product product) throws Exception
+    {
+        return getTLEElements(product.getStartTime(), product.getSpacecraft());
+    }
+
     /**
      * Put a TLE file into the DSM database. The DSM assumes the TLE file is
      * on the local computer. It does not verify the file's existence.
@@ -1141,6 +1357,7 @@ public class DSM implements AutoCloseable
             throws Exception
     {
         ancillaryDepot.storeSatTimeAncillary("drl.tle",spacecraft,time,path);
+        TLECache.invalidate(new File(path));
     }
 
     /**
@@ -1154,6 +1371,7 @@ public class DSM implements AutoCloseable
      */
     public boolean deleteTLE(String filename) throws Exception
     {
+        TLECache.invalidateName(filename);
         return deleteAncillary(filename,"SatTimeAncillaries","SatTimeAncillarySites");
     }
 
@@ -1181,6 +1399,7 @@ public class DSM implements AutoCloseable
             Utility.executeUpdate(s, "DELETE FROM " + siteTable + " WHERE aid=" +
                     aid + " AND site=" + qmysite);
             Utility.commitConnection(dsmProperties.getConnection());
+            AncillaryCache.forget(table);
         }
         return ok;
     }
@@ -1197,7 +1416,7 @@ public class DSM implements AutoCloseable
         if (r.next())
         {
             product = ProductFactory.makeProduct(dsmProperties.getConnection(),
-						 thisSite,r);
+						 thisSite,r,productLoader);
         }
         s.close();
         return product;
@@ -1287,8 +1506,10 @@ public class DSM implements AutoCloseable
 	    overID = deleteFileRecordGuts(do_commit, stmt, rs,
 					  "TimeAncillarySites", "aid",
 					  "TimeAncillaries");
-	    if(overID != null)
+	    if(overID != null) {
+		AncillaryCache.forget("TimeAncillaries");
 		return true;
+	    }
 
 	    // Then SatTimeAncillaries (note the constant '' for overID)
 	    finderq =
@@ -1304,8 +1525,10 @@ public class DSM implements AutoCloseable
 	    overID = deleteFileRecordGuts(do_commit, stmt, rs, 
 					  "SatTimeAncillarySites", "aid",
 					  "SatTimeAncillaries");
-	    if(overID != null)
+	    if(overID != null) {
+		AncillaryCache.forget("SatTimeAncillaries");
 		return true;
+	    }
 	}
 	finally {
 	    stmt.close();
@@ -1399,6 +1622,9 @@ public class DSM implements AutoCloseable
 	// The usual crap to ensure this statement gets closed...
 	Statement stmt = dsmProperties.getConnection().createStatement();
 	try {
+	    // Those products are fair game for the group again
+	    WorkQueue.requeue(stmt, "m.location = " + Utility.quote(oldLocation)
+			      + " AND m.status = 0");
 	    result = Utility.executeUpdate(stmt, remstmt);
             Utility.commitConnection(dsmProperties.getConnection());
 	}
@@ -12,6 +12,10 @@ import gov.nasa.gsfc.nisgs.properties.Utility;
  * Only DSM agents, servers, and administrative tools should use it.
  * It needs mysql-jdbc.jar.
  * @version 3.0 Added support for transfer commands and rollbacks.
+ * @version 3.23 Products are loaded eagerly (see DSM.setEagerLoading).
+ * @version 3.23 Added iteratePasses, iterateProducts and
+ *      iterateProductsByAgent, which read one page at a time.
+ * @version 3.23 Added queryProductSummaries for product lists.
  */
 public final class DSMAdministrator extends DSM
 {
@@ -32,6 +36,7 @@ public final class DSMAdministrator extends DSM
     public DSMAdministrator(String myGroup, String myName) throws Exception
     {
         super(myGroup,myName);
+        setEagerLoading(true);
     }
 
     /**
@@ -54,11 +59,16 @@ public final class DSMAdministrator extends DSM
             String dbhost) throws Exception
     {
         super(mySite,myGroup,myName,dbhost,"dsm","b28c935");
+        setEagerLoading(true);
     }
 
+    /**
+     * Get this DSM's database connection. It stops working when the DSM
+     * is disposed.
+     */
     public Connection getConnection()
     {
-	return dsmProperties.getConnection();
+	return connection;
     }
 
     /**
@@ -87,6 +97,28 @@ public final class DSMAdministrator extends DSM
 	return result;
     }
 
+    /**
+     * Set or clear the delete protection of a pass, in the database and in
+     * the pass object. It does not commit.
+     */
+    public void updatePassDeleteProtection(Pass pass, boolean protect) throws SQLException
+    {
+        update("UPDATE Passes SET deleteProtected=" + (protect? "1" : "0")
+               + " WHERE id=" + pass.getId());
+        pass.setDeleteProtection(protect);
+        PassCache.invalidate(pass.getId());
+    }
+
+    /**
+     * Delete a pass row. The products of the pass are not touched; remove
+     * them first. It does not commit.
+     */
+    public void deletePass(Pass pass) throws SQLException
+    {
+        update("DELETE FROM Passes WHERE id=" + pass.getId());
+        PassCache.invalidate(pass.getId());
+    }
+
     /**
      * A generic database method to commit updates used by DSM agents only.
      */
@@ -127,6 +159,81 @@ public final class DSMAdministrator extends DSM
         return queryProducts(sql);
     }
 
+    /**
+     * Get summaries of the products matching a WHERE condition on the
+     * Products table, in product ID order. This is one query, and a summary
+     * is a small fraction of the size of a Product, so it is the way to
+     * list or scan products when their resources and lineage are not needed.
+     * @param whereCondition an SQL condition on Products columns, such as
+     *      "pass=12", or null for every product.
+     */
+    public java.util.List<ProductSummary> queryProductSummaries(String whereCondition)
+            throws Exception
+    {
+        String sql = ProductSummary.SELECT
+            + ((whereCondition == null)? "" : " WHERE " + whereCondition)
+            + " ORDER BY Products.id";
+        java.util.List<ProductSummary> list = new java.util.ArrayList<ProductSummary>();
+        Statement s = dsmProperties.getConnection().createStatement();
+        try
+        {
+            ResultSet r = Utility.executeQuery(s, sql);
+            while (r.next())
+            {
+                list.add(new ProductSummary(r));
+            }
+        }
+        finally
+        {
+            s.close();
+        }
+        return list;
+    }
+
+    /**
+     * Iterate over the products that were put into the database by the
+     * named agent, in product ID order, reading one page at a time.
+     */
+    public java.util.Iterator<Product> iterateProductsByAgent(String agent)
+    {
+        return iterateProducts("agent=" + Utility.quote(agent));
+    }
+
+    /**
+     * Iterate over the products matching a WHERE condition on the Products
+     * table, in product ID order. Unlike queryProducts, this reads
+     * dsm.pageSize products at a time (with their other tables, in
+     * batches), so memory use does not grow with the archive.
+     * @param whereCondition an SQL condition on Products columns, such as
+     *      "pass=12", or null for every product.
+     */
+    public java.util.Iterator<Product> iterateProducts(String whereCondition)
+    {
+        final String sql = "SELECT * FROM Products WHERE "
+            + ((whereCondition == null)? "" : "(" + whereCondition + ") AND ")
+            + "id>? ORDER BY id LIMIT " + PageIterator.PAGE_SIZE;
+        return new PageIterator<Product>() {
+            protected java.util.List<Product> nextPage(long lastId) throws Exception
+            {
+                ResultSet r = StatementCache.query(dsmProperties.getConnection(), sql,
+                                                   Long.valueOf(lastId));
+                try
+                {
+                    return ProductFactory.makeProducts(dsmProperties.getConnection(),
+                                                       getSite(),r);
+                }
+                finally
+                {
+                    r.close();
+                }
+            }
+            protected String idOf(Product p)
+            {
+                return p.getId();
+            }
+        };
+    }
+
     /**
      * Create a new product type and add it to the ProductTypes table.
      * @param productType a reference to a ProductType object.
@@ -183,6 +290,38 @@ public final class DSMAdministrator extends DSM
         return list;
     }
 
+    /**
+     * Iterate over all passes in pass ID order, reading one page at a time.
+     */
+    public java.util.Iterator<Pass> iteratePasses()
+    {
+        return new PageIterator<Pass>() {
+            protected java.util.List<Pass> nextPage(long lastId) throws Exception
+            {
+                java.util.List<Pass> page = new java.util.ArrayList<Pass>(PAGE_SIZE);
+                ResultSet r = StatementCache.query(dsmProperties.getConnection(),
+                        "SELECT * FROM Passes WHERE id>? ORDER BY id LIMIT " + PAGE_SIZE,
+                        Long.valueOf(lastId));
+                try
+                {
+                    while (r.next())
+                    {
+                        page.add(new Pass(r));
+                    }
+                }
+                finally
+                {
+                    r.close();
+                }
+                return page;
+            }
+            protected String idOf(Pass p)
+            {
+                return p.getId();
+            }
+        };
+    }
+
     /**
      * Create a new station and add it to the Stations table. A station entry
      * contains more descriptive information about a station. A product does
@@ -220,7 +359,7 @@ public final class DSMAdministrator extends DSM
     public void insertAncillarySiteUpdate(String siteTable, String site,
             String directoryPath, String ancillaryId, boolean doCommit) throws Exception
     {
-        String dirId = Utility.getDirectoryId(dsmProperties.getConnection(),directoryPath,false);
+        String dirId = DirectoryCache.getId(dsmProperties.getConnection(),directoryPath);
         String sql = "INSERT INTO " + siteTable + " (aid,site,directory) VALUES (" +
                 ancillaryId + "," + Utility.quoteComma(site) + dirId + ")";
         Statement statement = dsmProperties.getConnection().createStatement();
@@ -236,7 +375,7 @@ public final class DSMAdministrator extends DSM
     public void insertResourceSiteUpdate(String site, String directoryPath,
             String resourceId, boolean doCommit) throws Exception
     {
-        String dirId = Utility.getDirectoryId(dsmProperties.getConnection(),directoryPath,false);
+        String dirId = DirectoryCache.getId(dsmProperties.getConnection(),directoryPath);
         String creation = Utility.format(new java.util.Date());
         StringBuffer sb = new StringBuffer(512);
         sb.append("INSERT INTO ResourceSites (resource,site,directory,creation) VALUES (");
@@ -255,19 +394,21 @@ public final class DSMAdministrator extends DSM
 
     /**
      * Issue a SQL query (select) statement directly to the DSM database
-     * to get a list of products.
+     * to get a list of products. The products' other tables are read in
+     * batches, not product by product.
      */
     public java.util.List<Product> queryProducts(String sqlQueryString)
             throws Exception
     {
         Statement s = dsmProperties.getConnection().createStatement();
-        ResultSet r = Utility.executeQuery(s, sqlQueryString);
-        java.util.List<Product> list = new java.util.LinkedList<Product>();
-        while (r.next())
+        try
         {
-            list.add(ProductFactory.makeProduct(dsmProperties.getConnection(),getSite(),r));
+            ResultSet r = Utility.executeQuery(s, sqlQueryString);
+            return ProductFactory.makeProducts(dsmProperties.getConnection(),getSite(),r);
+        }
+        finally
+        {
+            s.close();
         }
-        s.close();
-        return list;
     }
 }
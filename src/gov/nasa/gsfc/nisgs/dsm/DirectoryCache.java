@@ -0,0 +1,152 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import gov.nasa.gsfc.nisgs.properties.Utility;
+
+/**
+ * DirectoryCache maps directory paths to Directories IDs and back, so that
+ * storing and loading resources and ancillaries do not go to the
+ * Directories table every time. There is one cache per JVM.
+ * <p>
+ * A Directories row is never changed or deleted once made, so an entry
+ * never goes stale. A path we have not seen is looked up, and inserted if
+ * it is absent, on a connection borrowed from ConnectionPool and committed
+ * there. That way the ID we cache is real even if the caller's own
+ * transaction rolls back. An unused Directories row does no harm.
+ * <p>
+ * Each direction holds up to dsm.directoryCacheSize entries (default
+ * 10000), least recently used first out.
+ */
+public final class DirectoryCache
+{
+    private static final int SIZE =
+        Integer.getInteger("dsm.directoryCacheSize", 10000).intValue();
+
+    private static final Map<String,String> ids = lru();
+    private static final Map<String,String> paths = lru();
+
+    private static long hits = 0L;
+    private static long misses = 0L;
+
+    private DirectoryCache() {}
+
+    /**
+     * Get the Directories ID for a path, making a Directories row if there
+     * is none.
+     * @param connection the caller's connection, used only if no pooled
+     *      one can be had
+     */
+    static String getId(Connection connection, String path) throws Exception
+    {
+        synchronized (DirectoryCache.class)
+        {
+            String id = ids.get(path);
+            if (id != null)
+            {
+                ++hits;
+                return id;
+            }
+            ++misses;
+        }
+        DsmProperties dsmp;
+        try
+        {
+            dsmp = ConnectionPool.borrow();
+        }
+        catch (Exception e)
+        {
+            // Do it in the caller's transaction, and do not remember it
+            return Utility.getDirectoryId(connection,path,false);
+        }
+        String id;
+        try
+        {
+            id = Utility.getDirectoryId(dsmp.getConnection(),path,true);
+        }
+        catch (Exception e)
+        {
+            ConnectionPool.invalidate(dsmp);
+            throw e;
+        }
+        ConnectionPool.release(dsmp);
+        put(path,id);
+        return id;
+    }
+
+    /**
+     * Get the path of a Directories ID.
+     * @return the path, or null if there is no such directory
+     */
+    static String getPath(Connection connection, String id) throws SQLException
+    {
+        synchronized (DirectoryCache.class)
+        {
+            String path = paths.get(id);
+            if (path != null)
+            {
+                ++hits;
+                return path;
+            }
+            ++misses;
+        }
+        String path = null;
+        ResultSet r = StatementCache.query(connection,
+                "SELECT path FROM Directories WHERE id=?", id);
+        try
+        {
+            if (r.next())
+            {
+                path = r.getString(1);
+            }
+        }
+        finally
+        {
+            r.close();
+        }
+        if (path != null)
+        {
+            put(path,id);
+        }
+        return path;
+    }
+
+    /**
+     * Forget everything.
+     */
+    public static synchronized void clear()
+    {
+        ids.clear();
+        paths.clear();
+    }
+
+    /**
+     * Get the cache counters, for logging.
+     */
+    public static synchronized String getStatistics()
+    {
+        return "directories=" + ids.size() + "/" + paths.size()
+            + " hits=" + hits + " misses=" + misses;
+    }
+
+    private static synchronized void put(String path, String id)
+    {
+        ids.put(path,id);
+        paths.put(id,path);
+    }
+
+    private static Map<String,String> lru()
+    {
+        return new LinkedHashMap<String,String>(256, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+                return size() > SIZE;
+            }
+        };
+    }
+}
@@ -214,5 +214,15 @@ public final class DsmProperties extends NisgsProperties
     {
 	setProperty("PROCESSING_MODE", "cross-granule");
     }
+
+    /**
+     * Close the database connection, after dropping the statements
+     * StatementCache holds for it.
+     */
+    public void dispose() throws Exception
+    {
+	StatementCache.clear(getConnection());
+	super.dispose();
+    }
     
 }
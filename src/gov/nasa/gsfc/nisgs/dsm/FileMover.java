@@ -5,12 +5,24 @@ All rights reserved.
 */
 package gov.nasa.gsfc.nisgs.dsm;
 import gov.nasa.gsfc.nisgs.dsm.DsmProperties;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
 
 /**
  * Abstract class that handles moving files from Site to Site (Site
  * has its NISGS meaning here of machine/data-directory).
+ * @version 3.23 Files are written under a ".part" name and renamed into
+ *      place when complete. A move that dies partway leaves the part file,
+ *      and the next move of the same version of the file carries on from
+ *      its end instead of starting over. A ".part.id" file beside the part
+ *      file says which version that is.
  */
 
 public abstract class FileMover
@@ -19,6 +31,17 @@ public abstract class FileMover
 
     protected DsmProperties dsmp;
 
+    /**
+     * What a file is called while it is being written.
+     */
+    public static final String PART_SUFFIX = ".part";
+
+    /**
+     * What the file naming the source of a part file is called, after the
+     * part file's name.
+     */
+    public static final String PART_ID_SUFFIX = ".id";
+
     public FileMover(DsmProperties dsmp)
     {
 	this.dsmp = dsmp;
@@ -102,6 +125,99 @@ public abstract class FileMover
     }
 
 
+    /**
+     * The name a file has while it is being written.
+     */
+    protected static File partFile(File to)
+    {
+	return new File(to.getPath() + PART_SUFFIX);
+    }
+
+    /**
+     * The file beside a part file that names its source.
+     */
+    protected static File partIdFile(File part)
+    {
+	return new File(part.getPath() + PART_ID_SUFFIX);
+    }
+
+    /**
+     * Names one version of a source file, by its length and modification
+     * time.  Both must come from the source's own host, so that clock
+     * differences between hosts do not matter.
+     */
+    protected static String sourceId(long length, long modified)
+    {
+	return length + " " + modified;
+    }
+
+    /**
+     * Renames a finished part file to its real name, replacing any file
+     * already there.  Readers see either the old file or the whole new
+     * one, never a piece.
+     */
+    protected static void finishPart(File part, File to)
+	throws Exception
+    {
+	try {
+	    Files.move(part.toPath(), to.toPath(),
+		       StandardCopyOption.ATOMIC_MOVE,
+		       StandardCopyOption.REPLACE_EXISTING);
+	}
+	catch (AtomicMoveNotSupportedException e) {
+	    Files.move(part.toPath(), to.toPath(),
+		       StandardCopyOption.REPLACE_EXISTING);
+	}
+	partIdFile(part).delete();
+    }
+
+    /**
+     * How much of a local part file can be kept when moving the source
+     * with this length and modification time into it.  The part file is
+     * kept only if its id file names this same source; otherwise it is
+     * from some other version of the file, so it is thrown away and the
+     * id file is written for this one.
+     * @return the offset to carry on from
+     */
+    protected static long resumeOffset(File part, long length, long modified)
+	throws Exception
+    {
+	String id = sourceId(length, modified);
+	File idFile = partIdFile(part);
+	long have = part.length();
+	if(have > 0L && have <= length && id.equals(readLine(idFile)))
+	    return have;
+	part.delete();
+	FileWriter out = new FileWriter(idFile);
+	try {
+	    out.write(id);
+	    out.write("\n");
+	}
+	finally {
+	    out.close();
+	}
+	return 0L;
+    }
+
+    /**
+     * Get the first line of a small file, or null if it is not there.
+     */
+    private static String readLine(File f)
+    {
+	try {
+	    BufferedReader in = new BufferedReader(new FileReader(f));
+	    try {
+		return in.readLine();
+	    }
+	    finally {
+		in.close();
+	    }
+	}
+	catch (Exception e) {
+	    return null;
+	}
+    }
+
     /** Yes, I know the Right Pattern Thing to do here is to create a Factory
      *	class.  Go away, pattern junkies...
      */
@@ -151,9 +267,48 @@ public abstract class FileMover
      * of "a" at "b".  If "a" is a directory, "b" will be created as
      * a directory and will contain a copy of the contents of "a".
      * Can be used multiple times on the same FileMover object.
+     * Each file is written as "b.part" and renamed to "b" when complete;
+     * if "b.part" is left from a move that failed, this one resumes it.
      */
     public abstract void moveFile(File from, File to) throws Exception;
 
+    /**
+     * Moves File from to File to, for a caller that deletes from
+     * afterwards, as the ingest movers do.  Movers that can just rename
+     * the file do, and from is gone when this returns; the others copy
+     * it as moveFile() does.  Either way the caller should still delete
+     * from if it is there.
+     */
+    public void relocateFile(File from, File to) throws Exception
+    {
+	moveFile(from, to);
+    }
+
+    /**
+     * Moves many files, from.get(i) to to.get(i). One failed move does not
+     * stop the others. Movers that can move files side by side do; this
+     * one moves them one at a time.
+     * @return for each file, the Exception its move failed with, or null
+     *      if it was moved
+     */
+    public Exception[] moveFiles(List<File> from, List<File> to) throws Exception
+    {
+	if(from.size() != to.size())
+	    throw new IllegalArgumentException("moveFiles: " + from.size()
+					       + " sources but " + to.size()
+					       + " destinations");
+	Exception[] result = new Exception[from.size()];
+	for(int i = 0; i < result.length; i++) {
+	    try {
+		moveFile(from.get(i), to.get(i));
+	    }
+	    catch (Exception e) {
+		result[i] = e;
+	    }
+	}
+	return result;
+    }
+
     /**
      * Creates directories at the (presumably) writable destination.
      */
@@ -6,23 +6,35 @@ All rights reserved.
 package gov.nasa.gsfc.nisgs.dsm;
 import gov.nasa.gsfc.nisgs.dsm.DsmProperties;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import com.enterprisedt.net.ftp.*;
 
 /**
  * Fetches files from the IS via FTP.
+ * @version 3.23 Fetches into a local part file. For files of
+ *      dsm.ftp.resumeBytes or more, the part file's id file records the
+ *      remote SIZE and MDTM; if a part file of the same remote file is left
+ *      from a fetch that failed, a REST picks the transfer up at its end.
  */
 
 public class FtpISReader extends FtpMover
 {
     FtpISReader(DsmProperties dsmprops) throws Exception
     {
-	super(dsmprops);
-	ftp.login(dsmp.getProperty("IS_ftpReaderUser"),
-		  dsmp.getProperty("IS_ftpReaderPassword"));
-	ftp.setType(FTPTransferType.BINARY);
+	// The session is logged in and in BINARY mode
+	super(dsmprops,
+	      dsmprops.getProperty("IS_ftpReaderUser"),
+	      dsmprops.getProperty("IS_ftpReaderPassword"),
+	      null);
 	// ftp.setConnectMode(FTPConnectMode.PASV);
     }
 
+    protected FtpMover newSession() throws Exception
+    {
+	return new FtpISReader(dsmp);
+    }
+
     public void moveFile(File from, File to) throws Exception
     {
 	// Not much to do here - just force the paths to be absolute
@@ -64,7 +76,37 @@ public class FtpISReader extends FtpMover
 	    // In a bold attempt to get a useful message out of this mess
 	    String topath = to.getPath();
 	    try {
-		ftp.get(topath, fromPath);
+		File part = partFile(to);
+		long size = -1L;
+		long offset = 0L;
+		try {
+		    size = ftp.size(fromPath);
+		}
+		catch (FTPException e) {};
+		if(size >= RESUME_BYTES) {
+		    // Only keep a part file of this same remote file.  The
+		    // SIZE and MDTM both come from the server, so our clock
+		    // does not enter into it.
+		    long modified = -1L;
+		    try {
+			modified = ftp.modtime(fromPath).getTime();
+		    }
+		    catch (FTPException e) {};
+		    if(modified >= 0L)
+			offset = resumeOffset(part, size, modified);
+		}
+		if(offset == 0L || offset < size) {
+		    OutputStream out = new FileOutputStream(part, offset > 0L);
+		    try {
+			if(offset > 0L)
+			    ftp.restart(offset);
+			ftp.get(out, fromPath);
+		    }
+		    finally {
+			out.close();
+		    }
+		}
+		finishPart(part, to);
 	    }
 	    catch (FTPException ftpe) {
 		throw new Exception("While FTP reading from "
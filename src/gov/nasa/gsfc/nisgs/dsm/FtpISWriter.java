@@ -6,22 +6,33 @@ All rights reserved.
 package gov.nasa.gsfc.nisgs.dsm;
 import gov.nasa.gsfc.nisgs.dsm.DsmProperties;
 import java.io.File;
+import java.io.FileInputStream;
 import com.enterprisedt.net.ftp.*;
 
 
 /**
  * Writes files to the IS using FTP.
+ * @version 3.23 Files of dsm.ftp.resumeBytes (default 8 MB) or more are
+ *      written under a part name and renamed when complete. A remote id
+ *      file beside the part file records the local file's length and
+ *      modification time. If the part file is already there from a write
+ *      of the same local file that failed, the rest is appended to it.
  */
 
 public class FtpISWriter extends FtpMover
 {
     FtpISWriter(DsmProperties dsmprops) throws Exception
     {
-	super(dsmprops);
-	ftp.login(dsmp.getProperty("IS_ftpWriterUser"),
-		  dsmp.getProperty("IS_ftpWriterPassword"));
-	ftp.setType(FTPTransferType.BINARY);
-	ftp.setConnectMode(FTPConnectMode.PASV);
+	// The session is logged in and in BINARY mode
+	super(dsmprops,
+	      dsmprops.getProperty("IS_ftpWriterUser"),
+	      dsmprops.getProperty("IS_ftpWriterPassword"),
+	      FTPConnectMode.PASV);
+    }
+
+    protected FtpMover newSession() throws Exception
+    {
+	return new FtpISWriter(dsmp);
     }
 
     public void moveFile(File from, File to) throws Exception
@@ -53,7 +64,10 @@ public class FtpISWriter extends FtpMover
 	    String frompath = from.getPath();
 	    try {
 		ftp.chdir(topath);
-		ftp.put(frompath, to.getName());
+		if(from.length() < RESUME_BYTES)
+		    ftp.put(frompath, to.getName());
+		else
+		    putResumable(from, to.getName());
 	    }
 	    // In a bold attempt to get a useful message out of this mess
 	    // if it fails...
@@ -69,6 +83,56 @@ public class FtpISWriter extends FtpMover
 	}
     }
 
+    /**
+     * Writes a large file into the current directory as name.part,
+     * carrying on from the end of a name.part already there if its id
+     * file names this same local file, then renames it.  The server's
+     * size of the part file is the offset it has confirmed, so we append
+     * from there (APPE rather than REST+STOR, which not every server
+     * honors on uploads).  A part file of any other source is thrown away.
+     */
+    private void putResumable(File from, String name)
+	throws Exception
+    {
+	String partname = name + PART_SUFFIX;
+	String idname = partname + PART_ID_SUFFIX;
+	long length = from.length();
+	String id = sourceId(length, from.lastModified());
+	long offset = -1L;
+	try {
+	    if(id.equals(new String(ftp.get(idname), "US-ASCII").trim()))
+		offset = ftp.size(partname);
+	}
+	catch (FTPException e) {
+	    // No id file or no part file
+	};
+	if(offset < 0L || offset > length) {
+	    // Start over, saying which source the new part file is of
+	    try { ftp.delete(partname); } catch (FTPException e) {};
+	    ftp.put(id.getBytes("US-ASCII"), idname);
+	    offset = 0L;
+	}
+	if(offset < length) {
+	    FileInputStream in = new FileInputStream(from);
+	    try {
+		in.getChannel().position(offset);
+		ftp.put(in, partname, offset > 0L);
+	    }
+	    finally {
+		in.close();
+	    }
+	}
+	try {
+	    ftp.rename(partname, name);
+	}
+	catch (FTPException e) {
+	    // Some servers will not rename over an existing file
+	    ftp.delete(name);
+	    ftp.rename(partname, name);
+	}
+	try { ftp.delete(idname); } catch (FTPException e) {};
+    }
+
     public void mkdirs(File todirpath)
 	throws Exception
     {
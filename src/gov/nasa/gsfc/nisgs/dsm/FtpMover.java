@@ -6,30 +6,150 @@ All rights reserved.
 package gov.nasa.gsfc.nisgs.dsm;
 import gov.nasa.gsfc.nisgs.dsm.DsmProperties;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.enterprisedt.net.ftp.*;
 
 /**
  * Abstract class that moves files between locations managed by the DSM
  * using FTP.
  * Implementing classes actually only move data to and from the IS.
+ * @version 3.23 Sessions come from FtpSessionPool and go back to it on
+ *      quit(). moveFiles() uses up to dsm.ftp.streams sessions (default 4)
+ *      side by side.
  */
 
 public abstract class FtpMover extends FileMover
 {
+    private static final int STREAMS = Integer.getInteger("dsm.ftp.streams", 4).intValue();
+
+    /**
+     * Files this long or longer are moved so they can be resumed; for
+     * smaller ones the extra commands cost more than starting over.
+     */
+    protected static final long RESUME_BYTES =
+	Long.getLong("dsm.ftp.resumeBytes", 8L * 1024L * 1024L).longValue();
+
     protected FTPClient ftp;
+    private FtpSessionPool.Session session;
 
-    FtpMover(DsmProperties dsmprops) throws Exception
+    FtpMover(DsmProperties dsmprops, String user, String password,
+	     FTPConnectMode mode) throws Exception
     {
 	super(dsmprops);
-	ftp = new FTPClient();
-	ftp.setTimeout(100 * 1000);  //100 seconds for now
-	ftp.setRemoteHost(dsmp.getIS_Host());
-	ftp.connect();
+	session = FtpSessionPool.borrow(dsmp.getIS_Host(), user, password, mode);
+	ftp = session.ftp;
     }
 
+    /**
+     * Make another mover of the same kind, on its own session, for
+     * moveFiles().
+     */
+    protected abstract FtpMover newSession() throws Exception;
+
+    /**
+     * Gives the session back to the pool.
+     */
     public void quit() throws Exception
     {
-	ftp.quit();
+	if(session != null)
+	    FtpSessionPool.release(session);
+	session = null;
+    }
+
+    /**
+     * Gives the session back to the pool, or closes it if an Exception
+     * is in flight, since the session may be what broke.
+     */
+    public void quit(Exception primaryE) throws Exception
+    {
+	if(primaryE == null) {
+	    quit();
+	}
+	else if(session != null) {
+	    FtpSessionPool.invalidate(session);
+	    session = null;
+	}
+    }
+
+    /**
+     * Moves the files over up to dsm.ftp.streams sessions at once, this
+     * one and others from the pool. FTP carries one transfer at a time per
+     * session, so each stream is a session of its own. A stream whose
+     * session drops stops, and the others take up its files.
+     */
+    public Exception[] moveFiles(final List<File> from, final List<File> to)
+	throws Exception
+    {
+	final int n = from.size();
+	int streams = Math.min(STREAMS, n);
+	if(streams <= 1 || n != to.size())
+	    return super.moveFiles(from, to);
+
+	final Exception[] result = new Exception[n];
+	final boolean[] tried = new boolean[n];
+	final AtomicInteger next = new AtomicInteger(0);
+	List<FtpMover> movers = new ArrayList<FtpMover>(streams);
+	movers.add(this);
+	while(movers.size() < streams) {
+	    try {
+		movers.add(newSession());
+	    }
+	    catch (Exception e) {
+		// Go with the sessions we have
+		break;
+	    }
+	}
+
+	// Each stream takes the next file until there are none left
+	List<Thread> threads = new ArrayList<Thread>();
+	Runnable mine = null;
+	for(final FtpMover m : movers) {
+	    Runnable stream = new Runnable() {
+		    public void run() {
+			while(true) {
+			    int i = next.getAndIncrement();
+			    if(i >= n) return;
+			    tried[i] = true;
+			    try {
+				m.moveFile(from.get(i), to.get(i));
+			    }
+			    catch (Exception e) {
+				result[i] = e;
+				if(!m.ftp.connected()) return;
+			    }
+			}
+		    }
+		};
+	    if(m == this) {
+		mine = stream;
+	    }
+	    else {
+		Thread t = new Thread(stream, "FtpMover stream " + threads.size());
+		threads.add(t);
+		t.start();
+	    }
+	}
+	mine.run();
+	for(Thread t : threads)
+	    t.join();
+	for(FtpMover m : movers) {
+	    if(m != this)
+		m.quit(m.ftp.connected()? null : new Exception("session dropped"));
+	}
+	// Our own session may have dropped too; if so, do not let the
+	// caller's quit() put it back in the pool
+	if(!ftp.connected() && session != null) {
+	    FtpSessionPool.invalidate(session);
+	    session = null;
+	}
+
+	for(int i = 0; i < n; i++) {
+	    if(!tried[i])
+		result[i] = new Exception("Not moved: every FTP session failed");
+	}
+	return result;
     }
 
     public boolean exists(File to)
@@ -0,0 +1,333 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import com.enterprisedt.net.ftp.*;
+
+/**
+ * FtpSessionPool keeps logged-in FTP sessions to the IS, so that a FileMover
+ * that moves a few small files does not pay for a connect and login every
+ * time. FtpMover borrows a session when it is made and gives it back when
+ * it quits. There is one pool per JVM.
+ * <p>
+ * Sessions are pooled by host, user and connect mode. A session given back
+ * after an error is closed, not pooled. A session given back is put back in
+ * the root directory first, since movers chdir and mkdir relative to where
+ * they are. A session that has sat idle longer
+ * than dsm.ftp.checkMillis (default 5 seconds) is sent a NOOP before it is
+ * handed out again, and dropped if that fails. While sessions are idle, a
+ * daemon thread sends each a NOOP every dsm.ftp.keepAliveMillis (default
+ * 30 seconds) so the server does not time it out, and closes those idle
+ * longer than dsm.ftp.idleMillis (default 5 minutes). At most
+ * dsm.ftp.maxIdle sessions (default 4) per key are kept.
+ * @version 3.23 Added.
+ */
+public final class FtpSessionPool
+{
+    private static final int MAX_IDLE = Integer.getInteger("dsm.ftp.maxIdle", 4).intValue();
+    private static final long CHECK_MILLIS =
+        Long.getLong("dsm.ftp.checkMillis", 5000L).longValue();
+    private static final long KEEPALIVE_MILLIS =
+        Long.getLong("dsm.ftp.keepAliveMillis", 30L * 1000L).longValue();
+    private static final long IDLE_MILLIS =
+        Long.getLong("dsm.ftp.idleMillis", 5L * 60L * 1000L).longValue();
+    private static final int TIMEOUT = 100 * 1000;  //100 seconds for now
+
+    /**
+     * One FTP control connection, logged in.
+     */
+    static final class Session
+    {
+        final FTPClient ftp;
+        final String key;
+        long lastUsed;          // given back
+        long lastChecked;       // last known to answer
+
+        Session(FTPClient ftp, String key)
+        {
+            this.ftp = ftp;
+            this.key = key;
+            lastUsed = lastChecked = System.currentTimeMillis();
+        }
+    }
+
+    private static final Map<String,LinkedList<Session>> idle =
+        new HashMap<String,LinkedList<Session>>();
+    private static Thread sweeper = null;
+
+    private static long logins = 0L;
+    private static long reuses = 0L;
+    private static long failedChecks = 0L;
+    private static long closes = 0L;
+
+    private FtpSessionPool() {}
+
+    /**
+     * Get a session, pooled if there is a good one, else a new one.
+     * @param mode the connect mode, or null for the FTP client's default
+     */
+    static Session borrow(String host, String user, String password, FTPConnectMode mode)
+            throws Exception
+    {
+        String key = host + " " + user + " " + mode;
+        while (true)
+        {
+            Session s;
+            synchronized (FtpSessionPool.class)
+            {
+                LinkedList<Session> list = idle.get(key);
+                s = (list == null)? null : list.pollLast();
+            }
+            if (s == null)
+            {
+                break;
+            }
+            if (check(s))
+            {
+                synchronized (FtpSessionPool.class)
+                {
+                    ++reuses;
+                }
+                return s;
+            }
+        }
+
+        FTPClient ftp = new FTPClient();
+        ftp.setTimeout(TIMEOUT);
+        ftp.setRemoteHost(host);
+        ftp.connect();
+        try
+        {
+            ftp.login(user, password);
+            ftp.setType(FTPTransferType.BINARY);
+            if (mode != null)
+            {
+                ftp.setConnectMode(mode);
+            }
+        }
+        catch (Exception e)
+        {
+            close(ftp);
+            throw e;
+        }
+        synchronized (FtpSessionPool.class)
+        {
+            ++logins;
+        }
+        return new Session(ftp, key);
+    }
+
+    /**
+     * Give back a session that is in good order.
+     */
+    static void release(Session s)
+    {
+        try
+        {
+            s.ftp.chdir("/");
+        }
+        catch (Exception e)
+        {
+            close(s.ftp);
+            return;
+        }
+        s.lastUsed = s.lastChecked = System.currentTimeMillis();
+        synchronized (FtpSessionPool.class)
+        {
+            LinkedList<Session> list = idle.get(s.key);
+            if (list == null)
+            {
+                list = new LinkedList<Session>();
+                idle.put(s.key, list);
+            }
+            if (list.size() < MAX_IDLE)
+            {
+                list.addLast(s);
+                startSweeper();
+                return;
+            }
+        }
+        close(s.ftp);
+    }
+
+    /**
+     * Give back a session that may be broken. It is closed.
+     */
+    static void invalidate(Session s)
+    {
+        close(s.ftp);
+    }
+
+    /**
+     * Close every idle session.
+     */
+    public static void clear()
+    {
+        List<Session> all = new ArrayList<Session>();
+        synchronized (FtpSessionPool.class)
+        {
+            for (LinkedList<Session> list : idle.values())
+            {
+                all.addAll(list);
+            }
+            idle.clear();
+        }
+        for (Session s : all)
+        {
+            close(s.ftp);
+        }
+    }
+
+    /**
+     * Get the pool counters, for logging.
+     */
+    public static synchronized String getStatistics()
+    {
+        int n = 0;
+        for (LinkedList<Session> list : idle.values())
+        {
+            n += list.size();
+        }
+        return "idleSessions=" + n + " logins=" + logins + " reuses=" + reuses
+            + " failedChecks=" + failedChecks + " closes=" + closes;
+    }
+
+    /**
+     * Make sure a session that has been idle a while still answers.
+     */
+    private static boolean check(Session s)
+    {
+        if (System.currentTimeMillis() - s.lastChecked < CHECK_MILLIS)
+        {
+            return true;
+        }
+        try
+        {
+            s.ftp.noOperation();
+            s.lastChecked = System.currentTimeMillis();
+            return true;
+        }
+        catch (Exception e)
+        {
+            synchronized (FtpSessionPool.class)
+            {
+                ++failedChecks;
+            }
+            close(s.ftp);
+            return false;
+        }
+    }
+
+    private static void close(FTPClient ftp)
+    {
+        synchronized (FtpSessionPool.class)
+        {
+            ++closes;
+        }
+        try
+        {
+            ftp.quit();
+        }
+        catch (Exception e)
+        {
+            try { ftp.quitImmediately(); }
+            catch (Exception ee) {}
+        }
+    }
+
+    private static synchronized void startSweeper()
+    {
+        if (sweeper == null)
+        {
+            sweeper = new Thread(new Runnable() {
+                    public void run() {
+                        sweep();
+                    }
+                }, "FtpSessionPool");
+            sweeper.setDaemon(true);
+            sweeper.start();
+        }
+    }
+
+    /**
+     * The sweeper thread. It exits when no session is idle.
+     */
+    private static void sweep()
+    {
+        while (true)
+        {
+            try { Thread.sleep(Math.min(KEEPALIVE_MILLIS, IDLE_MILLIS)); }
+            catch (InterruptedException e) {}
+
+            // Take out the sessions due for attention, then work on them
+            // without the lock
+            long now = System.currentTimeMillis();
+            List<Session> expired = new ArrayList<Session>();
+            List<Session> due = new ArrayList<Session>();
+            synchronized (FtpSessionPool.class)
+            {
+                for (LinkedList<Session> list : idle.values())
+                {
+                    Iterator<Session> i = list.iterator();
+                    while (i.hasNext())
+                    {
+                        Session s = i.next();
+                        if (now - s.lastUsed >= IDLE_MILLIS)
+                        {
+                            expired.add(s);
+                            i.remove();
+                        }
+                        else if (now - s.lastChecked >= KEEPALIVE_MILLIS)
+                        {
+                            due.add(s);
+                            i.remove();
+                        }
+                    }
+                }
+            }
+            for (Session s : expired)
+            {
+                close(s.ftp);
+            }
+            for (Session s : due)
+            {
+                if (check(s))
+                {
+                    putBack(s);
+                }
+            }
+            synchronized (FtpSessionPool.class)
+            {
+                boolean any = false;
+                for (LinkedList<Session> list : idle.values())
+                {
+                    any |= !list.isEmpty();
+                }
+                if (!any)
+                {
+                    sweeper = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static synchronized void putBack(Session s)
+    {
+        LinkedList<Session> list = idle.get(s.key);
+        if (list == null)
+        {
+            list = new LinkedList<Session>();
+            idle.put(s.key, list);
+        }
+        list.addFirst(s);
+    }
+}
@@ -57,6 +57,8 @@ public class GCDatabase
         try
         {
 	    cleanTransferCommands(dsm);
+	    cleanProductEvents(dsm);
+	    cleanWorkQueue(dsm);
 	    cleanProducts(dsm);
 	    cleanPasses(dsm);
         }
@@ -164,6 +166,45 @@ public class GCDatabase
         dsm.commit();
     }
 
+    /**
+     * Delete old rows from the ProductEvents table. Waiters only care
+     * about recent events, so we do not keep them long.
+     */
+    private void cleanProductEvents(DSMAdministrator dsm) throws Exception
+    {
+        String cutoff = computeCutoff(config.getProperty("DSM_ProductEventsDaysRetention","1"));
+        try
+        {
+            dsm.update("DELETE FROM ProductEvents WHERE creation<" + Utility.quote(cutoff));
+            dsm.commit();
+        }
+        catch (java.sql.SQLException e)
+        {
+            // Older databases have no ProductEvents table
+            dsm.rollback();
+        }
+    }
+
+    /**
+     * Delete WorkQueue rows whose products are gone. removeOneProduct
+     * does this itself, but other product deleters do not.
+     */
+    private void cleanWorkQueue(DSMAdministrator dsm) throws Exception
+    {
+        try
+        {
+            dsm.update("DELETE WorkQueue FROM WorkQueue LEFT JOIN Products"
+                       + " ON WorkQueue.product=Products.id"
+                       + " WHERE Products.id IS NULL");
+            dsm.commit();
+        }
+        catch (java.sql.SQLException e)
+        {
+            // Older databases have no WorkQueue table
+            dsm.rollback();
+        }
+    }
+
     /**
      * Delete rows from the Passes table.
      */
@@ -177,6 +218,7 @@ public class GCDatabase
 				 + " WHERE Products.pass IS NULL"
 				 + " AND Passes.deleteProtected=0");
         dsm.commit();
+        if (deleted > 0) PassCache.clear();
     }
 
     /**
@@ -0,0 +1,154 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import gov.nasa.gsfc.nisgs.properties.Utility;
+
+/**
+ * GranuleIndex keeps the start and stop times of every product of one
+ * product type (or LIKE mask), sorted by start time, so that the granule
+ * reserve can find the granule before and after a candidate without a
+ * self-join on Products. It is not public.
+ * <p>
+ * refresh() only reads products with IDs above the highest one it has
+ * seen, and skips products marked for deletion. Products deleted or
+ * marked since linger until reload(); callers confirm what we find
+ * against the database, deleteMark included, and reload when an entry
+ * turns out stale.
+ */
+final class GranuleIndex
+{
+    /** One product's place in time. */
+    static final class Granule
+    {
+        final String id;
+        final String pass;
+        final String productType;
+        final long start;
+        final long stop;
+
+        Granule(String id, String pass, String productType, long start, long stop)
+        {
+            this.id = id;
+            this.pass = pass;
+            this.productType = productType;
+            this.start = start;
+            this.stop = stop;
+        }
+    }
+
+    /** The granules of one actual product type. */
+    private static final class Timeline
+    {
+        final TreeMap<Long,List<Granule>> byStart = new TreeMap<Long,List<Granule>>();
+        long maxDuration = 0L;
+    }
+
+    private final String qproductType;
+    private final String whereCompare;
+    private long lastId = 0L;
+    private final Map<String,Timeline> timelines = new HashMap<String,Timeline>();
+    private final Map<String,Granule> byId = new HashMap<String,Granule>();
+
+    /**
+     * @param qproductType a product type or LIKE mask, quoted
+     * @param whereCompare "=" or "LIKE"
+     */
+    GranuleIndex(String qproductType, String whereCompare)
+    {
+        this.qproductType = qproductType;
+        this.whereCompare = whereCompare;
+    }
+
+    /**
+     * Add the products stored since the last refresh.
+     */
+    void refresh(Statement s) throws SQLException
+    {
+        String sql = "SELECT id, pass, productType, startTime, stopTime FROM Products"
+            + " WHERE productType " + whereCompare + " " + qproductType
+            + " AND id > " + lastId
+            + " AND deleteMark = 0"
+            + " ORDER BY id";
+        ResultSet r = Utility.executeQuery(s, sql);
+        while (r.next())
+        {
+            long id = r.getLong(1);
+            Granule g = new Granule(r.getString(1), r.getString(2), r.getString(3),
+                                    r.getTimestamp(4).getTime(),
+                                    r.getTimestamp(5).getTime());
+            add(g);
+            lastId = Math.max(lastId, id);
+        }
+    }
+
+    /**
+     * Throw everything away and read it all again.
+     */
+    void reload(Statement s) throws SQLException
+    {
+        timelines.clear();
+        byId.clear();
+        lastId = 0L;
+        refresh(s);
+    }
+
+    /**
+     * @return the granule for this product ID, or null if we have not seen it
+     */
+    Granule get(String id)
+    {
+        return byId.get(id);
+    }
+
+    /**
+     * Find a granule of the same product type as "of" whose start and stop
+     * times strictly bracket time t. If there are several, we take the one
+     * that starts latest.
+     * @return the granule, or null if there is none
+     */
+    Granule covering(Granule of, long t)
+    {
+        Timeline tl = timelines.get(of.productType);
+        if (tl == null) return null;
+        // Nothing that starts before t - maxDuration can reach t
+        NavigableMap<Long,List<Granule>> before =
+            tl.byStart.subMap(t - tl.maxDuration, true, t, false).descendingMap();
+        for (List<Granule> gl : before.values())
+        {
+            for (Granule g : gl)
+            {
+                if (g.stop > t) return g;
+            }
+        }
+        return null;
+    }
+
+    private void add(Granule g)
+    {
+        Timeline tl = timelines.get(g.productType);
+        if (tl == null)
+        {
+            tl = new Timeline();
+            timelines.put(g.productType, tl);
+        }
+        List<Granule> gl = tl.byStart.get(g.start);
+        if (gl == null)
+        {
+            gl = new ArrayList<Granule>(1);
+            tl.byStart.put(g.start, gl);
+        }
+        gl.add(g);
+        tl.maxDuration = Math.max(tl.maxDuration, g.stop - g.start);
+        byId.put(g.id, g);
+    }
+}
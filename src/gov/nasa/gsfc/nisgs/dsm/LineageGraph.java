@@ -0,0 +1,468 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.io.File;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import gov.nasa.gsfc.nisgs.properties.Utility;
+
+/**
+ * LineageGraph holds the product ancestry (the Ancestors table) around a
+ * pass, a time range or a list of products in memory, so that deleting or
+ * reprocessing them does not cost one query per product.
+ * <p>
+ * Loading reads the products in scope with one query, then walks down to
+ * all their descendants, in any pass, one IN (...) query per generation.
+ * The parents of every product in the graph, the Algorithms table and
+ * the Markers rows on those products and parents come in a few more
+ * queries. After that, children, descendants, roots and controlling
+ * markers are answered from memory, and removeProducts() deletes with
+ * one statement per table per batch.
+ * <p>
+ * The graph is a snapshot. Make a new one for each job.
+ */
+public final class LineageGraph
+{
+    /** Most IDs we put in one IN (...) list. */
+    private static final int BATCH = 1000;
+
+    /** What we need to know about one product in the graph. */
+    private static final class Node
+    {
+        String pass;
+        String algorithm;
+        int markerId;
+        String subproduct;
+        final Set<String> parents = new HashSet<String>();
+        final Set<String> children = new LinkedHashSet<String>();
+    }
+
+    private final Map<String,Node> nodes = new LinkedHashMap<String,Node>();
+    private final Set<String> scope = new LinkedHashSet<String>();
+    private final Map<String,String> colonies = new HashMap<String,String>();
+    // product ID -> gopherColonies with a Markers row on it
+    private final Map<String,Set<String>> markers = new HashMap<String,Set<String>>();
+
+    private LineageGraph() {}
+
+    /**
+     * Load the graph for every product of a pass and all of their
+     * descendants.
+     */
+    public static LineageGraph forPass(Connection connection, String passId)
+            throws Exception
+    {
+        return load(connection, "pass=" + Utility.quote(passId));
+    }
+
+    /**
+     * Load the graph for every product that starts in [start,stop) and all
+     * of their descendants.
+     */
+    public static LineageGraph forTimeRange(Connection connection,
+            java.util.Date start, java.util.Date stop) throws Exception
+    {
+        return load(connection, "startTime>=" + Utility.quote(Utility.format(start))
+                    + " AND startTime<" + Utility.quote(Utility.format(stop)));
+    }
+
+    /**
+     * Load the graph for these products and all of their descendants.
+     */
+    public static LineageGraph forProducts(Connection connection,
+            Collection<String> productIds) throws Exception
+    {
+        LineageGraph g = new LineageGraph();
+        Statement s = connection.createStatement();
+        try
+        {
+            g.addNodes(s, productIds, true);
+            g.loadRest(s);
+        }
+        finally
+        {
+            s.close();
+        }
+        return g;
+    }
+
+    private static LineageGraph load(Connection connection, String condition)
+            throws Exception
+    {
+        LineageGraph g = new LineageGraph();
+        Statement s = connection.createStatement();
+        try
+        {
+            ResultSet r = Utility.executeQuery(s,
+                    "SELECT id,pass,algorithm,markerId,subproduct FROM Products WHERE "
+                    + condition);
+            while (r.next())
+            {
+                g.addNode(r);
+                g.scope.add(r.getString(1));
+            }
+            r.close();
+            g.loadRest(s);
+        }
+        finally
+        {
+            s.close();
+        }
+        return g;
+    }
+
+    /**
+     * Walk down from the nodes we have, then load parents, algorithms
+     * and markers.
+     */
+    private void loadRest(Statement s) throws Exception
+    {
+        // Descendants, one generation at a time
+        List<String> frontier = new ArrayList<String>(nodes.keySet());
+        while (!frontier.isEmpty())
+        {
+            Set<String> found = new LinkedHashSet<String>();
+            for (List<String> batch : batches(frontier))
+            {
+                ResultSet r = Utility.executeQuery(s,
+                        "SELECT product,ancestor FROM Ancestors WHERE ancestor IN "
+                        + inList(batch));
+                while (r.next())
+                {
+                    String child = r.getString(1);
+                    nodes.get(r.getString(2)).children.add(child);
+                    if (!nodes.containsKey(child)) found.add(child);
+                }
+                r.close();
+            }
+            frontier = addNodes(s, found, false);
+        }
+
+        // Everybody's parents, including ones outside the graph
+        List<String> all = new ArrayList<String>(nodes.keySet());
+        Set<String> withParents = new HashSet<String>(all);
+        for (List<String> batch : batches(all))
+        {
+            ResultSet r = Utility.executeQuery(s,
+                    "SELECT product,ancestor FROM Ancestors WHERE product IN " + inList(batch));
+            while (r.next())
+            {
+                String parent = r.getString(2);
+                nodes.get(r.getString(1)).parents.add(parent);
+                withParents.add(parent);
+            }
+            r.close();
+        }
+
+        ResultSet r = Utility.executeQuery(s, "SELECT name,gopherColony FROM Algorithms");
+        while (r.next())
+        {
+            colonies.put(r.getString(1), r.getString(2));
+        }
+        r.close();
+
+        for (List<String> batch : batches(new ArrayList<String>(withParents)))
+        {
+            r = Utility.executeQuery(s,
+                    "SELECT product,gopherColony FROM Markers WHERE product IN " + inList(batch));
+            while (r.next())
+            {
+                String pid = r.getString(1);
+                Set<String> m = markers.get(pid);
+                if (m == null)
+                {
+                    m = new HashSet<String>();
+                    markers.put(pid, m);
+                }
+                m.add(r.getString(2));
+            }
+            r.close();
+        }
+    }
+
+    /**
+     * Read the Products rows for IDs not yet in the graph.
+     * @return the IDs that were added
+     */
+    private List<String> addNodes(Statement s, Collection<String> ids, boolean inScope)
+            throws SQLException
+    {
+        List<String> added = new ArrayList<String>();
+        List<String> wanted = new ArrayList<String>();
+        for (String id : ids)
+        {
+            if (!nodes.containsKey(id)) wanted.add(id);
+        }
+        for (List<String> batch : batches(wanted))
+        {
+            ResultSet r = Utility.executeQuery(s,
+                    "SELECT id,pass,algorithm,markerId,subproduct FROM Products WHERE id IN "
+                    + inList(batch));
+            while (r.next())
+            {
+                String id = r.getString(1);
+                if (nodes.containsKey(id)) continue;
+                addNode(r);
+                added.add(id);
+                if (inScope) scope.add(id);
+            }
+            r.close();
+        }
+        return added;
+    }
+
+    private void addNode(ResultSet r) throws SQLException
+    {
+        Node n = new Node();
+        n.pass = r.getString(2);
+        n.algorithm = r.getString(3);
+        n.markerId = r.getInt(4);
+        n.subproduct = r.getString(5);
+        nodes.put(r.getString(1), n);
+    }
+
+    /**
+     * Get the IDs of every product in the graph.
+     */
+    public Set<String> products()
+    {
+        return new LinkedHashSet<String>(nodes.keySet());
+    }
+
+    /**
+     * Get the products in scope (in the pass, time range or list the graph
+     * was loaded for) that have no ancestors. These are the products that
+     * must be kept to reprocess a pass. See ProductFactory.rootProducts().
+     */
+    public Set<String> rootProducts()
+    {
+        Set<String> roots = new LinkedHashSet<String>();
+        for (String id : scope)
+        {
+            if (nodes.get(id).parents.isEmpty()) roots.add(id);
+        }
+        return roots;
+    }
+
+    /**
+     * Get the immediate children of a product.
+     */
+    public Set<String> children(String productId)
+    {
+        Node n = nodes.get(productId);
+        return (n == null)? new LinkedHashSet<String>() : new LinkedHashSet<String>(n.children);
+    }
+
+    /**
+     * Get all descendants of these products, not counting the products
+     * themselves unless one descends from another.
+     */
+    public Set<String> descendants(Collection<String> productIds)
+    {
+        Set<String> result = new LinkedHashSet<String>();
+        LinkedList<String> todo = new LinkedList<String>(productIds);
+        while (!todo.isEmpty())
+        {
+            Node n = nodes.get(todo.removeFirst());
+            if (n == null) continue;
+            for (String child : n.children)
+            {
+                // An Ancestors row may name a product that is gone
+                if (nodes.containsKey(child) && result.add(child)) todo.add(child);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The same as ProductFactory.findControllingMarker(), from memory.
+     * @return the marker, or null if the product has none
+     */
+    public MarkerRef findControllingMarker(String productId) throws Exception
+    {
+        Node n = nodes.get(productId);
+        if (n == null) return null;
+        String gopherColony = colonies.get(n.algorithm);
+        if (gopherColony == null)
+        {
+            if (!n.parents.isEmpty())
+                throw new Exception("Product " + productId + " has an algorithm name of "
+                                    + n.algorithm + " which is not in the Algorithms table");
+            return null;
+        }
+        int markerId = n.markerId;
+        if (markerId == 0)
+        {
+            for (String parent : n.parents)
+            {
+                Set<String> m = markers.get(parent);
+                if (m == null || !m.contains(gopherColony)) continue;
+                if (markerId != 0)
+                    throw new Exception("findControllingMarker: more than one marker entry for ancestors of "
+                                        + productId + " with gopherColony " + gopherColony);
+                markerId = Integer.parseInt(parent);
+            }
+            if (markerId == 0) return null;
+        }
+        return new MarkerRef(markerId, gopherColony);
+    }
+
+    /**
+     * Get the controlling markers of all these products.
+     */
+    public Set<MarkerRef> controllingMarkers(Collection<String> productIds) throws Exception
+    {
+        Set<MarkerRef> result = new HashSet<MarkerRef>();
+        for (String pid : productIds)
+        {
+            MarkerRef mr = findControllingMarker(pid);
+            if (mr != null) result.add(mr);
+        }
+        return result;
+    }
+
+    /**
+     * Remove these products and all their descendants from the database,
+     * as ProductFactory.removeProducts() does, but one statement per
+     * table for each batch of products. Passes left with no products are
+     * deleted. Commits, and then deletes the products' IS files if a
+     * FileMover is given.
+     * Does NOT observe the deleteProtected flag.
+     */
+    public void removeProducts(Connection connection, Collection<String> productIds,
+            FileMover fm) throws Exception
+    {
+        Set<String> doomed = new LinkedHashSet<String>();
+        for (String id : productIds)
+        {
+            if (nodes.containsKey(id)) doomed.add(id);
+        }
+        doomed.addAll(descendants(doomed));
+
+        List<File> isFiles = new ArrayList<File>();
+        Set<String> passes = new HashSet<String>();
+        Statement s = connection.createStatement();
+        try
+        {
+            for (List<String> batch : batches(new ArrayList<String>(doomed)))
+            {
+                String ids = inList(batch);
+                for (String id : batch)
+                {
+                    passes.add(nodes.get(id).pass);
+                }
+                if (fm != null)
+                {
+                    ResultSet r = Utility.executeQuery(s,
+                        "SELECT Directories.path, Resources.path from Resources "
+                        + "LEFT JOIN ResourceSites on ResourceSites.resource = Resources.id "
+                        + "LEFT JOIN Directories on Directories.id = ResourceSites.directory "
+                        + "WHERE ResourceSites.site = " + Utility.quote(fm.getIS_Site())
+                        + " AND Resources.product IN " + ids);
+                    while (r.next())
+                    {
+                        isFiles.add(new File(r.getString(1), r.getString(2)));
+                    }
+                    r.close();
+                }
+                Utility.executeUpdate(s, "DELETE Resources, ResourceSites FROM Resources, ResourceSites WHERE Resources.product IN " + ids + " AND Resources.id = ResourceSites.resource");
+                Utility.executeUpdate(s, "DELETE ProductThumbnails, Thumbnails FROM ProductThumbnails, Thumbnails WHERE ProductThumbnails.product IN " + ids + " AND ProductThumbnails.thumbnail = Thumbnails.id");
+                Utility.executeUpdate(s, "DELETE ProductContributors, Contributors FROM ProductContributors, Contributors WHERE ProductContributors.product IN " + ids + " AND ProductContributors.contributor = Contributors.id");
+                Utility.executeUpdate(s, "DELETE FROM Ancestors WHERE product IN " + ids + " OR ancestor IN " + ids);
+                Utility.executeUpdate(s, "DELETE FROM Markers WHERE product IN " + ids);
+                WorkQueue.removeProducts(s, batch);
+
+                Map<String,List<String>> subproducts = new HashMap<String,List<String>>();
+                for (String id : batch)
+                {
+                    String table = nodes.get(id).subproduct;
+                    if (table == null) continue;
+                    List<String> l = subproducts.get(table);
+                    if (l == null)
+                    {
+                        l = new ArrayList<String>();
+                        subproducts.put(table, l);
+                    }
+                    l.add(id);
+                }
+                for (Map.Entry<String,List<String>> e : subproducts.entrySet())
+                {
+                    Utility.executeUpdate(s, "DELETE FROM " + e.getKey() + " WHERE product IN "
+                                          + inList(e.getValue()));
+                }
+
+                Utility.executeUpdate(s, "DELETE FROM TransferCommands WHERE tableName = 'Products' AND id IN " + ids);
+                Utility.executeUpdate(s, "DELETE FROM Products WHERE id IN " + ids);
+            }
+            passes.remove(null);
+            if (!passes.isEmpty())
+            {
+                Utility.executeUpdate(s, "DELETE Passes FROM Passes"
+                    + " LEFT JOIN Products on Passes.id = Products.pass"
+                    + " WHERE Passes.id IN " + inList(passes)
+                    + " AND Products.pass IS NULL");
+            }
+            Utility.commitConnection(connection);
+        }
+        finally
+        {
+            s.close();
+        }
+        for (String passId : passes)
+        {
+            PassCache.invalidate(passId);
+        }
+        for (String id : doomed)
+        {
+            nodes.remove(id);
+            scope.remove(id);
+        }
+        for (Node n : nodes.values())
+        {
+            n.children.removeAll(doomed);
+            n.parents.removeAll(doomed);
+        }
+        for (File f : isFiles)
+        {
+            fm.delete(f);
+        }
+    }
+
+    private static List<List<String>> batches(List<String> ids)
+    {
+        List<List<String>> result = new ArrayList<List<String>>();
+        for (int from = 0; from < ids.size(); from += BATCH)
+        {
+            result.add(ids.subList(from, Math.min(ids.size(), from + BATCH)));
+        }
+        return result;
+    }
+
+    /**
+     * Make "('a','b','c')" for an IN clause.
+     */
+    private static String inList(Collection<String> ids)
+    {
+        StringBuilder sb = new StringBuilder(ids.size() * 10 + 2);
+        sb.append("(");
+        for (String id : ids)
+        {
+            if (sb.length() > 1) sb.append(Utility.COMMA);
+            sb.append(Utility.quote(id));
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * PageIterator walks a table in id order one page at a time, so a caller
+ * can go through the whole archive without holding all of it in memory.
+ * It is not public; DSMAdministrator hands them out as plain Iterators.
+ * <p>
+ * Each page is its own query, "... WHERE id &gt; last ORDER BY id LIMIT n"
+ * (keyset pagination), so no cursor stays open between pages and the
+ * connection is free for other work, such as reading the products'
+ * child tables. Rows inserted behind the iterator's position are not
+ * seen; rows deleted ahead of it are not returned.
+ * <p>
+ * Iterator methods cannot throw checked exceptions, so a database
+ * failure surfaces as an IllegalStateException from hasNext() or next().
+ */
+abstract class PageIterator<T> implements Iterator<T>
+{
+    /** Rows per page, from dsm.pageSize (default 500). */
+    static final int PAGE_SIZE = Integer.getInteger("dsm.pageSize", 500).intValue();
+
+    private List<T> page = null;
+    private int index = 0;
+    private long lastId = 0L;
+    private boolean done = false;
+
+    /**
+     * Read the next page: up to PAGE_SIZE rows with id greater than
+     * lastId, in id order.
+     */
+    protected abstract List<T> nextPage(long lastId) throws Exception;
+
+    /**
+     * Get the database id of one row.
+     */
+    protected abstract String idOf(T t);
+
+    public boolean hasNext()
+    {
+        if (page != null && index < page.size()) return true;
+        if (done) return false;
+        try
+        {
+            page = nextPage(lastId);
+        }
+        catch (Exception e)
+        {
+            throw new IllegalStateException("Cannot read the next page after id "
+                                            + lastId + ": " + e.getMessage(), e);
+        }
+        index = 0;
+        if (page.size() < PAGE_SIZE) done = true;
+        if (!page.isEmpty())
+        {
+            lastId = Long.parseLong(idOf(page.get(page.size() - 1)));
+        }
+        return index < page.size();
+    }
+
+    public T next()
+    {
+        if (!hasNext()) throw new NoSuchElementException();
+        return page.get(index++);
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -11,6 +11,7 @@ import gov.nasa.gsfc.nisgs.properties.Utility;
  * This class is one spacecraft pass.
  * @version 1.1.1 Added contains() method.
  * @version 3.19 Added creation date field.
+ * @version 3.23 Added a copy constructor for PassCache.
  */
 public final class Pass implements java.io.Serializable
 {
@@ -80,6 +81,27 @@ public final class Pass implements java.io.Serializable
         this.westLongitude = westLongitude;
     }
 
+    /**
+     * Copy a pass. PassCache hands out copies so that callers may change
+     * their passes without changing the cached ones.
+     */
+    Pass(Pass p)
+    {
+        id = p.id;
+        station = p.station;
+        spacecraft = p.spacecraft;
+        aos = (p.aos == null)? null : new Date(p.aos.getTime());
+        los = (p.los == null)? null : new Date(p.los.getTime());
+        creation = (p.creation == null)? null : new Date(p.creation.getTime());
+        deleteProtected = p.deleteProtected;
+        centerLatitude = p.centerLatitude;
+        centerLongitude = p.centerLongitude;
+        northLatitude = p.northLatitude;
+        southLatitude = p.southLatitude;
+        eastLongitude = p.eastLongitude;
+        westLongitude = p.westLongitude;
+    }
+
     /**
      * The DSM uses this package-level constructor to create a pass object
      * from a database result set, which is the result of a pass query.
@@ -0,0 +1,142 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PassCache keeps recently used Passes rows by pass ID, so that making
+ * the products of one pass does not read the same Passes row over and
+ * over. There is one cache per JVM.
+ * <p>
+ * Pass objects are mutable, so the cache hands out copies. Misses are read
+ * outside the cache lock; two threads missing on the same pass may both
+ * read it, but neither waits for the other's query.
+ * <p>
+ * This JVM invalidates a pass when it creates, deletes or delete-protects
+ * it through the DSM. Changes made by other JVMs are picked up when the
+ * entry expires. Size and lifetime are set with dsm.passCacheSize
+ * (default 1024 passes) and dsm.passCacheMillis (default one minute).
+ */
+public final class PassCache
+{
+    private static final int SIZE = Integer.getInteger("dsm.passCacheSize", 1024).intValue();
+    private static final long LIFETIME =
+        Long.getLong("dsm.passCacheMillis", 60L * 1000L).longValue();
+
+    /** A cached pass and when we read it. */
+    private static final class Entry
+    {
+        final Pass pass;
+        final long loaded;
+
+        Entry(Pass pass, long loaded)
+        {
+            this.pass = pass;
+            this.loaded = loaded;
+        }
+    }
+
+    private static final Map<String,Entry> cache =
+        new LinkedHashMap<String,Entry>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+                return size() > SIZE;
+            }
+        };
+
+    private static long hits = 0L;
+    private static long misses = 0L;
+    private static long invalidations = 0L;
+
+    private PassCache() {}
+
+    /**
+     * Get a copy of a pass by its database ID, reading it on a miss.
+     * @return the pass, or null if there is no such pass
+     */
+    static Pass get(Connection connection, String passId) throws Exception
+    {
+        Pass pass = peek(passId);
+        if (pass != null)
+        {
+            return pass;
+        }
+        ResultSet r = StatementCache.query(connection, "SELECT * FROM Passes WHERE id=?",
+                                           passId);
+        try
+        {
+            if (r.next())
+            {
+                pass = new Pass(r);
+                put(pass);
+            }
+        }
+        finally
+        {
+            r.close();
+        }
+        return pass;
+    }
+
+    /**
+     * Get a copy of a cached pass without reading the database.
+     * @return the pass, or null if it is not cached (a miss)
+     */
+    static synchronized Pass peek(String passId)
+    {
+        Entry e = cache.get(passId);
+        if (e != null && System.currentTimeMillis() - e.loaded < LIFETIME)
+        {
+            ++hits;
+            return new Pass(e.pass);
+        }
+        if (e != null)
+        {
+            cache.remove(passId);
+        }
+        ++misses;
+        return null;
+    }
+
+    /**
+     * Cache a pass just read from the database. We keep our own copy.
+     */
+    static synchronized void put(Pass pass)
+    {
+        cache.put(pass.getId(), new Entry(new Pass(pass), System.currentTimeMillis()));
+    }
+
+    /**
+     * Forget a pass, because its row changed or went away.
+     */
+    static synchronized void invalidate(String passId)
+    {
+        if (cache.remove(passId) != null)
+        {
+            ++invalidations;
+        }
+    }
+
+    /**
+     * Forget every pass, after a change to many passes at once.
+     */
+    public static synchronized void clear()
+    {
+        invalidations += cache.size();
+        cache.clear();
+    }
+
+    /**
+     * Get the cache counters, for logging.
+     */
+    public static synchronized String getStatistics()
+    {
+        return "passes=" + cache.size() + " hits=" + hits + " misses=" + misses
+            + " invalidations=" + invalidations;
+    }
+}
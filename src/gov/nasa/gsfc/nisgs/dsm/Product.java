@@ -27,6 +27,8 @@ import gov.nasa.gsfc.nisgs.properties.Utility;
  * @version 3.0.0 Added support for site-awareness. Added the creation date.
  * @version 3.4 Added String getAttribute(String name)
  * @version 3.12 Added Comparable interface.
+ * @version 3.23 A product from a DSM loads its thumbnails, contributors,
+ *      ancestors, attributes and marker ID when first asked for them.
  */
 public final class Product implements java.io.Serializable, Comparable<Product>
 {
@@ -107,6 +109,14 @@ public final class Product implements java.io.Serializable, Comparable<Product>
     //Markers table that was created when this product was created
     private String markerId = "0";
 
+    //If not null, the parts above from thumbnails on have not been read
+    //from the database yet. See loadDeferred().
+    private transient ProductLoader loader = null;
+
+    //True if setMarkerId was called while the load was still pending,
+    //so the load must not replace markerId.
+    private transient boolean markerIdSet = false;
+
     /**
      * Create a Product. This constructor has all fields that the database
      * requires except resources. You must still use addResource to add
@@ -213,6 +223,7 @@ public final class Product implements java.io.Serializable, Comparable<Product>
         {
             throw new Exception("path may not be null");
         }
+        loadDeferred();
         Resource t = new Resource(new File(path),creation,description);
         if (thumbnails == null)
         {
@@ -267,6 +278,7 @@ public final class Product implements java.io.Serializable, Comparable<Product>
         {
             throw new Exception("Attribute name may not be null");
         }
+        loadDeferred();
         Attribute a = new Attribute(name,value);
         if (attributesList == null)
         {
@@ -350,6 +362,7 @@ public final class Product implements java.io.Serializable, Comparable<Product>
         {
             throw new Exception("path may not be null");
         }
+        loadDeferred();
         Resource cr = new Resource(new File(path),creation,description);
         if (contributingResources == null)
         {
@@ -400,6 +413,7 @@ public final class Product implements java.io.Serializable, Comparable<Product>
         {
             throw new Exception("productId may not be null");
         }
+        loadDeferred();
         if (contributingProductIDs == null)
         {
             contributingProductIDs = new ArrayList<String>();
@@ -462,11 +476,13 @@ public final class Product implements java.io.Serializable, Comparable<Product>
     }
 
     /**
-     * Set the markerId.
+     * Set the markerId. A deferred load that has not run yet will not
+     * replace it.
      */
-    public void setMarkerId(String markerId)
+    public synchronized void setMarkerId(String markerId)
     {
 	this.markerId = markerId;
+	if (loader != null) markerIdSet = true;
     }
 
     /**
@@ -475,6 +491,7 @@ public final class Product implements java.io.Serializable, Comparable<Product>
      */
     public String getMarkerId()
     {
+	loadDeferred();
 	return markerId;
     }
 
@@ -691,6 +708,7 @@ public final class Product implements java.io.Serializable, Comparable<Product>
      */
     public Collection<Attribute> getAttributes()
     {
+        loadDeferred();
         return attributesList;
     }
 
@@ -703,6 +721,7 @@ public final class Product implements java.io.Serializable, Comparable<Product>
     public String getAttribute(String name)
     {
         String value = null;
+        loadDeferred();
         if (attributesList != null)
         {
             for (Attribute a : attributesList)
@@ -723,6 +742,7 @@ public final class Product implements java.io.Serializable, Comparable<Product>
      */
     public Collection<Resource> getThumbnails()
     {
+        loadDeferred();
         return thumbnails;
     }
 
@@ -732,6 +752,7 @@ public final class Product implements java.io.Serializable, Comparable<Product>
      */
     public Collection<Resource> getContributingResources()
     {
+        loadDeferred();
         return contributingResources;
     }
 
@@ -741,6 +762,7 @@ public final class Product implements java.io.Serializable, Comparable<Product>
      */
     public Collection<String> getContributingProductsIds()
     {
+        loadDeferred();
         return contributingProductIDs;
     }
 
@@ -763,6 +785,54 @@ public final class Product implements java.io.Serializable, Comparable<Product>
         productId = id;
     }
 
+    /**
+     * Have ProductFactory fill in thumbnails, contributors, ancestors,
+     * attributes and the marker ID later, on first use, with this loader.
+     */
+    void setLoader(ProductLoader loader)
+    {
+        this.loader = loader;
+    }
+
+    /**
+     * Load the deferred parts of this product now, if there are any.
+     * The getters do not throw checked exceptions, so a database failure
+     * here is an IllegalStateException; the load is tried again next time.
+     */
+    private synchronized void loadDeferred()
+    {
+        ProductLoader l = loader;
+        if (l == null) return;
+        loader = null;
+        String oldMarkerId = markerId;
+        try
+        {
+            l.load(this);
+            if (markerIdSet) markerId = oldMarkerId;
+        }
+        catch (Exception e)
+        {
+            thumbnails = null;
+            contributingResources = null;
+            contributingProductIDs = null;
+            attributesList = null;
+            markerId = oldMarkerId;
+            loader = l;
+            throw new IllegalStateException("Cannot load product " + productId
+                                            + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A serialized product is always complete.
+     */
+    private void writeObject(java.io.ObjectOutputStream out)
+            throws java.io.IOException
+    {
+        loadDeferred();
+        out.defaultWriteObject();
+    }
+
     /**
      * Determine if all resources are local to this site.  Enforces the
      * requirement that products must have at least one resource.
@@ -6,8 +6,13 @@ All rights reserved.
 package gov.nasa.gsfc.nisgs.dsm;
 import java.sql.*;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Collection;
@@ -23,15 +28,134 @@ import gov.nasa.gsfc.nisgs.properties.Utility;
  * which is much more than I want Product to know about.
  * @version 3.0.0 Added the product creation date field and site awareness.
  * @version 3.19 Added "published" to Resource creation.
+ * @version 3.23 Sub-loads use cached PreparedStatements (StatementCache).
+ * @version 3.23 Added makeProducts() to make many products with batched queries.
+ * @version 3.23 Passes come from PassCache.
+ * @version 3.23 makeProduct() and getProduct() can leave the rarely used
+ *      parts of a product to a ProductLoader.
+ * @version 3.23 Resource directories come from DirectoryCache, not a join.
+ * @version 3.23 removeProducts() and addAllChildren() use LineageGraph.
  */
 public final class ProductFactory
 {
+    /** Most IDs we put in one IN (...) list. */
+    private static final int BATCH = 1000;
+
     /**
      * Make a Product from a result set. The result set must be the
      * result of a query that selects products from the database.
      */
     static Product makeProduct(Connection connection, String site,
             ResultSet resultSet) throws Exception
+    {
+        return makeProduct(connection,site,resultSet,null);
+    }
+
+    /**
+     * Make a Product from a result set, reading only the Products row,
+     * its pass and its resources now. The rest is read by the loader when
+     * it is first used, unless the loader is null or eager.
+     */
+    static Product makeProduct(Connection connection, String site,
+            ResultSet resultSet, ProductLoader loader) throws Exception
+    {
+        Pass pass = getPass(connection,resultSet.getString("pass"));
+        Product product = makeHeader(resultSet,pass);
+        String productId = product.getId();
+
+        loadResources(connection,site,productId,product);
+        if (loader == null || loader.isEager())
+        {
+            loadDeferred(connection,product);
+        }
+        else
+        {
+            product.setLoader(loader);
+        }
+        return product;
+    }
+
+    /**
+     * Read the parts of a product that makeProduct() may leave for later:
+     * thumbnails, subproduct attributes, ancestors, contributors and the
+     * marker ID.
+     */
+    static void loadDeferred(Connection connection, Product product)
+            throws Exception
+    {
+        String productId = product.getId();
+        loadThumbnails(connection,productId,product);
+        loadSubproductInformation(connection,productId,product);
+        loadAncestors(connection,productId,product);
+        loadContributors(connection,productId,product);
+	loadMarkerId(connection,product);
+    }
+
+    /**
+     * Make Products from every remaining row of a result set, which must
+     * select products from the database. This does the same as calling
+     * makeProduct() on each row, but it reads each child table once per
+     * BATCH products with IN (...) queries instead of once per product.
+     * The result set is read to the end but not closed.
+     */
+    static List<Product> makeProducts(Connection connection, String site,
+            ResultSet resultSet) throws Exception
+    {
+        List<Product> products = new ArrayList<Product>();
+        List<String> passIds = new ArrayList<String>();
+        while (resultSet.next())
+        {
+            products.add(makeHeader(resultSet,null));
+            passIds.add(resultSet.getString("pass"));
+        }
+        for (int from = 0; from < products.size(); from += BATCH)
+        {
+            int to = Math.min(products.size(), from + BATCH);
+            loadChildren(connection,site,products.subList(from,to),passIds.subList(from,to));
+        }
+        return products;
+    }
+
+    /**
+     * Make the Products with these IDs, in the same order. IDs with no
+     * product are skipped.
+     */
+    static List<Product> makeProducts(Connection connection, String site,
+            List<String> productIds) throws Exception
+    {
+        Map<String,Product> byId = new HashMap<String,Product>();
+        Statement s = connection.createStatement();
+        try
+        {
+            for (int from = 0; from < productIds.size(); from += BATCH)
+            {
+                int to = Math.min(productIds.size(), from + BATCH);
+                ResultSet r = Utility.executeQuery(s, "SELECT * FROM Products WHERE id IN "
+                        + inList(productIds.subList(from,to)));
+                for (Product p : makeProducts(connection,site,r))
+                {
+                    byId.put(p.getId(),p);
+                }
+            }
+        }
+        finally
+        {
+            s.close();
+        }
+        List<Product> products = new ArrayList<Product>(byId.size());
+        for (String id : productIds)
+        {
+            Product p = byId.get(id);
+            if (p != null) products.add(p);
+        }
+        return products;
+    }
+
+    /**
+     * Make a Product from the Products columns of the current row,
+     * without anything from other tables.
+     */
+    private static Product makeHeader(ResultSet resultSet, Pass pass) throws Exception
     {
         //I can't use sql date/time types because I need to combine the
         //date and time into one date object, which they don't do. For
@@ -43,7 +167,6 @@ public final class ProductFactory
 
         String agent = resultSet.getString("agent");
         String productType = resultSet.getString("productType");
-        Pass pass = getPass(connection,resultSet.getString("pass"));
         Product product = new Product(start,stop,agent,productType,pass);
 
         String productId = resultSet.getString("id");
@@ -62,32 +185,273 @@ public final class ProductFactory
 
 	product.setMarkerId(resultSet.getString("markerId"));
 
+        String subproduct = resultSet.getString("subproduct");
+        if (subproduct != null)
+        {
+            product.setSubproduct(subproduct);
+        }
+
         loadGeolocation(resultSet,product);
-        loadResources(connection,site,productId,product);
-        loadThumbnails(connection,productId,product);
-        loadSubproductInformation(connection,resultSet,productId,product);
-        loadAncestors(connection,productId,product);
-        loadContributors(connection,productId,product);
-	loadMarkerId(connection,product);
         return product;
     }
 
     /**
-     * Get a pass based on a database pass id.
+     * Fill in the passes and everything from the child tables for a batch
+     * of products made by makeHeader(). One query per table.
      */
-    private static synchronized Pass getPass(Connection connection,
-            String passId) throws Exception
+    private static void loadChildren(Connection connection, String site,
+            List<Product> products, List<String> passIds) throws Exception
     {
-        Pass pass = null;
+        if (products.isEmpty()) return;
+        Map<String,Product> byId = new LinkedHashMap<String,Product>();
+        for (Product p : products)
+        {
+            byId.put(p.getId(),p);
+        }
+        String ids = inList(byId.keySet());
         Statement s = connection.createStatement();
-        ResultSet r = Utility.executeQuery(s, "SELECT * FROM Passes WHERE id=" +
-                Utility.quote(passId));
-        if (r.next())
+        try
         {
-            pass = new Pass(r);
+            // Passes, from PassCache where we can
+            Map<String,Pass> passes = new HashMap<String,Pass>();
+            Set<String> unknown = new HashSet<String>();
+            for (String passId : new HashSet<String>(passIds))
+            {
+                Pass pass = (passId == null)? null : PassCache.peek(passId);
+                if (pass != null)
+                    passes.put(passId, pass);
+                else if (passId != null)
+                    unknown.add(passId);
+            }
+            ResultSet r;
+            if (!unknown.isEmpty())
+            {
+                r = Utility.executeQuery(s, "SELECT * FROM Passes WHERE id IN "
+                        + inList(unknown));
+                while (r.next())
+                {
+                    Pass pass = new Pass(r);
+                    PassCache.put(pass);
+                    passes.put(pass.getId(), pass);
+                }
+            }
+            // Each product gets its own copy, as makeProduct() gives it
+            for (int i = 0; i < products.size(); i++)
+            {
+                Pass pass = passes.get(passIds.get(i));
+                products.get(i).setPass((pass == null)? null : new Pass(pass));
+            }
+
+            // Resources and their locations
+            Map<String,Resource> resources = new LinkedHashMap<String,Resource>();
+            Map<String,String[]> resourceOwners = new HashMap<String,String[]>();
+            r = Utility.executeQuery(s, "SELECT * FROM Resources WHERE product IN " + ids
+                    + " ORDER BY id");
+            while (r.next())
+            {
+                String rid = r.getString("id");
+                resources.put(rid, new Resource(rid, r.getString("path"),
+                                                r.getString("description"),
+                                                r.getBoolean("published")));
+                resourceOwners.put(rid, new String[] {r.getString("product"), r.getString("rkey")});
+            }
+            if (!resources.isEmpty())
+            {
+                r = Utility.executeQuery(s,
+                    "SELECT resource,site,creation,directory FROM ResourceSites WHERE resource IN " +
+                    inList(resources.keySet()));
+                while (r.next())
+                {
+                    Resource resource = resources.get(r.getString(1));
+                    String rsite = r.getString(2);
+                    java.util.Date creation = Utility.parse(r.getString(3));
+                    String directory = DirectoryCache.getPath(connection,r.getString(4));
+                    if (directory == null) continue;
+                    if (site.equals(rsite))
+                    {
+                        resource.setLocal(rsite,directory,creation);
+                    }
+                    else
+                    {
+                        resource.addRemote(rsite,directory,creation);
+                    }
+                }
+            }
+            for (Map.Entry<String,Resource> e : resources.entrySet())
+            {
+                String[] owner = resourceOwners.get(e.getKey());
+                byId.get(owner[0]).addResource(owner[1], e.getValue());
+            }
+
+            // Thumbnails
+            r = Utility.executeQuery(s, "SELECT ProductThumbnails.product,Thumbnails.path,Thumbnails.description FROM Thumbnails,ProductThumbnails WHERE ProductThumbnails.product IN "
+                    + ids + " AND Thumbnails.id=ProductThumbnails.thumbnail");
+            while (r.next())
+            {
+                byId.get(r.getString(1)).addThumbnail(r.getString(2), r.getString(3));
+            }
+
+            // Subproduct attributes, one query per subproduct table
+            Map<String,List<String>> subproducts = new HashMap<String,List<String>>();
+            for (Product p : products)
+            {
+                String table = p.getSubproduct();
+                if (table == null) continue;
+                List<String> l = subproducts.get(table);
+                if (l == null)
+                {
+                    l = new ArrayList<String>();
+                    subproducts.put(table, l);
+                }
+                l.add(p.getId());
+            }
+            for (Map.Entry<String,List<String>> e : subproducts.entrySet())
+            {
+                r = Utility.executeQuery(s, "SELECT * FROM " + e.getKey()
+                        + " WHERE product IN " + inList(e.getValue()));
+                ResultSetMetaData rmd = r.getMetaData();
+                int count = rmd.getColumnCount();
+                Set<String> seen = new HashSet<String>();
+                while (r.next())
+                {
+                    String pid = r.getString("product");
+                    // makeProduct only looks at the first row
+                    if (!seen.add(pid)) continue;
+                    Product p = byId.get(pid);
+                    for (int i = 1; i <= count; i++)
+                    {
+                        p.addAttribute(rmd.getColumnName(i), r.getString(i));
+                    }
+                }
+            }
+
+            // Ancestors
+            r = Utility.executeQuery(s, "SELECT product,ancestor FROM Ancestors WHERE product IN "
+                    + ids);
+            while (r.next())
+            {
+                byId.get(r.getString(1)).addContributingProduct(r.getString(2));
+            }
+
+            // Contributors
+            r = Utility.executeQuery(s, "SELECT ProductContributors.product,Contributors.path,Contributors.description FROM Contributors,ProductContributors WHERE ProductContributors.product IN "
+                    + ids + " AND Contributors.id=ProductContributors.contributor");
+            while (r.next())
+            {
+                byId.get(r.getString(1)).addContributingResource(r.getString(2), r.getString(3));
+            }
+
+            loadMarkerIds(s, products);
+        }
+        finally
+        {
+            s.close();
+        }
+    }
+
+    /**
+     * loadMarkerId() for a batch of products.
+     */
+    private static void loadMarkerIds(Statement s, List<Product> products)
+	throws Exception
+    {
+	Map<String,Product> needy = new LinkedHashMap<String,Product>();
+	Set<String> algorithms = new HashSet<String>();
+	for (Product p : products) {
+	    if(p.getMarkerId().equals("0")
+	       && p.getContributingProductsIds() != null
+	       && p.getContributingProductsIds().size() != 0) {
+		needy.put(p.getId(), p);
+		algorithms.add(Utility.quote(p.getAlgorithm()));
+	    }
+	}
+	if (needy.isEmpty()) return;
+
+	// Only products whose Algorithm has a gopherColony get a marker
+	Set<String> known = new HashSet<String>();
+	ResultSet r = Utility.executeQuery(s, "SELECT name FROM Algorithms WHERE name IN "
+					   + inList(algorithms));
+	while (r.next()) {
+	    known.add(r.getString(1));
+	}
+	Iterator<Product> pi = needy.values().iterator();
+	while (pi.hasNext()) {
+	    Product p = pi.next();
+	    if (!known.contains(p.getAlgorithm())) {
+		System.err.println("No Algorithm entry for " + p.getAlgorithm());
+		pi.remove();
+	    }
+	}
+	if (needy.isEmpty()) return;
+
+	r = Utility.executeQuery(s, "SELECT Ancestors.product, Markers.product from Markers LEFT JOIN Ancestors ON Markers.product = Ancestors.ancestor WHERE Ancestors.product IN "
+				 + inList(needy.keySet()));
+	Set<String> done = new HashSet<String>();
+	while (r.next()) {
+	    String pid = r.getString(1);
+	    if (done.add(pid)) {
+		needy.get(pid).setMarkerId(r.getString(2));
+	    }
+	}
+    }
+
+    /**
+     * Make "(a,b,c)" for an IN clause. The values must already be numbers
+     * or quoted.
+     */
+    private static String inList(Collection<String> values)
+    {
+        StringBuilder sb = new StringBuilder(values.size() * 8 + 2);
+        sb.append("(");
+        for (String v : values)
+        {
+            if (sb.length() > 1) sb.append(Utility.COMMA);
+            sb.append(v);
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    /**
+     * Make the Product with this ID, or return null if there is none.
+     */
+    static Product getProduct(Connection connection, String site, String productId)
+            throws Exception
+    {
+        return getProduct(connection,site,productId,null);
+    }
+
+    /**
+     * Make the Product with this ID, or return null if there is none.
+     * See makeProduct() for the loader.
+     */
+    static Product getProduct(Connection connection, String site, String productId,
+            ProductLoader loader) throws Exception
+    {
+        Product product = null;
+        ResultSet r = StatementCache.query(connection, "SELECT * FROM Products WHERE id=?",
+                                           productId);
+        try
+        {
+            if (r.next())
+            {
+                product = makeProduct(connection,site,r,loader);
+            }
+        }
+        finally
+        {
+            r.close();
         }
-        s.close();
-        return pass;
+        return product;
+    }
+
+    /**
+     * Get a pass based on a database pass id.
+     */
+    private static Pass getPass(Connection connection,
+            String passId) throws Exception
+    {
+        return PassCache.get(connection,passId);
     }
 
     private static void loadGeolocation(ResultSet r, Product product)
@@ -119,9 +483,8 @@ public final class ProductFactory
     private static void loadResources(Connection connection, String site,
             String productId, Product p) throws Exception
     {
-        Statement s = connection.createStatement();
-        ResultSet r = Utility.executeQuery(s, "SELECT * FROM Resources WHERE product=" +
-                productId);
+        ResultSet r = StatementCache.query(connection,
+                "SELECT * FROM Resources WHERE product=?", productId);
         while (r.next())
         {
             String rid = r.getString("id");
@@ -134,22 +497,21 @@ public final class ProductFactory
             loadLocations(connection,site,resource);
             p.addResource(keyword,resource);
         }
-        s.close();
+        r.close();
     }
 
     private static void loadLocations(Connection connection, String localSite,
             Resource resource) throws Exception
     {
-        Statement s = connection.createStatement();
-        ResultSet r = Utility.executeQuery(s, 
-            "SELECT ResourceSites.site,ResourceSites.creation,Directories.path " +
-            "FROM ResourceSites,Directories WHERE ResourceSites.resource=" +
-            resource.getId() + " AND ResourceSites.directory=Directories.id");
+        ResultSet r = StatementCache.query(connection,
+            "SELECT site,creation,directory FROM ResourceSites WHERE resource=?",
+            resource.getId());
         while (r.next())
         {
             String site = r.getString(1);
             String creationTime = r.getString(2);
-            String directory = r.getString(3);
+            String directory = DirectoryCache.getPath(connection,r.getString(3));
+            if (directory == null) continue;  // as the join to Directories did
             java.util.Date creation = Utility.parse(creationTime);
             if (localSite.equals(site))
             {
@@ -160,34 +522,31 @@ public final class ProductFactory
                 resource.addRemote(site,directory,creation);
             }
         }
-        s.close();
+        r.close();
     }
 
     private static void loadThumbnails(Connection connection, String productId,
             Product p) throws Exception
     {
-        Statement s = connection.createStatement();
-        ResultSet r = Utility.executeQuery(s, "SELECT Thumbnails.path,Thumbnails.description FROM Thumbnails,ProductThumbnails WHERE ProductThumbnails.product=" +
-                productId + " AND Thumbnails.id=ProductThumbnails.thumbnail");
+        ResultSet r = StatementCache.query(connection, "SELECT Thumbnails.path,Thumbnails.description FROM Thumbnails,ProductThumbnails WHERE ProductThumbnails.product=?" +
+                " AND Thumbnails.id=ProductThumbnails.thumbnail", productId);
         while (r.next())
         {
             String path = r.getString("path");
             String description = r.getString("description");
             p.addThumbnail(path,description);
         }
-        s.close();
+        r.close();
     }
 
-    private static void loadSubproductInformation(Connection connection, ResultSet r,
+    private static void loadSubproductInformation(Connection connection,
             String productId, Product p) throws Exception
     {
-        String subproduct = r.getString("subproduct");
+        String subproduct = p.getSubproduct();
         if (subproduct != null)
         {
-            Statement s = connection.createStatement();
-            p.setSubproduct(subproduct);
-            ResultSet rr = Utility.executeQuery(s, "SELECT * FROM " + subproduct +
-                    " WHERE product=" + productId);
+            ResultSet rr = StatementCache.query(connection, "SELECT * FROM " + subproduct +
+                    " WHERE product=?", productId);
             if (rr.next())
             {
                 ResultSetMetaData rmd = rr.getMetaData();
@@ -199,37 +558,35 @@ public final class ProductFactory
                     p.addAttribute(name,value);
                 }
             }
-            s.close();
+            rr.close();
         }
     }
 
     private static void loadAncestors(Connection connection, String productId,
             Product p) throws Exception
     {
-        Statement s = connection.createStatement();
-        ResultSet r = Utility.executeQuery(s, "SELECT ancestor FROM Ancestors WHERE product="
-                + productId);
+        ResultSet r = StatementCache.query(connection,
+                "SELECT ancestor FROM Ancestors WHERE product=?", productId);
         while (r.next())
         {
             String pid = r.getString(1);
             p.addContributingProduct(pid);
         }
-        s.close();
+        r.close();
     }
 
     private static void loadContributors(Connection connection, String productId,
             Product p) throws Exception
     {
-        Statement s = connection.createStatement();
-        ResultSet r = Utility.executeQuery(s, "SELECT Contributors.path,Contributors.description FROM Contributors,ProductContributors WHERE ProductContributors.product="
-                + productId + " AND Contributors.id=ProductContributors.contributor");
+        ResultSet r = StatementCache.query(connection, "SELECT Contributors.path,Contributors.description FROM Contributors,ProductContributors WHERE ProductContributors.product=?"
+                + " AND Contributors.id=ProductContributors.contributor", productId);
         while (r.next())
         {
             String path = r.getString(1);
             String description = r.getString(2);
             p.addContributingResource(path,description);
         }
-        s.close();
+        r.close();
     }
 
     /**
@@ -244,16 +601,15 @@ public final class ProductFactory
 	    if(p.getContributingProductsIds() != null
 		&& p.getContributingProductsIds().size() != 0) {
 		// Go look up our gopherColony
-		Statement s = connection.createStatement();
+		ResultSet r = StatementCache.query(connection, "SELECT gopherColony FROM Algorithms WHERE name = ?", p.getAlgorithm());
 		try {
-		    ResultSet r = Utility.executeQuery(s, "SELECT gopherColony FROM Algorithms WHERE name = " + Utility.quote(p.getAlgorithm()));
 		    // There will be none or exactly one;
 		    // gopherColony is a PRIMARY KEY in this table
 		    if(r.next()) {
 			String gopherColony = r.getString(1);
 			// OK, check markers for appropriate entry
 			r.close();
-			r = Utility.executeQuery(s, "SELECT Markers.product from Markers LEFT JOIN Ancestors ON Markers.product = Ancestors.ancestor WHERE Ancestors.product = " + p.getId());
+			r = StatementCache.query(connection, "SELECT Markers.product from Markers LEFT JOIN Ancestors ON Markers.product = Ancestors.ancestor WHERE Ancestors.product = ?", p.getId());
 			if(r.next()) {
 			    p.setMarkerId(r.getString(1));
 			}
@@ -270,7 +626,7 @@ public final class ProductFactory
 		    }
 		}
 		finally {
-		    s.close();
+		    r.close();
 		}
 	    }
 	}
@@ -321,49 +677,14 @@ public final class ProductFactory
      * Does NOT observe the deleteProtected flag.
      * It it safe to reprocess data recreating a Product after it has been
      * removeProduct()ed.
+     * The product DAG is walked and deleted a generation or a batch at a
+     * time by LineageGraph, not product by product. IDs with no product
+     * are ignored.
      */
     public static void removeProducts(Connection connection, Collection<String> products, FileMover fm)
 	throws Exception
     {
-	// Make a local copy of the input Product list
-	List<String> allProducts = new LinkedList<String>();
-	for (String s : products)
-	    allProducts.add(s);
-
-	Statement stmt = connection.createStatement();
-	try {
-	    // For some brain-damaged reason, ListIterators throw the
-	    // ConcurrentModificationException for LinkedLists, thus
-	    // requiring the ugly index-based code below:
-	    int i = 0;
-	    while(i < allProducts.size()) {
-		String pid = allProducts.get(i++);
-		// Query for all Products that depend on this one
-		String dep = "SELECT product FROM Ancestors WHERE ancestor="
-		    + Utility.quote(pid);
-		ResultSet rs = Utility.executeQuery(stmt, dep);
-		while(rs.next()) {
-		    // If we haven't seen this child before, tack it
-		    // onto the end of the allProducts list
-		    String childID = rs.getString(1);
-		    if(!allProducts.contains(childID)) {
-			allProducts.add(childID);
-		    }
-		}
-		rs.close();
-	    }
-	    // All the products we need to kill are in allProducts, in
-	    // pre-order, breadth-first traversal of the product DAG.
-	    // Run through them and kill them all.
-	    for (String pid : allProducts) {
-		removeOneProduct(stmt, pid, fm);
-	    }
-	    // We must commit somewhere; here, or inside the loop?
-	    Utility.commitConnection(connection);
-	}
-	finally {
-	    stmt.close();
-	}
+	LineageGraph.forProducts(connection, products).removeProducts(connection, products, fm);
     }
 
     /**
@@ -434,6 +755,7 @@ public final class ProductFactory
 	// And the Markers table
 	sql = "DELETE FROM Markers where product = " + qpid;
 	Utility.executeUpdate(stmt, sql);
+	WorkQueue.removeProduct(stmt, qpid);
 
 	// And subproduct tables, if any...
 	sql = "SELECT subproduct from Products where id = " + qpid + " AND subproduct IS NOT NULL";
@@ -459,6 +781,7 @@ public final class ProductFactory
 	    + " WHERE Passes.id = " + Utility.quote(passID)
 	    + " AND Products.pass IS NULL";
 	Utility.executeUpdate(stmt, sql);
+	PassCache.invalidate(passID);
 
 	// If there were any IS resource files found, try and delete them
 	// using the FileMover
@@ -538,6 +861,9 @@ public final class ProductFactory
     public static void deleteMarker(Statement stmt, MarkerRef mr)
 	throws Exception
     {
+	// The colony will want this product again
+	WorkQueue.requeue(stmt, "m.product = " + mr.markerId
+			  + " AND m.gopherColony = " + Utility.quote(mr.gopherColony));
 	String sql = "DELETE FROM Markers WHERE product = " + mr.markerId
 	    + " AND gopherColony = " + Utility.quote(mr.gopherColony);
 	//System.err.println("deleteMarker: " + sql);
@@ -552,6 +878,7 @@ public final class ProductFactory
     public static void deleteMarkersOnProduct(Statement stmt, String pid)
 	throws Exception
     {
+	WorkQueue.requeue(stmt, "m.product = " + pid);
 	String sql = "DELETE FROM Markers WHERE product = " + pid;
 	Utility.executeUpdate(stmt, sql);
     }
@@ -641,10 +968,8 @@ public final class ProductFactory
     public static void addAllChildren(Connection connection, Collection<String> parents, Set<String> children)
 	throws Exception
     {
-	for (String parent : parents) {
-	    List<String> newkids = addChildren(connection, parent, children);
-	    addAllChildren(connection, newkids, children);
-	}
+	// One query per generation, not per parent
+	children.addAll(LineageGraph.forProducts(connection, parents).descendants(parents));
     }
 
 
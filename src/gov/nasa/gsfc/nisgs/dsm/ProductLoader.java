@@ -0,0 +1,67 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.lang.ref.WeakReference;
+
+/**
+ * ProductLoader fills in the parts of a Product that most stations never
+ * read - thumbnails, contributing resources, ancestors, subproduct
+ * attributes and the marker ID - the first time someone asks for them.
+ * It is not public. Each DSM has one.
+ * <p>
+ * The loader uses its DSM's connection. If that DSM has been disposed
+ * (or collected; we hold it weakly so products do not keep it alive),
+ * it borrows a connection from ConnectionPool for the load.
+ * <p>
+ * In eager mode, which DSMAdministrator uses, ProductFactory loads
+ * everything up front as it always did.
+ */
+final class ProductLoader
+{
+    private final WeakReference<DSM> dsm;
+    private volatile boolean eager = false;
+
+    ProductLoader(DSM dsm)
+    {
+        this.dsm = new WeakReference<DSM>(dsm);
+    }
+
+    /**
+     * Should products be loaded completely when they are made?
+     */
+    boolean isEager()
+    {
+        return eager;
+    }
+
+    void setEager(boolean eager)
+    {
+        this.eager = eager;
+    }
+
+    /**
+     * Load a product's deferred parts.
+     */
+    void load(Product product) throws Exception
+    {
+        DSM d = dsm.get();
+        DsmProperties dsmp = (d == null)? null : d.dsmProperties;
+        if (dsmp != null)
+        {
+            ProductFactory.loadDeferred(dsmp.getConnection(),product);
+            return;
+        }
+        dsmp = ConnectionPool.borrow();
+        try
+        {
+            ProductFactory.loadDeferred(dsmp.getConnection(),product);
+        }
+        finally
+        {
+            ConnectionPool.release(dsmp);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import gov.nasa.gsfc.nisgs.properties.Utility;
+
+/**
+ * ProductNotifier wakes threads that are blocked in DSM.fetchProduct when
+ * the product they want is stored. It is not public.
+ * <p>
+ * ProductStore appends a row to the ProductEvents table for each product it
+ * stores, in the same transaction as the product. All the waiters in one JVM
+ * share a single probe of that table, which is run every PROBE_INTERVAL by
+ * whichever waiter gets there first. A seq is handed out when its row is
+ * inserted, not when it commits, so an event can turn up after one with a
+ * higher seq. The probe therefore re-reads the last
+ * dsm.productEventWindow seqs (default 1000) below the highest it has
+ * seen, and skips the events it has already signalled.
+ * Products stored from this JVM wake their waiters directly.
+ * <p>
+ * If the ProductEvents table is not there (an older database), register()
+ * returns null and the caller should fall back to polling its own query.
+ */
+final class ProductNotifier
+{
+    /** Milliseconds between probes of the ProductEvents table. */
+    private static final long PROBE_INTERVAL =
+        Long.getLong("dsm.productEventProbeMillis", 1000L).longValue();
+
+    /** How far below the highest seq seen each probe reads again. */
+    private static final long SEQ_WINDOW =
+        Long.getLong("dsm.productEventWindow", 1000L).longValue();
+
+    /** How long we leave the notifier off after the ProductEvents table fails us. */
+    private static final long RETRY_INTERVAL = 10L * 60L * 1000L;
+
+    private static final List<Waiter> waiters = new ArrayList<Waiter>();
+    private static long lastSeq = -1L;        // -1 means we have not looked yet
+    private static final Set<Long> seen = new HashSet<Long>();   // read, within SEQ_WINDOW
+    private static long lastProbe = 0L;
+    private static boolean probing = false;
+    private static long unavailableUntil = 0L;
+    private static volatile boolean recording = true;
+    private static volatile long recordRetry = 0L;
+
+    private ProductNotifier() {}
+
+    /**
+     * One blocked fetch. A waiter matches either one product ID or one
+     * product type on one pass.
+     */
+    static final class Waiter
+    {
+        private final String productId;
+        private final String productType;
+        private final String passId;
+        private boolean signalled = false;
+
+        private Waiter(String productId, String productType, String passId)
+        {
+            this.productId = productId;
+            this.productType = productType;
+            this.passId = passId;
+        }
+
+        private boolean matches(String id, String type, String pass)
+        {
+            if (productId != null)
+            {
+                return productId.equals(id);
+            }
+            return productType.equalsIgnoreCase(type) && passId.equals(pass);
+        }
+    }
+
+    /**
+     * Register a waiter for one product ID.
+     * @return the waiter, or null if notification is unavailable.
+     */
+    static Waiter register(Connection connection, String productId)
+    {
+        return register(connection, new Waiter(productId, null, null));
+    }
+
+    /**
+     * Register a waiter for a product type on a pass.
+     * @return the waiter, or null if notification is unavailable.
+     */
+    static Waiter register(Connection connection, String productType, String passId)
+    {
+        return register(connection, new Waiter(null, productType, passId));
+    }
+
+    /**
+     * The waiter must be registered before the caller makes its first check
+     * for the product, or it might miss a product stored in between.
+     */
+    private static Waiter register(Connection connection, Waiter waiter)
+    {
+        synchronized (waiters)
+        {
+            if (System.currentTimeMillis() < unavailableUntil)
+            {
+                return null;
+            }
+            if (lastSeq < 0L)
+            {
+                try
+                {
+                    lastSeq = start(connection);
+                }
+                catch (SQLException e)
+                {
+                    unavailableUntil = System.currentTimeMillis() + RETRY_INTERVAL;
+                    return null;
+                }
+            }
+            waiters.add(waiter);
+            return waiter;
+        }
+    }
+
+    /**
+     * Remove a waiter. Always call this when done with a registered waiter.
+     */
+    static void unregister(Waiter waiter)
+    {
+        if (waiter != null)
+        {
+            synchronized (waiters)
+            {
+                waiters.remove(waiter);
+            }
+        }
+    }
+
+    /**
+     * Block until a product matching this waiter is stored, or until the
+     * time "until" (in milliseconds) is reached.
+     * @return true if a matching product was stored, false if we timed out
+     *      or if the ProductEvents table has gone bad on us.
+     */
+    static boolean await(Connection connection, Waiter waiter, long until)
+            throws InterruptedException
+    {
+        while (true)
+        {
+            boolean probeNow = false;
+            long since = 0L;
+            synchronized (waiters)
+            {
+                if (waiter.signalled)
+                {
+                    waiter.signalled = false;
+                    return true;
+                }
+                long now = System.currentTimeMillis();
+                if (now >= until || now < unavailableUntil)
+                {
+                    return false;
+                }
+                long nextProbe = lastProbe + PROBE_INTERVAL;
+                if (!probing && now >= nextProbe)
+                {
+                    probing = true;
+                    lastProbe = now;
+                    since = lastSeq;
+                    probeNow = true;
+                }
+                else
+                {
+                    long wakeup = probing? until : Math.min(until, nextProbe);
+                    waiters.wait(Math.max(1L, wakeup - now));
+                }
+            }
+            if (probeNow)
+            {
+                probe(connection, since);
+            }
+        }
+    }
+
+    /**
+     * Read the events stored since the last probe, and those in the
+     * window below it, and signal the waiters that match the ones we have
+     * not seen. The query runs outside the lock.
+     */
+    private static void probe(Connection connection, long since)
+    {
+        List<String[]> events = new ArrayList<String[]>();
+        long seq = since;
+        boolean failed = false;
+        try
+        {
+            Statement s = connection.createStatement();
+            try
+            {
+                ResultSet r = Utility.executeQuery(s,
+                        "SELECT seq,product,productType,pass FROM ProductEvents WHERE seq>"
+                        + Math.max(0L, since - SEQ_WINDOW) + " ORDER BY seq");
+                while (r.next())
+                {
+                    seq = Math.max(seq, r.getLong(1));
+                    events.add(new String[] {r.getString(1), r.getString(2),
+                                             r.getString(3), r.getString(4)});
+                }
+            }
+            finally
+            {
+                s.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            failed = true;
+        }
+
+        synchronized (waiters)
+        {
+            probing = false;
+            if (failed)
+            {
+                unavailableUntil = System.currentTimeMillis() + RETRY_INTERVAL;
+                lastSeq = -1L;
+                seen.clear();
+            }
+            else
+            {
+                lastSeq = Math.max(lastSeq, seq);
+                for (String[] e : events)
+                {
+                    if (seen.add(Long.valueOf(e[0])))
+                    {
+                        signal(e[1], e[2], e[3]);
+                    }
+                }
+                for (Iterator<Long> i = seen.iterator(); i.hasNext(); )
+                {
+                    if (i.next().longValue() <= lastSeq - SEQ_WINDOW) i.remove();
+                }
+            }
+            waiters.notifyAll();
+        }
+    }
+
+    /**
+     * ProductStore calls this after it commits a product. It wakes matching
+     * waiters in this JVM without waiting for the next probe.
+     */
+    static void announce(String productId, String productType, String passId)
+    {
+        synchronized (waiters)
+        {
+            if (signal(productId, productType, passId))
+            {
+                waiters.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Append a row to the ProductEvents table. ProductStore calls this
+     * inside its transaction. A database without the table does not fail
+     * the store; we just stop trying for a while. Any other error (such as
+     * a deadlock, which rolls the transaction back) is thrown, so the store
+     * fails too.
+     */
+    static void record(Statement statement, String productId, String productType,
+            String passId) throws SQLException
+    {
+        if (!recording && System.currentTimeMillis() < recordRetry)
+        {
+            return;
+        }
+        try
+        {
+            Utility.executeUpdate(statement,
+                    "INSERT INTO ProductEvents (product,productType,pass,creation) VALUES ("
+                    + productId + Utility.COMMA
+                    + Utility.quoteComma(productType)
+                    + passId + Utility.COMMA
+                    + Utility.quote(Utility.format(new java.util.Date())) + ")");
+            recording = true;
+        }
+        catch (SQLException e)
+        {
+            if (!WorkQueue.isMissingTable(e)) throw e;
+            recording = false;
+            recordRetry = System.currentTimeMillis() + RETRY_INTERVAL;
+        }
+    }
+
+    /**
+     * record() for many stored products, as one multi-row INSERT.
+     */
+    static void record(Statement statement, java.util.Collection<Product> products)
+            throws SQLException
+    {
+        if (products.isEmpty()
+            || (!recording && System.currentTimeMillis() < recordRetry))
+        {
+            return;
+        }
+        String now = Utility.quote(Utility.format(new java.util.Date()));
+        StringBuilder sql = new StringBuilder(64 * products.size() + 80);
+        sql.append("INSERT INTO ProductEvents (product,productType,pass,creation) VALUES ");
+        boolean first = true;
+        for (Product p : products)
+        {
+            if (!first) sql.append(Utility.COMMA);
+            first = false;
+            sql.append("(").append(p.getId()).append(Utility.COMMA);
+            sql.append(Utility.quoteComma(p.getProductType()));
+            sql.append(p.getPass().getId()).append(Utility.COMMA);
+            sql.append(now).append(")");
+        }
+        try
+        {
+            Utility.executeUpdate(statement, sql.toString());
+            recording = true;
+        }
+        catch (SQLException e)
+        {
+            if (!WorkQueue.isMissingTable(e)) throw e;
+            recording = false;
+            recordRetry = System.currentTimeMillis() + RETRY_INTERVAL;
+        }
+    }
+
+    /**
+     * Caller must hold the waiters lock.
+     */
+    private static boolean signal(String productId, String productType, String passId)
+    {
+        boolean any = false;
+        for (Waiter w : waiters)
+        {
+            if (w.matches(productId, productType, passId))
+            {
+                w.signalled = true;
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    /**
+     * Note the events already in the window, so the first probe does not
+     * signal them. Caller must hold the waiters lock.
+     * @return the highest seq there is
+     */
+    private static long start(Connection connection) throws SQLException
+    {
+        Statement s = connection.createStatement();
+        try
+        {
+            ResultSet r = Utility.executeQuery(s,
+                    "SELECT seq FROM ProductEvents ORDER BY seq DESC LIMIT " + SEQ_WINDOW);
+            long max = 0L;
+            seen.clear();
+            while (r.next())
+            {
+                long seq = r.getLong(1);
+                max = Math.max(max, seq);
+                seen.add(Long.valueOf(seq));
+            }
+            return max;
+        }
+        finally
+        {
+            s.close();
+        }
+    }
+}
@@ -21,10 +21,26 @@ import gov.nasa.gsfc.nisgs.properties.Utility;
  * @version 3.12 Added addResource().
  * @version 3.18 Added "published" database field to Resource.
  * @version 3.20 Added "delete" flag database field to Product.
+ * @version 3.23 Stores append to the ProductEvents table for ProductNotifier,
+ *      and queue the product for subscribed colonies in the WorkQueue.
+ *      The row inserts use cached PreparedStatements (StatementCache).
+ * @version 3.23 Added storeAll() to store many products with JDBC batches.
+ * @version 3.23 Directory IDs come from DirectoryCache.
  */
 final class ProductStore
 {
     static String IS = "IS";   //when site==IS, resource.published is true.
+
+    /** Most rows we send in one JDBC batch. */
+    private static final int BATCH = 500;
+
+    private static final String PRODUCTS_INSERT =
+        "INSERT INTO Products VALUES (NULL,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,0,?)";
+    private static final String RESOURCES_INSERT =
+        "INSERT INTO Resources (product,rkey,path,description,published) VALUES (?,?,?,?,?)";
+    private static final String RESOURCE_SITES_INSERT =
+        "INSERT INTO ResourceSites (resource,site,directory,creation) VALUES (?,?,?,?)";
+
     static void setInformationServicesSite(String is)
     {
         IS = is;
@@ -53,16 +69,23 @@ final class ProductStore
         Statement statement = connection.createStatement();
         try
         {
-            insertIntoProductsTable(statement,product);
-            productId = Utility.getLastAutoIncrementedValue(statement);
+            insertIntoProductsTable(connection,product);
+            productId = StatementCache.lastInsertId(connection);
             product.setId(productId);
             insertIntoResourcesTable(connection,statement,product,site);
-            insertIntoThumbnailsTable(statement,product);
+            insertIntoThumbnailsTable(connection,statement,product);
             insertIntoContributorsTable(connection,product);
-            insertIntoAncestorsTable(statement,product);
+            insertIntoAncestorsTable(connection,product);
             insertIntoSubproductTable(statement,product);
+            ProductNotifier.record(statement,productId,product.getProductType(),
+                                   product.getPass().getId());
+            WorkQueue.fanOut(statement,productId);
             if(commitp)
+            {
 		Utility.commitConnection(connection);
+                ProductNotifier.announce(productId,product.getProductType(),
+                                         product.getPass().getId());
+            }
         }
         catch (Exception e)
         {
@@ -77,6 +100,84 @@ final class ProductStore
         return productId;
     }
 
+    /**
+     * Store many new products into the DSM database in one transaction.
+     * This does what store() does for each product, but the Products,
+     * Resources, ResourceSites and Ancestors rows go in as JDBC batches,
+     * with the generated IDs read back from each batch, so the cost is a
+     * few round trips per BATCH products rather than several per product.
+     * Either every product is stored or none is.
+     * <p>
+     * Add rewriteBatchedStatements=true to the JDBC URL to have the driver
+     * send each batch as one multi-row INSERT. The driver then works out
+     * the generated IDs from the first one, which is only right if
+     * innodb_autoinc_lock_mode is 0 or 1 (the MySQL 5 default).
+     * @return the product IDs, in the order of the products
+     */
+    static List<String> storeAll(Connection connection, Collection<Product> products,
+            String site, String maker, boolean commitp) throws Exception
+    {
+        List<Product> all = new ArrayList<Product>(products);
+        for (Product product : all)
+        {
+            if (product.getResources().isEmpty())
+            {
+                throw new SQLException("No resources in this product");
+            }
+            String agent = product.getAgent();
+            if (agent == null || agent.equals("****"))
+            {
+                if (maker == null) maker = site + ".unknown";
+                product.setAgent(maker);
+            }
+        }
+
+        List<String> productIds = new ArrayList<String>(all.size());
+        Statement statement = connection.createStatement();
+        try
+        {
+            for (int from = 0; from < all.size(); from += BATCH)
+            {
+                List<Product> batch = all.subList(from, Math.min(all.size(), from + BATCH));
+                List<String> ids = insertIntoProductsTable(connection,batch);
+                insertIntoResourcesTable(connection,batch,site);
+                insertIntoAncestorsTable(connection,batch);
+                for (Product product : batch)
+                {
+                    insertIntoThumbnailsTable(connection,statement,product);
+                    insertIntoContributorsTable(connection,product);
+                    insertIntoSubproductTable(statement,product);
+                }
+                ProductNotifier.record(statement,batch);
+                WorkQueue.fanOut(statement,ids);
+                productIds.addAll(ids);
+            }
+            if (commitp)
+            {
+                Utility.commitConnection(connection);
+                for (Product product : all)
+                {
+                    ProductNotifier.announce(product.getId(),product.getProductType(),
+                                             product.getPass().getId());
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            connection.rollback();
+            for (Product product : all)
+            {
+                product.setId(null);
+            }
+            throw e;
+        }
+        finally
+        {
+            statement.close();
+        }
+        return productIds;
+    }
+
     /**
      * Add a new resource to an existing product.
      */
@@ -104,48 +205,163 @@ final class ProductStore
      * Build and store a product row into the Products table.
      * It does not handle other tables.
      */
-    private static void insertIntoProductsTable(Statement statement, Product product)
+    private static void insertIntoProductsTable(Connection connection, Product product)
+            throws SQLException
+    {
+        PreparedStatement ps = StatementCache.prepare(connection, PRODUCTS_INSERT);
+        bindProduct(ps, product);
+        ps.executeUpdate();
+    }
+
+    /**
+     * Set the PRODUCTS_INSERT parameters for a product.
+     */
+    private static void bindProduct(PreparedStatement ps, Product product)
             throws SQLException
     {
-        StringBuffer sb = new StringBuffer(512);
-        sb.append("INSERT INTO Products VALUES (NULL,");
-        sb.append(Utility.quoteComma(product.getProductType()));
-        sb.append(product.getPass().getId());
-        sb.append(Utility.COMMA);
-        String startTime = Utility.format(product.getStartTime());
-        sb.append(Utility.quoteComma(startTime));
-        String stopTime = Utility.format(product.getStopTime());
-        sb.append(Utility.quoteComma(stopTime));
-        String creation = Utility.format(product.getCreationTime());
-        sb.append(Utility.quoteComma(creation));
-        sb.append(Utility.quoteComma(product.getAgent()));
-        float xx = product.getCenterLatitude();
-        sb.append(Float.isNaN(xx)? "NULL" : Float.toString(xx));
-        sb.append(Utility.COMMA);
-        xx = product.getCenterLongitude();
-        sb.append(Float.isNaN(xx)? "NULL" : Float.toString(xx));
-        sb.append(Utility.COMMA);
-        xx = product.getNorthLatitude();
-        sb.append(Float.isNaN(xx)? "NULL" : Float.toString(xx));
-        sb.append(Utility.COMMA);
-        xx = product.getSouthLatitude();
-        sb.append(Float.isNaN(xx)? "NULL" : Float.toString(xx));
-        sb.append(Utility.COMMA);
-        xx = product.getEastLongitude();
-        sb.append(Float.isNaN(xx)? "NULL" : Float.toString(xx));
-        sb.append(Utility.COMMA);
-        xx = product.getWestLongitude();
-        sb.append(Float.isNaN(xx)? "NULL" : Float.toString(xx));
-        sb.append(Utility.COMMA);
-        sb.append(Utility.quoteComma(product.getSubproduct()));
-        sb.append(Utility.quoteComma(product.getAlgorithm()));
-        sb.append(Utility.quoteComma(product.getAlgorithmVersion()));
-        sb.append((product.getThumbnails() != null)? "1," : "0,");
-        sb.append(product.isDeleteProtected()? "1,0," : "0,0,");
-	sb.append(product.getMarkerId());
-	sb.append(")");
-        String xproduct = sb.toString();
-        Utility.executeUpdate(statement, xproduct);
+        StatementCache.bind(ps,
+                product.getProductType(),
+                product.getPass().getId(),
+                Utility.format(product.getStartTime()),
+                Utility.format(product.getStopTime()),
+                Utility.format(product.getCreationTime()),
+                product.getAgent(),
+                product.getCenterLatitude(),
+                product.getCenterLongitude(),
+                product.getNorthLatitude(),
+                product.getSouthLatitude(),
+                product.getEastLongitude(),
+                product.getWestLongitude(),
+                product.getSubproduct(),
+                product.getAlgorithm(),
+                product.getAlgorithmVersion(),
+                (product.getThumbnails() != null)? 1 : 0,
+                product.isDeleteProtected()? 1 : 0,
+                product.getMarkerId());
+    }
+
+    /**
+     * Store the Products rows for a batch of products as one JDBC batch,
+     * and give each product its ID.
+     */
+    private static List<String> insertIntoProductsTable(Connection connection,
+            List<Product> products) throws SQLException
+    {
+        List<String> ids = new ArrayList<String>(products.size());
+        PreparedStatement ps = connection.prepareStatement(PRODUCTS_INSERT,
+                                                           Statement.RETURN_GENERATED_KEYS);
+        try
+        {
+            for (Product product : products)
+            {
+                bindProduct(ps, product);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            ResultSet keys = ps.getGeneratedKeys();
+            while (keys.next())
+            {
+                ids.add(keys.getString(1));
+            }
+            keys.close();
+        }
+        finally
+        {
+            ps.close();
+        }
+        if (ids.size() != products.size())
+        {
+            throw new SQLException("Got " + ids.size() + " product IDs for "
+                                   + products.size() + " products");
+        }
+        for (int i = 0; i < ids.size(); i++)
+        {
+            products.get(i).setId(ids.get(i));
+        }
+        return ids;
+    }
+
+    /**
+     * Store the resources of a batch of products: the Resources rows as
+     * one JDBC batch, then their ResourceSites rows as another.
+     */
+    private static void insertIntoResourcesTable(Connection connection,
+            List<Product> products, String site) throws Exception
+    {
+        String published = site.equals(IS)? "1" : "0";
+        String creation = Utility.format(new java.util.Date());
+        List<Resource> resources = new ArrayList<Resource>();
+        Map<String,String> directories = new HashMap<String,String>();
+        PreparedStatement ps = connection.prepareStatement(RESOURCES_INSERT,
+                                                           Statement.RETURN_GENERATED_KEYS);
+        try
+        {
+            for (Product product : products)
+            {
+                for (Map.Entry<String,Resource> e : product.getResourcesMap().entrySet())
+                {
+                    Resource resource = e.getValue();
+                    resource.setKey(e.getKey());
+                    File file = resource.getFile();
+                    StatementCache.bind(ps, product.getId(), e.getKey(), file.getName(),
+                                        resource.getDescription(), published);
+                    ps.addBatch();
+                    resources.add(resource);
+                }
+            }
+            ps.executeBatch();
+            ResultSet keys = ps.getGeneratedKeys();
+            PreparedStatement sites = StatementCache.prepare(connection,RESOURCE_SITES_INSERT);
+            sites.clearBatch();
+            int n = 0;
+            while (keys.next())
+            {
+                String parent = resources.get(n++).getFile().getParent();
+                String directoryId = directories.get(parent);
+                if (directoryId == null)
+                {
+                    directoryId = DirectoryCache.getId(connection,parent);
+                    directories.put(parent,directoryId);
+                }
+                StatementCache.bind(sites, keys.getString(1), site, directoryId, creation);
+                sites.addBatch();
+            }
+            keys.close();
+            if (n != resources.size())
+            {
+                throw new SQLException("Got " + n + " resource IDs for "
+                                       + resources.size() + " resources");
+            }
+            sites.executeBatch();
+        }
+        finally
+        {
+            ps.close();
+        }
+    }
+
+    /**
+     * Store the Ancestors rows for a batch of products as one JDBC batch.
+     */
+    private static void insertIntoAncestorsTable(Connection connection,
+            List<Product> products) throws SQLException
+    {
+        PreparedStatement ps = StatementCache.prepare(connection,
+                                                      "INSERT INTO Ancestors VALUES (?,?)");
+        ps.clearBatch();
+        int count = 0;
+        for (Product product : products)
+        {
+            Collection<String> ancestors = product.getContributingProductsIds();
+            if (ancestors == null) continue;
+            for (String ancestorId : ancestors)
+            {
+                StatementCache.bind(ps, product.getId(), ancestorId);
+                ps.addBatch();
+                ++count;
+            }
+        }
+        if (count > 0) ps.executeBatch();
     }
 
     /**
@@ -176,38 +392,23 @@ final class ProductStore
         File file = resource.getFile();
         String published = site.equals(IS)? "1" : "0";
 
-        String directoryId = Utility.getDirectoryId(connection,file.getParent(),false);
-        StringBuffer sb = new StringBuffer(512);
-        sb.append("INSERT INTO Resources (product,rkey,path,description,published) VALUES (");
-        sb.append(product.getId());
-        sb.append(Utility.COMMA);
-        sb.append(Utility.quoteComma(key));
-        sb.append(Utility.quoteComma(file.getName()));
-        sb.append(Utility.quoteComma(resource.getDescription()));
-        sb.append(published);
-        sb.append(")");
-        Utility.executeUpdate(statement, sb.toString());
+        String directoryId = DirectoryCache.getId(connection,file.getParent());
+        StatementCache.update(connection,
+                "INSERT INTO Resources (product,rkey,path,description,published) VALUES (?,?,?,?,?)",
+                product.getId(), key, file.getName(), resource.getDescription(), published);
 
-        String resourceId = Utility.getLastAutoIncrementedValue(statement);
-        sb.setLength(0);
-        sb.append("INSERT INTO ResourceSites (resource,site,directory,creation) VALUES (");
-        sb.append(resourceId);
-        sb.append(Utility.COMMA);
-        sb.append(Utility.quoteComma(site));
-        sb.append(directoryId);
-        sb.append(Utility.COMMA);
-        String creation = Utility.format(new java.util.Date());
-        sb.append(Utility.quote(creation));
-        sb.append(")");
-        Utility.executeUpdate(statement, sb.toString());
+        String resourceId = StatementCache.lastInsertId(connection);
+        StatementCache.update(connection,
+                "INSERT INTO ResourceSites (resource,site,directory,creation) VALUES (?,?,?,?)",
+                resourceId, site, directoryId, Utility.format(new java.util.Date()));
     }
 
     /**
      * This method builds and stores thumbnail rows into the Thumbnails
      * table. It handles two tables: Thumbnails and ProductThumbnails.
      */
-    private static void insertIntoThumbnailsTable(Statement statement,
-            Product product) throws SQLException
+    private static void insertIntoThumbnailsTable(Connection connection,
+            Statement statement, Product product) throws SQLException
     {
         Collection thumbnailCollection = product.getThumbnails();
         if (thumbnailCollection != null)
@@ -239,9 +440,9 @@ final class ProductStore
                     resourceId = Utility.getLastAutoIncrementedValue(statement);
                 }
 
-                String sql = "INSERT INTO ProductThumbnails VALUES (" +
-                        product.getId() + "," + resourceId + ")";
-                Utility.executeUpdate(statement, sql);
+                StatementCache.update(connection,
+                        "INSERT INTO ProductThumbnails VALUES (?,?)",
+                        product.getId(), resourceId);
             }
         }
     }
@@ -265,15 +466,9 @@ final class ProductStore
 						  ", description=" + Utility.quote(contributor.getDescription()),
 						  false);
 
-		Statement statement = connection.createStatement();
-		try {
-		    String sql = "INSERT INTO ProductContributors VALUES (" +
-			product.getId() + "," + resourceID + ")";
-		    Utility.executeUpdate(statement, sql);
-		}
-		finally {
-		    statement.close();
-		}
+		StatementCache.update(connection,
+				      "INSERT INTO ProductContributors VALUES (?,?)",
+				      product.getId(), resourceID);
 		/*
 		  sb.setLength(0);
 		  Resource contributor = (Resource)ci.next();
@@ -308,7 +503,7 @@ final class ProductStore
     /**
      * This method builds and stores ancestor rows into the Ancestors table.
      */
-    private static void insertIntoAncestorsTable(Statement statement,
+    private static void insertIntoAncestorsTable(Connection connection,
             Product product) throws SQLException
     {
         Collection ancestorCollection = product.getContributingProductsIds();
@@ -318,9 +513,8 @@ final class ProductStore
             while (ci.hasNext())
             {
                 String ancestorId = (String)ci.next();
-                String sql = "INSERT INTO Ancestors VALUES (" +
-                        product.getId() + "," + ancestorId + ")";
-                Utility.executeUpdate(statement, sql);
+                StatementCache.update(connection, "INSERT INTO Ancestors VALUES (?,?)",
+                                      product.getId(), ancestorId);
             }
         }
     }
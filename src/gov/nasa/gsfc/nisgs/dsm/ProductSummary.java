@@ -0,0 +1,178 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.sql.ResultSet;
+import java.util.Date;
+import gov.nasa.gsfc.nisgs.properties.Utility;
+
+/**
+ * ProductSummary is the part of a product that product lists show: its ID,
+ * type, pass, times, agent and flags. It is made from one row of one
+ * query, without the resources, locations or lineage that make a Product
+ * expensive, and it cannot be changed. Use DSM.getProduct() on its ID when
+ * you need the whole product.
+ * @version 3.23 Added.
+ */
+public final class ProductSummary implements java.io.Serializable, Comparable<ProductSummary>
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The columns a summary needs, for "SQL + WHERE ...". "published" is
+     * true if any resource of the product is published.
+     */
+    static final String SELECT = "SELECT Products.id,Products.productType,Products.pass,"
+        + "Products.startTime,Products.stopTime,Products.creation,Products.agent,"
+        + "Products.deleteProtected,"
+        + "EXISTS(SELECT 1 FROM Resources WHERE Resources.product=Products.id"
+        + " AND Resources.published=1) AS published FROM Products";
+
+    private final long id;
+    private final String productType;
+    private final long passId;
+    private final long startTime;
+    private final long stopTime;
+    private final long creation;
+    private final String agent;
+    private final boolean deleteProtected;
+    private final boolean published;
+
+    /**
+     * Make a summary from the current row of a result set of SELECT.
+     */
+    ProductSummary(ResultSet r) throws Exception
+    {
+        id = r.getLong("id");
+        productType = r.getString("productType");
+        passId = r.getLong("pass");
+        startTime = Utility.parse(r.getString("startTime")).getTime();
+        stopTime = Utility.parse(r.getString("stopTime")).getTime();
+        creation = Utility.parse(r.getString("creation")).getTime();
+        agent = r.getString("agent");
+        deleteProtected = r.getBoolean("deleteProtected");
+        published = r.getBoolean("published");
+    }
+
+    /**
+     * Get the product ID.
+     */
+    public String getId()
+    {
+        return Long.toString(id);
+    }
+
+    /**
+     * Get the product type.
+     */
+    public String getProductType()
+    {
+        return productType;
+    }
+
+    /**
+     * Get the database ID of the product's pass.
+     */
+    public String getPassId()
+    {
+        return Long.toString(passId);
+    }
+
+    /**
+     * Get the product start time in milliseconds since the epoch.
+     */
+    public long getStartMillis()
+    {
+        return startTime;
+    }
+
+    /**
+     * Get the product stop time in milliseconds since the epoch.
+     */
+    public long getStopMillis()
+    {
+        return stopTime;
+    }
+
+    /**
+     * Get the time the product was created in milliseconds since the epoch.
+     */
+    public long getCreationMillis()
+    {
+        return creation;
+    }
+
+    /**
+     * Get the product start time as a string in this form:
+     * "yyyy-MMM-dd HH:mm:ss"
+     */
+    public String getStartTimeString()
+    {
+        return Utility.format(new Date(startTime));
+    }
+
+    /**
+     * Get the product stop time as a string in this form:
+     * "yyyy-MMM-dd HH:mm:ss"
+     */
+    public String getStopTimeString()
+    {
+        return Utility.format(new Date(stopTime));
+    }
+
+    /**
+     * Get the creation time as a string in this form:
+     * "yyyy-MMM-dd HH:mm:ss"
+     */
+    public String getCreationTimeString()
+    {
+        return Utility.format(new Date(creation));
+    }
+
+    /**
+     * Get the name of the agent who stored the product.
+     */
+    public String getAgent()
+    {
+        return agent;
+    }
+
+    /**
+     * Determine if this product is protected from routine cleanup.
+     */
+    public boolean isDeleteProtected()
+    {
+        return deleteProtected;
+    }
+
+    /**
+     * Determine if any of this product's resources is published.
+     */
+    public boolean isPublished()
+    {
+        return published;
+    }
+
+    public String toString()
+    {
+        return "Product " + id + " " + productType + " " +
+                getStartTimeString() + " " + getStopTimeString();
+    }
+
+    public int compareTo(ProductSummary p)
+    {
+        return (id < p.id)? -1 : ((id == p.id)? 0 : 1);
+    }
+
+    public boolean equals(Object o)
+    {
+        return (o instanceof ProductSummary) && ((ProductSummary)o).id == id;
+    }
+
+    public int hashCode()
+    {
+        return (int)(id ^ (id >>> 32));
+    }
+}
@@ -121,6 +121,19 @@ public final class ProductType implements java.io.Serializable
     if (is_dir != null) is_directory = new File(is_dir);
     }
 
+    /**
+     * Copy a product type. ProductTypeRegistry hands out copies.
+     */
+    ProductType(ProductType pt)
+    {
+        name = pt.name;
+        spacecraft = pt.spacecraft;
+        sensor = pt.sensor;
+        description = pt.description;
+        level = pt.level;
+        is_directory = pt.is_directory;
+    }
+
     /**
      * Another constructor only the DSM uses.
      */
@@ -0,0 +1,290 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import gov.nasa.gsfc.nisgs.properties.Utility;
+
+/**
+ * ProductTypeRegistry keeps the whole ProductTypes table in memory, so that
+ * product type lookups and the reservation type checks do not query it
+ * every time. It is not public. There is one registry per JVM.
+ * <p>
+ * The table changes only when someone creates, updates or deletes a type,
+ * and ProductTypes bumps the 'ProductTypes' row of the ChangeCounters table
+ * when it does. We read that counter at most every CHECK_INTERVAL and
+ * reload the table when it moves. A name we do not know forces a full
+ * reload, at most every dsm.productTypeReloadMillis (default 5 seconds),
+ * so a type created moments ago by a writer that did not bump the counter
+ * (hand-run SQL, an old tool) is still found soon after.
+ * Without the ChangeCounters table, every check reloads.
+ * <p>
+ * Names compare without regard to case, as they do in MySQL. LIKE masks
+ * for reserveProductLikeProductType are compiled once into Patterns.
+ */
+final class ProductTypeRegistry
+{
+    private static final long CHECK_INTERVAL =
+        Long.getLong("dsm.productTypeCheckMillis", 10000L).longValue();
+    private static final long RELOAD_INTERVAL =
+        Long.getLong("dsm.productTypeReloadMillis", 5000L).longValue();
+
+    // Replaced, never changed, so readers need no lock
+    private static volatile Map<String,ProductType> types =
+        Collections.<String,ProductType>emptyMap();
+    private static long version = -1L;          // -1 means no counter to check
+    private static long lastCheck = 0L;
+    private static long lastForced = 0L;
+    private static boolean loaded = false;
+
+    private static final Map<String,Pattern> likePatterns = new HashMap<String,Pattern>();
+
+    private ProductTypeRegistry() {}
+
+    /**
+     * Get a copy of a product type by name.
+     * @return the product type, or null if it is not in the ProductTypes table
+     */
+    static ProductType get(Connection connection, String name) throws SQLException
+    {
+        ProductType pt = lookup(connection, name);
+        return (pt == null)? null : new ProductType(pt);
+    }
+
+    /**
+     * Check whether or not a product type is defined.
+     */
+    static boolean isDefined(Connection connection, String name) throws SQLException
+    {
+        return lookup(connection, name) != null;
+    }
+
+    /**
+     * Sanity check before we poll - ensure that the product types called
+     * for exist. With "LIKE", productType is a mask with one wildcard; we
+     * need some type matching it for which every other type, with the same
+     * wildcard text, also exists.
+     * @param productType a product type or LIKE mask, unquoted
+     * @param otherType other product types or masks, unquoted
+     * @param whereCompare "=" or "LIKE"
+     */
+    static void checkTypes(Connection connection, String productType,
+            String[] otherType, String whereCompare) throws Exception
+    {
+        if (whereCompare.equals("="))
+        {
+            boolean ok = isDefined(connection, productType);
+            for (int i = 0; ok && i < otherType.length; i++)
+            {
+                ok = isDefined(connection, otherType[i]);
+            }
+            if (ok) return;
+        }
+        else if (whereCompare.equals("LIKE"))
+        {
+            for (int attempt = 0; attempt < 2; attempt++)
+            {
+                if (attempt > 0 && !reloadForUnknown(connection)) break;
+                Pattern like = likePattern(productType);
+                for (String name : snapshot(connection).keySet())
+                {
+                    Matcher m = like.matcher(name);
+                    if (!m.matches()) continue;
+                    String wildType = (m.groupCount() > 0 && m.group(1) != null)? m.group(1) : "";
+                    boolean ok = true;
+                    for (int i = 0; ok && i < otherType.length; i++)
+                    {
+                        ok = types.containsKey(otherType[i].replace("%", wildType));
+                    }
+                    if (ok) return;
+                }
+            }
+        }
+        else
+        {
+            throw new Exception("Invalid whereCompare: " + whereCompare);
+        }
+        throw new Exception("One of these Product Types does not exist: " + productType
+                            + Arrays.deepToString(otherType));
+    }
+
+    /**
+     * Get the compiled form of a LIKE mask. The first % is captured as
+     * group 1.
+     */
+    static Pattern likePattern(String mask)
+    {
+        synchronized (likePatterns)
+        {
+            Pattern p = likePatterns.get(mask);
+            if (p == null)
+            {
+                StringBuilder sb = new StringBuilder(mask.length() + 16);
+                int literal = 0;
+                for (int i = 0; i < mask.length(); i++)
+                {
+                    char c = mask.charAt(i);
+                    if (c == '%' || c == '_')
+                    {
+                        if (i > literal) sb.append(Pattern.quote(mask.substring(literal, i)));
+                        sb.append((c == '%')? "(.*)" : ".");
+                        literal = i + 1;
+                    }
+                }
+                if (mask.length() > literal) sb.append(Pattern.quote(mask.substring(literal)));
+                p = Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+                likePatterns.put(mask, p);
+            }
+            return p;
+        }
+    }
+
+    /**
+     * Bump the ProductTypes change counter, inside the caller's transaction.
+     * A database without the ChangeCounters table does not fail the write;
+     * any other error does.
+     */
+    static void bump(Statement statement) throws SQLException
+    {
+        try
+        {
+            Utility.executeUpdate(statement,
+                    "INSERT INTO ChangeCounters (name,counter) VALUES ('ProductTypes',1)"
+                    + " ON DUPLICATE KEY UPDATE counter=counter+1");
+        }
+        catch (SQLException e)
+        {
+            if (!WorkQueue.isMissingTable(e)) throw e;
+        }
+    }
+
+
+    /**
+     * Make the next lookup check the counter. Called after this JVM
+     * changes the table.
+     */
+    static synchronized void invalidate()
+    {
+        lastCheck = 0L;
+        loaded = false;
+    }
+
+    private static ProductType lookup(Connection connection, String name) throws SQLException
+    {
+        if (name == null) return null;
+        ProductType pt = snapshot(connection).get(name);
+        if (pt == null && reloadForUnknown(connection))
+        {
+            pt = types.get(name);
+        }
+        return pt;
+    }
+
+    /**
+     * Reload the whole table because a name was not found, whatever the
+     * counter says, unless we did so less than RELOAD_INTERVAL ago.
+     * @return true if the table was reloaded
+     */
+    private static boolean reloadForUnknown(Connection connection) throws SQLException
+    {
+        synchronized (ProductTypeRegistry.class)
+        {
+            long now = System.currentTimeMillis();
+            if (now - lastForced < RELOAD_INTERVAL)
+            {
+                return false;
+            }
+            lastForced = now;
+        }
+        return refresh(connection, true);
+    }
+
+    /**
+     * Get the current table, checking the counter if CHECK_INTERVAL is up.
+     */
+    private static Map<String,ProductType> snapshot(Connection connection) throws SQLException
+    {
+        synchronized (ProductTypeRegistry.class)
+        {
+            if (loaded && System.currentTimeMillis() - lastCheck < CHECK_INTERVAL)
+            {
+                return types;
+            }
+        }
+        refresh(connection, false);
+        return types;
+    }
+
+    /**
+     * Read the counter and reload the table if it moved (or if there is
+     * no counter, or we are told to).
+     * @return true if the table was reloaded
+     */
+    private static boolean refresh(Connection connection, boolean force) throws SQLException
+    {
+        long counter = readCounter(connection);
+        synchronized (ProductTypeRegistry.class)
+        {
+            lastCheck = System.currentTimeMillis();
+            if (!force && loaded && counter >= 0L && counter == version)
+            {
+                return false;
+            }
+        }
+        Map<String,ProductType> fresh =
+            new TreeMap<String,ProductType>(String.CASE_INSENSITIVE_ORDER);
+        ResultSet r = StatementCache.query(connection, "SELECT * FROM ProductTypes");
+        try
+        {
+            while (r.next())
+            {
+                ProductType pt = new ProductType(r);
+                fresh.put(pt.getName(), pt);
+            }
+        }
+        finally
+        {
+            r.close();
+        }
+        synchronized (ProductTypeRegistry.class)
+        {
+            types = Collections.unmodifiableMap(fresh);
+            version = counter;
+            loaded = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return the ProductTypes change counter, or -1 if there is none
+     */
+    private static long readCounter(Connection connection)
+    {
+        try
+        {
+            ResultSet r = StatementCache.query(connection,
+                    "SELECT counter FROM ChangeCounters WHERE name='ProductTypes'");
+            try
+            {
+                return r.next()? r.getLong(1) : 0L;
+            }
+            finally
+            {
+                r.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            return -1L;
+        }
+    }
+}
@@ -12,6 +12,7 @@ import gov.nasa.gsfc.nisgs.properties.Utility;
  * The job of this static class is handle anything to do with product types
  * and the ProductTypes table in the database. It should not be instantiated.
  * It exists to reduce the size and complexity of DSM and DSMAdministrator.
+ * Lookups go through ProductTypeRegistry; changes bump its change counter.
  */
 public class ProductTypes
 {
@@ -22,17 +23,7 @@ public class ProductTypes
     static boolean isDefined(Connection connection, String name)
 	throws Exception
     {
-	boolean answer = false;
-	Statement s = connection.createStatement();
-	try {
-	    ResultSet r = Utility.executeQuery(s, "SELECT * FROM ProductTypes WHERE name=" + Utility.quote(name));
-	    if(r.next())
-		answer = true;
-	}
-	finally {
-	    s.close();
-	}
-	return answer;
+	return ProductTypeRegistry.isDefined(connection, name);
     }
 
     /**
@@ -44,7 +35,16 @@ public class ProductTypes
     static ProductType getProductType(Connection connection, String name)
             throws Exception
     {
-        Statement s = connection.createStatement();
+        return ProductTypeRegistry.get(connection, name);
+    }
+
+    /**
+     * Read one product type straight from the table, for updateProductType,
+     * which holds a table lock the registry does not know about.
+     */
+    private static ProductType readProductType(Statement s, String name)
+            throws Exception
+    {
         ResultSet r = Utility.executeQuery(s, "SELECT * FROM ProductTypes WHERE name=" +
                 Utility.quote(name));
         ProductType productType = null;
@@ -52,7 +52,7 @@ public class ProductTypes
         {
             productType = new ProductType(r);
         }
-        s.close();
+        r.close();
         return productType;
     }
 
@@ -80,8 +80,10 @@ public class ProductTypes
         sb.append(Utility.quote(sdir));
         sb.append(")");
         Utility.executeUpdate(statement, sb.toString());
+        ProductTypeRegistry.bump(statement);
         Utility.commitConnection(connection);
         statement.close();
+        ProductTypeRegistry.invalidate();
     }
 
     /**
@@ -94,10 +96,18 @@ public class ProductTypes
             throws Exception
     {
         Statement statement = connection.createStatement();
-        Utility.executeUpdate(statement, "LOCK TABLES ProductTypes WRITE");
         try
         {
-            ProductType pt = getProductType(connection, productType.getName());
+            // The change counter must be locked too, if there is one
+            Utility.executeUpdate(statement, "LOCK TABLES ProductTypes WRITE, ChangeCounters WRITE");
+        }
+        catch (SQLException e)
+        {
+            Utility.executeUpdate(statement, "LOCK TABLES ProductTypes WRITE");
+        }
+        try
+        {
+            ProductType pt = readProductType(statement, productType.getName());
             if (pt == null)
             {
                 //not in table
@@ -129,7 +139,9 @@ public class ProductTypes
                 sb.append(Utility.quote(productType.getName()));
                 String sql = sb.toString();
                 Utility.executeUpdate(statement, sql);
+                ProductTypeRegistry.bump(statement);
                 Utility.commitConnection(connection);
+                ProductTypeRegistry.invalidate();
             }
         }
         catch (SQLException e)
@@ -154,8 +166,10 @@ public class ProductTypes
         Statement s = connection.createStatement();
         Utility.executeUpdate(s, "DELETE ProductTypes FROM ProductTypes WHERE name=" +
                 Utility.quote(name));
+        ProductTypeRegistry.bump(s);
         Utility.commitConnection(connection);
         s.close();
+        ProductTypeRegistry.invalidate();
     }
 
     /**
@@ -7,7 +7,11 @@ package gov.nasa.gsfc.nisgs.dsm;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import gov.nasa.gsfc.nisgs.properties.Utility;
@@ -22,17 +26,32 @@ import gov.nasa.gsfc.nisgs.properties.Utility;
  */
 final public class Reservation
 {
-    private static final long TRANSFER_COMMAND_WAIT = 6000L;
+    // Extra candidates fetched beyond what we want, to cover grabs lost to other stations;
+    // also bounds the number of grab rounds in one reserve
+    private static final int CANDIDATE_SLACK = 32;
     private Connection connection;
     private String mysite;
     private String issite;
     private String mypid;
+    private TransferWatcher transferWatcher;
+    private ProductLoader productLoader;
+    // Granule indexes for the granule reserve, by whereCompare and product type
+    private final Map<String,GranuleIndex> granuleIndexes = new HashMap<String,GranuleIndex>();
 
     public void setPid(String pid)
     {
 	mypid = pid;
     }
 
+    /**
+     * Split a space-delimited list of product types, giving a zero-size
+     * array for "".
+     */
+    private static String[] split(String otherTypes)
+    {
+	return otherTypes.equals("")? new String[] {} : otherTypes.split(" +");
+    }
+
     /**
      * Stupid little utility function that takes a space-delimited
      * list of product types and returns an array of SQL-quoted
@@ -56,11 +75,14 @@ final public class Reservation
 	return result;
     }
 
-    Reservation(Connection c, String mysite, String issite)
+    Reservation(Connection c, String mysite, String issite, TransferWatcher transferWatcher,
+                ProductLoader productLoader)
     {
         connection = c;
         this.mysite = mysite;
 	this.issite = issite;
+        this.transferWatcher = transferWatcher;
+        this.productLoader = productLoader;
     }
 
     /**
@@ -109,7 +131,8 @@ final public class Reservation
 	final String qotherType[] = splitquote(otherTypes);
 
 	// Before we start polling, do a sanity check on the types
-	checkTypes(connection, qproductType, qotherType, whereCompare);
+	ProductTypeRegistry.checkTypes(connection, productType, split(otherTypes), whereCompare);
+	WorkQueue.subscribe(connection, qgroup, qproductType, whereCompare);
 
 	// Go off and poll
 	return poll(
@@ -125,6 +148,39 @@ final public class Reservation
 		    (long)timeSleep);
     }
 
+    /**
+     * Reserve up to maxCount products of type productType that are unmarked
+     * by this group, with one candidate scan. This method marks the products
+     * with this group name. It blocks until it gets at least one.
+     * @param myqroup a group name, unquoted
+     * @param productType a product type
+     * @param otherTypes A space-separated list of other product types
+     * @param maxCount The most products to reserve. It must be > 0.
+     * @param timeSleep The time in seconds between polls. It must be > 0.
+     * @return a list of one to maxCount products.
+     */
+    List<Product> reserveProducts(String mygroup, String productType, String otherTypes,
+				  int maxCount, int timeSleep)
+	throws Exception
+    {
+	String qgroup = Utility.quote(mygroup);
+	String whereCompare = "=";
+	String qproductType = Utility.quote(productType);
+	String qotherType[] = splitquote(otherTypes);
+
+	// Before we start polling, do a sanity check on the types
+	ProductTypeRegistry.checkTypes(connection, productType, split(otherTypes), whereCompare);
+	WorkQueue.subscribe(connection, qgroup, qproductType, whereCompare);
+
+	List<Product> products;
+	while ((products = reserve(qgroup, qproductType, qotherType, whereCompare, maxCount)).isEmpty())
+	{
+	    try { Thread.sleep((long)timeSleep); }
+	    catch (InterruptedException ie) {}
+	}
+	return products;
+    }
+
     /**
      * Reserve a product that is unmarked by this group in which the product's
      * type matches the product type mask. This method marks the product with
@@ -154,7 +210,9 @@ final public class Reservation
 		final String qotherType[] =  splitquote(otherTypes.replaceAll("\\{[^}]*}","%"));
 
 		// Before we start polling, do a sanity check on the types
-		checkTypes(connection, qproductTypeMask, qotherType, whereCompare);
+		ProductTypeRegistry.checkTypes(connection, productTypeMask,
+						 split(otherTypes.replaceAll("\\{[^}]*}","%")), whereCompare);
+		WorkQueue.subscribe(connection, qgroup, qproductTypeMask, whereCompare);
 
 		// Go off and poll
 		return poll(
@@ -198,7 +256,8 @@ final public class Reservation
 	final String qotherType[] = splitquote(otherTypes);
 
 	// Before we start polling, do a sanity check on the types
-	checkTypes(connection, qproductType, qotherType, whereCompare);
+	ProductTypeRegistry.checkTypes(connection, productType, split(otherTypes), whereCompare);
+	WorkQueue.subscribe(connection, qgroup, qproductType, whereCompare);
 
 	// Go off and poll
 	return poll(
@@ -253,7 +312,9 @@ final public class Reservation
 		final String qotherType[] =  splitquote(otherTypes.replaceAll("\\{[^}]*}","%"));
 
 		// Before we start polling, do a sanity check on the types
-		checkTypes(connection, qproductTypeMask, qotherType, whereCompare);
+		ProductTypeRegistry.checkTypes(connection, productTypeMask,
+						 split(otherTypes.replaceAll("\\{[^}]*}","%")), whereCompare);
+		WorkQueue.subscribe(connection, qgroup, qproductTypeMask, whereCompare);
 
 		// Go off and poll
 		return poll(
@@ -279,15 +340,7 @@ final public class Reservation
      */
     Product getProduct(String productID) throws Exception
     {
-        Product product = null;
-        Statement s = connection.createStatement();
-        ResultSet r = Utility.executeQuery(s, "SELECT * FROM Products WHERE id=" + productID);
-        if (r.next())
-        {
-            product = ProductFactory.makeProduct(connection,mysite,r);
-        }
-        s.close();
-        return product;
+        return ProductFactory.getProduct(connection,mysite,productID,productLoader);
     }
 
     /**
@@ -299,126 +352,22 @@ final public class Reservation
      */
     Product copyProduct(String productID) throws Exception
     {
-        Statement s = connection.createStatement();
-        String today = Utility.format(new java.util.Date());
-        String sql = "INSERT LOW_PRIORITY INTO TransferCommands VALUES (DEFAULT,\'Products\'," +
-                productID + Utility.COMMA + Utility.quoteComma(mysite) +
-                Utility.quoteComma(today) + "0)";
-        Utility.executeUpdate(s, sql);
-        Utility.commitConnection(connection);
-        String id = Utility.getLastAutoIncrementedValue(s);
-        int complete = 0;
-        do
-        {
-            try { Thread.sleep(TRANSFER_COMMAND_WAIT); }
-            catch ( InterruptedException e) {}
-            ResultSet r = Utility.executeQuery(s, "SELECT complete FROM TransferCommands WHERE id=" + id);
-            if (r.next())
-            {
-                complete = r.getInt(1);
-            }
-        }
-        while (complete == 0);
-        s.close();
+        String id = transferWatcher.request(connection, "Products", productID);
+        int complete = TransferWatcher.await(transferWatcher.watch(id)).intValue();
         return (complete == 1)? getProduct(productID) : null;
     }
 
     /**
-     * Sanity check before we poll - want to ensure that the product types
-     * called for exist.  It gets a little complex when there are wild cards
-     * in the types - sorry about that...
+     * Start copying a product from another site (computer) to this site
+     * (computer), and return at once. The TransferCommand is committed
+     * before we return.
+     * @return a future for a Product object with local resources, or for
+     *      null on failure. The product is made on the watcher's connection.
      */
-
-    static public void checkTypes(Connection connection,
-			   String productType, String[] otherType,
-			   String whereCompare)
-	throws Exception
+    CompletableFuture<Product> copyProductAsync(String productID) throws Exception
     {
-	// We want to do an SQL query of the form
-	// SELECT pt.name, pt0.name...
-	// FROM pt as ProductTypes, pt0 as ProductTypes...
-	// WHERE pt.name = $productType
-	// AND pt0.name = $otherType[0] ...
-	Statement s = null;
-	String sql = null;
-	int i;
-	try {
-	    s = connection.createStatement();
-
-	    if (whereCompare.equals("=")) {
-		sql = "SELECT pt.name";
-		for(i=0; i < otherType.length; i++)
-		    sql += ", pt" + i + ".name";
-
-		sql += " FROM ProductTypes AS pt";
-		for(i=0; i < otherType.length; i++)
-		    sql += ", ProductTypes AS pt" + i;
-
-		sql += " WHERE pt.name = " + productType;
-		for(i=0; i < otherType.length; i++)
-		    sql += " AND pt" + i + ".name = " + otherType[i];
-
-		ResultSet rs = Utility.executeQuery(s, sql);
-		if(!rs.next())
-		    throw new Exception("One of these Product Types does not exist: " + productType + Arrays.deepToString(otherType));
-	    }
-	    else if (whereCompare.equals("LIKE")) {
-		// This one's nasty, as we want to do a LIKE query on the
-		// primary productType, then pick it apart and check the
-		// other types.
-		sql = "SELECT name from ProductTypes WHERE name LIKE "
-		    + productType;
-		ResultSet rs = Utility.executeQuery(s, sql);
-		// Drain the query into a List of Strings (to keep
-		// the SQL interface happy so we don't hold the
-		// connection open while we do other things).
-		ArrayList<String> ptype = new ArrayList<String>();
-		while(rs.next()) {
-		    ptype.add(rs.getString(1));
-		}
-		// We need a regular expression to snag the subtype.  This is
-		// OK because we only handle exactly one wildcard...
-		String typeSnag = productType.replace("%", "(\\S+)");
-		// How do we specify that the match must be exact?
-		Pattern tsp = Pattern.compile(typeSnag);
-		for(String ctype : ptype) {
-		    // The ctype strings are plain, whereas the original
-		    // type string is quoted, so...
-		    Matcher m = tsp.matcher(Utility.quote(ctype));
-		    // This ought to be "rare" so we "log" it...
-		    if(!m.matches())
-			System.err.println(typeSnag + " didn't match " + Utility.quote(ctype));
-		    String wildType = m.group(1);
-		    m.reset();
-		    // Use wildType to munge the rest of the strings,
-		    // exit with success if we do a query and it works...
-		    sql = "SELECT pt.name";
-		    for(i=0; i < otherType.length; i++)
-			sql += ", pt" + i + ".name";
-
-		    sql += " FROM ProductTypes AS pt";
-		    for(i=0; i < otherType.length; i++)
-			sql += ", ProductTypes AS pt" + i;
-
-		    sql += " WHERE pt.name = "
-			+ productType.replace("%", wildType);
-		    for(i=0; i < otherType.length; i++)
-			sql += " AND pt" + i + ".name = "
-			    + otherType[i].replace("%", wildType);
-		    rs = Utility.executeQuery(s, sql);
-		    if(rs.next())
-			return;
-		}
-		// If we get here, we looped down all the types
-		// and didn't find a set in ProductTypes we liked
-		throw new Exception("One of these Product Types does not exist: " + productType + Arrays.deepToString(otherType));
-	    }
-	    else
-		throw new Exception("Invalid whereCompare: " + whereCompare);
-	}
-	finally {
-	    s.close();
-	}
+        String id = transferWatcher.request(connection, "Products", productID);
+        return transferWatcher.watchProduct(id, productID);
     }
 
     /**
@@ -521,9 +470,6 @@ final public class Reservation
 			 String qproductType, String[] otherType,
 			 String whereCompare,long timeSleep) throws Exception
     {
-	// Before we start polling, do a sanity check on the types
-	//checkTypes(connection, qproductType, otherType, whereCompare);
-
         Product product = null;
         do
         {
@@ -539,91 +485,62 @@ final public class Reservation
     }
 
 
-	/** returns true if given product has resources
-	 */
-	private boolean hasResources(String productID, Statement statement) throws SQLException{
-		String scanquery =
-				"SELECT Resources.id FROM Resources "
-						+ " LEFT JOIN ResourceSites"
-						+ " ON Resources.id = ResourceSites.resource"
-						+ " WHERE Resources.product="+ productID
-						+ " AND Resources.rkey='DATA'"
-						+ " AND (Resources.published <> 0"
-						+ " OR ResourceSites.site=" + Utility.quote(mysite)
-						+ ")";
-		;
-
-		ResultSet scanset = Utility.executeQuery(statement, scanquery);
-		if(!scanset.next()) {
-			return false;
-//			System.out.println("Reservation.reserve: " + productID
-//					+ " has no accessible DATA resource; skipping.");
-		} else {
-			return true;
-		}
-	}
-
-	/** actually does the product reserving
-	 */
-	private boolean markProduct(String pid, String qgroup, Statement s) throws SQLException{
-		// Everything looks OK, mark the product
-		String isql =
-				"INSERT INTO Markers VALUES ("
-						+ pid + ", " + qgroup + ", 0,"
-						+ Utility.quote(mysite + "-" + mypid) + ")";
-		try {
-			Utility.executeUpdate(s, isql);
-			Utility.commitConnection(connection);
-		}
-		catch (SQLException se) {
-			// This is not really a satisfactory response here,
-			// but what can you do?  We tried to write the database...
-			System.err.println("ERR: could not mark product in DB w/ query : \n" + isql + "\n" + se.toString());
-			connection.rollback();
-			return false;
-		}
-		return true;
-	}
-
-	/** checks if product exists in products table
+	/** The conditions that make a product p ready to reserve: a DATA resource
+	 * that is published or already on this site, and a product of each of
+	 * the other types on the same pass.
 	 *
-	 * @param passID pass to check for product
-	 * @param productType productType to check for in pass. expected to contain 'single-quotes'
-	 * @param stmt
-	 * @return true if given product type exists for given pass
-	 * @throws SQLException
+	 * @param otherTypes other product types, quoted; compared with LIKE
+	 * @return conditions on Products AS p, each starting with AND
 	 */
-	private boolean productExists(String passID, String productType, Statement stmt) throws SQLException{
-		String sqlQuery="SELECT id FROM Products WHERE Products.pass="+passID
-				+" AND Products.productType LIKE "+productType;
-//		System.out.println(sqlQuery);
-		ResultSet queryResult = Utility.executeQuery(stmt, sqlQuery);
-		if (queryResult.next()) {  // if at least 1 row in result
-			return true;
-		} else {
-			return false;
+	private String eligibility(String[] otherTypes) {
+		StringBuilder sql = new StringBuilder(256);
+		sql.append(" AND EXISTS (SELECT r.id FROM Resources AS r");
+		sql.append(" LEFT JOIN ResourceSites AS rs ON rs.resource = r.id");
+		sql.append(" WHERE r.product = p.id AND r.rkey='DATA'");
+		sql.append(" AND (r.published <> 0 OR rs.site = ").append(Utility.quote(mysite)).append("))");
+		for (int i = 0; i < otherTypes.length; i++) {
+			sql.append(" AND EXISTS (SELECT o").append(i).append(".id FROM Products AS o").append(i);
+			sql.append(" WHERE o").append(i).append(".pass = p.pass");
+			sql.append(" AND o").append(i).append(".productType LIKE ").append(otherTypes[i]).append(")");
 		}
+		return sql.toString();
 	}
 
-	/** check for list of other types
+	/** Finds products that are ready for this group to reserve, in one query.
+	 * A candidate is a product of the queried type that has no Markers entry
+	 * for this group and meets eligibility(). This is the anti-join over all of
+	 * Products, which we fall back on when the WorkQueue is unavailable.
+	 * Everything comes back eligible and oldest first, so the grab loop
+	 * normally succeeds on the first row and only misses when another
+	 * station beats us to it.
 	 *
-	 * @param passID id of pass to check
-	 * @param otherTypes list of other type strings to check for. strings expected to contain 'single-quotes'
-	 * @param stmt
-	 * @return true if given pass has required otherTypes, else false
-	 * @throws SQLException
+	 * @param otherTypes other product types, quoted; compared with LIKE
+	 * @param limit the most IDs to return
+	 * @return candidate product IDs
 	 */
-	private boolean hasOtherTypes(
-			String passID, ArrayList<String> otherTypes, Statement stmt
+	private List<String> findCandidates(
+			String queryGroup,
+			String queryProductType,
+			String[] otherTypes,
+			String whereCompare,
+			int limit,
+			Statement statement
 	) throws SQLException{
-		for(String productType : otherTypes){
-//			System.out.print(" " + productType);
-			if(!productExists(passID, productType, stmt)){
-//				System.out.print(" not found!");
-				return false;
-			}
-		}  // else:
-		return true;
+		StringBuilder sql = new StringBuilder(512);
+		sql.append("SELECT p.id FROM Products AS p");
+		sql.append(" LEFT JOIN Markers AS m ON m.product = p.id AND m.gopherColony = ").append(queryGroup);
+		sql.append(" WHERE m.product IS NULL");
+		sql.append(" AND p.productType ").append(whereCompare).append(" ").append(queryProductType);
+		sql.append(eligibility(otherTypes));
+		sql.append(" ORDER BY p.id LIMIT ").append(limit);
+
+		ResultSet queryResult = Utility.executeQuery(statement, sql.toString());
+		// copy over result now so the query doesn't close before we're done.
+		List<String> productIDs = new ArrayList<String>();
+		while (queryResult.next()) {
+			productIDs.add(queryResult.getString(1));
+		}
+		return productIDs;
 	}
 
 	/** Reserves the first product from the Products table that matches the given queryProductType and has not been
@@ -631,15 +548,12 @@ final public class Reservation
 	 *
 	 * If given otherTypes are not present, the Product will not be reserved.
 	 *
-	 * whereCompare unused, but retained for backwards-compatibility.
-	 * NOTE: That^ makes me nervous; especially since some methods pass whereCompare="=".
-	 *
 	 * @param queryGroup		group of station attempting to reserve
 	 * @param queryProductType	productType station wants to reserve. expected to contain 'single-quotes'
 	 * @param otherTypes		other product types needed to continue w/ reservation.
 	 *                             expected to contain 'single-quotes'
 	 * @param whereCompare		comparison operator to use on queryProductType
-	 * @return
+	 * @return the reserved product, or null if none is available
 	 * @throws Exception
 	 */
 	private Product reserve (
@@ -647,74 +561,235 @@ final public class Reservation
 			String queryProductType,
 			String[] otherTypes,
 			String whereCompare
+	) throws Exception{
+		List<Product> products = reserve(queryGroup, queryProductType, otherTypes, whereCompare, 1);
+		return products.isEmpty()? null : products.get(0);
+	}
+
+	/** Reserves up to maxCount products from the Products table that match the given queryProductType
+	 * and have not been marked as processed by the given group, using one candidate scan.
+	 *
+	 * Candidates come from this colony's WorkQueue, or from findCandidates() if the queue is unavailable,
+	 * and are grabbed in chunks of the number still wanted; each grab is the same atomic Mutex-join INSERT
+	 * the granule reserve() uses, sent as one JDBC batch. Grabbed or not, the products leave the queue.
+	 * If some grabs miss (another station got there first) we go on to the next chunk.
+	 *
+	 * @return the reserved products, possibly empty but never null
+	 */
+	private List<Product> reserve (
+			String queryGroup,
+			String queryProductType,
+			String[] otherTypes,
+			String whereCompare,
+			int maxCount
 	) throws Exception{
 		Statement statement = connection.createStatement();
-		// select products which have not been marked processed by my group matching queryProductType or otherTypes
-		ArrayList<String> otherTypesList = new ArrayList<>(Arrays.asList(otherTypes));
+		List<Product> reserved = new ArrayList<Product>();
 
 		try {
-			// NOTE: is pass needed in the query below? Only if ids are not unique across multiple passes.
-			String sqlQuery = "SELECT DISTINCT id, pass FROM Products WHERE Products.productType "+whereCompare+" "
-					+ queryProductType + " AND Products.id NOT IN ( " +
-					" SELECT product from Markers WHERE Markers.gopherColony = " + queryGroup + ")";
-//			System.out.println(sqlQuery);
-			ResultSet queryResult = Utility.executeQuery(statement, sqlQuery);
-			// copy over result now so the query doesn't close before we're done.
-			ArrayList<String> productIDs = new ArrayList<>();
-			ArrayList<String> passIDs = new ArrayList<>();
-			while (queryResult.next()) {
-				productIDs.add(queryResult.getString(1));  // index starts @ 1
-				passIDs.add(queryResult.getString(2));
-			}
-			// handle the results:
-			for (int i=0; i < productIDs.size(); i++){
-				String productID = productIDs.get(i);
-				String passID = passIDs.get(i);
-//				System.out.print('\n'+productID);
-				// check for resources & other types
-				// NOTE: should we check for otherTypes' resources too?
-				if (hasResources(productID, statement) && hasOtherTypes(passID, otherTypesList, statement)) {
-//					System.out.print(" hasRes");
-					if (markProduct(productID, queryGroup, statement)) {
-//						System.out.print(" marked");
-						// Create the Product objects and drag
-						// their resources to the local machine
-						try {
-							ResultSet r = Utility.executeQuery(
-									statement,
-									"SELECT Products.* from Products where Products.id=" + productID
-							);
-							r.next();
-							Product result = ProductFactory.makeProduct(connection, mysite, r);
-//							System.out.print(" made");
-
-							// copy resources to local if needed
-							if (!result.resourcesAreLocal()) {
-								result = copyProduct(productID);
-//								System.out.print(" copied");
-							}
+			List<String> productIDs = null;
+			int next = 0;
+			int rounds = 0;
+			while (reserved.size() < maxCount && rounds++ < maxCount + CANDIDATE_SLACK) {
+				List<String> chunk;
+				if (productIDs == null) {
+					// Prefer our colony's queue; these rows stay locked until the grab commits
+					chunk = WorkQueue.dequeue(connection, statement, queryGroup, queryProductType,
+							whereCompare, eligibility(otherTypes), maxCount - reserved.size());
+					if (chunk == null) {
+						productIDs = findCandidates(queryGroup, queryProductType, otherTypes, whereCompare,
+								maxCount + CANDIDATE_SLACK, statement);
+						continue;
+					}
+					if (chunk.isEmpty())
+						break;
+				}
+				else {
+					if (next >= productIDs.size())
+						break;
+					int end = Math.min(productIDs.size(), next + maxCount - reserved.size());
+					chunk = productIDs.subList(next, end);
+					next = end;
+				}
+				for (String productID : grabMarkers(chunk, queryGroup, statement)) {
+					// Create the Product objects and drag
+					// their resources to the local machine
+					try {
+						Product result = ProductFactory.getProduct(connection, mysite, productID, productLoader);
+						if (result == null)
+							throw new SQLException("Product " + productID + " is gone");
 
-							if (result == null) {
-								//probably files are gone.
-								throw new AssertionError("null product encountered");
-							} else {
-								Utility.commitConnection(connection);
-//								System.out.print(" returned");
-								return result;
-							}
+						// copy resources to local if needed
+						if (!result.resourcesAreLocal()) {
+							result = copyProduct(productID);
+						}
 
-						} catch (SQLException | AssertionError se) {
-							System.out.println("\n ERR: " + se.toString());
-							releaseProduct(queryGroup, productID, 2);
+						if (result == null) {
+							//probably files are gone.
+							throw new AssertionError("null product encountered");
+						} else {
+							Utility.commitConnection(connection);
+							reserved.add(result);
 						}
+
+					} catch (SQLException | AssertionError se) {
+						System.out.println("\n ERR: " + se.toString());
+						releaseProduct(queryGroup, productID, 2);
 					}
 				}
 			}
 		} finally {
 			statement.close();
 		}
+		return reserved;
+	}
+
+	/** The atomic Markers grab (see the granule reserve() below), as a
+	 * cached statement. The group is constant for a DSM, so it stays in
+	 * the SQL text; the parameters are product, location, product.
+	 */
+	private static String grabSql(String qgroup) {
+		return "INSERT INTO Markers (product, gopherColony, status, location)"
+			+ " SELECT ?, " + qgroup + ", 0, ? FROM Mutex"
+			+ " LEFT OUTER JOIN Markers"
+			+ " ON Markers.product=?"
+			+ " AND Markers.gopherColony=" + qgroup
+			+ " WHERE Mutex.i=1 AND Markers.product IS NULL AND Markers.gopherColony IS NULL";
+	}
+
+	/** Grabs the Markers entries for a list of products, and commits.
+	 * Each grab is the atomic "grab if it isn't already there" INSERT (see the
+	 * granule reserve() below); they go to the server as one JDBC batch so that
+	 * each one still reports its own update count.
+	 * A grab that trips the unique key is a miss. Any other failure (a
+	 * deadlock rolls the whole transaction back, though the driver still
+	 * reports the grabs before it as done) rolls back and grabs nothing,
+	 * leaving the queue as it was.
+	 *
+	 * @return the product IDs we actually grabbed; the others belong to someone else
+	 */
+	private List<String> grabMarkers(List<String> productIDs, String qgroup, Statement s) throws SQLException{
+		List<String> grabbed = new ArrayList<String>();
+		if (productIDs.isEmpty())
+			return grabbed;
+		String location = mysite + "-" + mypid;
+		PreparedStatement grab = StatementCache.prepare(connection, grabSql(qgroup));
+		for (String pid : productIDs) {
+			Long id = Long.valueOf(pid);
+			StatementCache.bind(grab, id, location, id);
+			grab.addBatch();
+		}
+		int[] counts;
+		try {
+			counts = grab.executeBatch();
+		}
+		catch (BatchUpdateException be) {
+			// A grab that loses a race can trip the unique key; that is just a miss
+			for (SQLException e = be; e != null; e = e.getNextException()) {
+				// ER_DUP_ENTRY
+				if (e.getErrorCode() != 1062) {
+					System.err.println("Attempt to grab reservations for " + qgroup
+						+ " failed: " + e);
+					System.err.println("Rolling back and skipping!");
+					connection.rollback();
+					return grabbed;
+				}
+			}
+			counts = be.getUpdateCounts();
+		}
+		finally {
+			grab.clearBatch();
+		}
+		// Whether we won them or someone else has them, they are done in our queue
+		WorkQueue.remove(s, qgroup, productIDs);
+		for (int i = 0; i < counts.length && i < productIDs.size(); i++) {
+			if (counts[i] == 1)
+				grabbed.add(productIDs.get(i));
+			else if (counts[i] > 1) {
+				// Holy @%*% - we may have destroyed the Markers table
+				System.err.println("Attempt to grab reservation ("
+					+ productIDs.get(i) + ", " + qgroup
+					+ ") failed with an update result of " + counts[i]);
+				System.err.println("Rolling back and skipping!");
+				connection.rollback();
+				return new ArrayList<String>();
+			}
+		}
+		Utility.commitConnection(connection);
+		return grabbed;
+	}
+
+    /**
+     * Find the products of the same type as theProd that cover the time
+     * offsetSeconds before its start and after its stop.
+     * The granule index answers this in memory; we then only confirm in
+     * SQL that the two products still exist and are not marked for
+     * deletion. If they aren't, the index is stale, so we reload it and
+     * look again. A candidate the index has
+     * never seen goes to the old self-join query.
+     * @return {prevId, nextId, prevPass, nextPass}, or null if either is missing
+     */
+    private String[] findNeighbors(Statement s, GranuleIndex index, String theProd,
+				   double offsetSeconds)
+	throws SQLException
+    {
+	long offset = Math.round(offsetSeconds * 1000.0);
+	for (int attempt = 0; attempt < 2; attempt++) {
+	    GranuleIndex.Granule pp = index.get(theProd);
+	    if (pp == null)
+		return queryNeighbors(s, theProd, offsetSeconds);
+	    GranuleIndex.Granule prev = index.covering(pp, pp.start - offset);
+	    GranuleIndex.Granule next = index.covering(pp, pp.stop + offset);
+	    if (prev == null || next == null)
 		return null;
+	    ResultSet r = Utility.executeQuery(s, "SELECT COUNT(*) FROM Products WHERE id IN ("
+					       + prev.id + Utility.COMMA + next.id + ")"
+					       + " AND deleteMark=0");
+	    int expected = prev.id.equals(next.id) ? 1 : 2;
+	    if (r.next() && r.getInt(1) == expected)
+		return new String[] {prev.id, next.id, prev.pass, next.pass};
+	    index.reload(s);
 	}
+	return null;
+    }
+
+    /**
+     * The SQL version of findNeighbors().
+     */
+    private String[] queryNeighbors(Statement s, String theProd, double offsetSeconds)
+	throws SQLException
+    {
+	// The time offset needs to be formatted as
+	// seconds.microseconds
+	// because date math in MySQl is funky...
+	String timeOffset = String.format("%.06f", offsetSeconds);
+	// Query is of the form:
+	// SELECT prevprod.id, pp.id, nextprod.id
+	// FROM Products as prevprod, Products as nextprod, Products as pp
+	// WHERE pp.id="theProd"
+	// AND pp.productType = prevprod.productType
+	// AND pp.productType = nextprod.productType
+	// AND prevprod.startTime < DATE_SUB(pp.startTime, INTERVAL 5.000000 SECOND_MICROSECOND)
+	// AND prevprod.stopTime > DATE_SUB(pp.startTime, INTERVAL 5.000000 SECOND_MICROSECOND)
+	// AND nextprod.startTime < DATE_ADD(pp.stopTime, INTERVAL 5.000000 SECOND_MICROSECOND)
+	// AND nextprod.stopTime > DATE_ADD(pp.stopTime, INTERVAL 5.000000 SECOND_MICROSECOND);
+	//
+	String psql =
+	    "SELECT prevprod.id, pp.id, nextprod.id, prevprod.pass, nextprod.pass"
+	    + " FROM Products as prevprod, Products as nextprod, Products as pp"
+	    + " WHERE pp.id = " + theProd
+	    + " AND pp.productType = prevprod.productType"
+	    + " AND pp.productType = nextprod.productType"
+	    + " AND prevprod.startTime < DATE_SUB(pp.startTime, INTERVAL " + timeOffset + " SECOND_MICROSECOND)"
+	    + " AND  prevprod.stopTime > DATE_SUB(pp.startTime, INTERVAL " + timeOffset + " SECOND_MICROSECOND)"
+	    + " AND  nextprod.startTime < DATE_ADD(pp.stopTime, INTERVAL " + timeOffset + " SECOND_MICROSECOND)"
+	    + " AND  nextprod.stopTime > DATE_ADD(pp.stopTime, INTERVAL " + timeOffset + " SECOND_MICROSECOND)"
+	    + " AND prevprod.deleteMark=0 AND nextprod.deleteMark=0";
+	ResultSet rset = Utility.executeQuery(s, psql);
+	if(!rset.next())
+	    return null;
+	return new String[] {rset.getString(1), rset.getString(3), rset.getString(4), rset.getString(5)};
+    }
 
     /** Does the dirty work of reserving a product as follows:
      *
@@ -723,8 +798,8 @@ final public class Reservation
      *
      * Loops down the candidate list and:
      *
-     * * Checks for existence of previous/next Products
-     *    (failure means skip me
+     * * Checks for existence of previous/next Products, using the
+     *    in-memory GranuleIndex (failure means skip me)
      *
      * * Checks for existence of products in otherType list
      *    (failure means skip me)
@@ -760,24 +835,43 @@ final public class Reservation
 				It generates a list of passes that have products that do not have
 				the appropriate Markers table entry.  If this comes up empty,
 				we'll do the next loop zero times and punt immediately (yay!) */
-			String rsql =
-				"SELECT DISTINCT pass, id from Products"
-				+ " LEFT JOIN Markers ON Products.id = Markers.product"
-				+ "  AND Markers.gopherColony = " + qgroup
-				+ " WHERE Markers.gopherColony IS NULL"
-				+ " AND Products.productType " + whereCompare + " " + qproductType;
-			//System.err.println("QUERY1: " + rsql);
-			ResultSet rset = Utility.executeQuery(s, rsql);
-			// Drain the query into a List of Strings
-			// (to keep the SQL interface happy so we don't hold the
-			// connection open while we do other things).
+			ResultSet rset;
 			ArrayList<String> passList = new ArrayList<String>();
 			ArrayList<String> prodList = new ArrayList<String>();
-			while(rset.next()) {
-				passList.add(rset.getString(1));
-				prodList.add(rset.getString(2));
+			// Our colony's WorkQueue gives us the same list without the anti-join
+			List<String[]> queued = WorkQueue.queued(connection, s, qgroup, qproductType, whereCompare);
+			if (queued != null) {
+				for (String[] row : queued) {
+					passList.add(row[0]);
+					prodList.add(row[1]);
+				}
+			}
+			else {
+				String rsql =
+					"SELECT DISTINCT pass, id from Products"
+					+ " LEFT JOIN Markers ON Products.id = Markers.product"
+					+ "  AND Markers.gopherColony = " + qgroup
+					+ " WHERE Markers.gopherColony IS NULL"
+					+ " AND Products.productType " + whereCompare + " " + qproductType;
+				//System.err.println("QUERY1: " + rsql);
+				rset = Utility.executeQuery(s, rsql);
+				// Drain the query into a List of Strings
+				// (to keep the SQL interface happy so we don't hold the
+				// connection open while we do other things).
+				while(rset.next()) {
+					passList.add(rset.getString(1));
+					prodList.add(rset.getString(2));
+				}
 			}
 			//System.err.println("Result count: " + passList.size());
+			// Catch the granule index up with the products stored since last time
+			GranuleIndex index = granuleIndexes.get(whereCompare + " " + qproductType);
+			if (index == null) {
+				index = new GranuleIndex(qproductType, whereCompare);
+				granuleIndexes.put(whereCompare + " " + qproductType, index);
+			}
+			index.refresh(s);
+
 			// Commit now to create a clean rollback point if we need it
 			Utility.commitConnection(connection);
 
@@ -807,20 +901,22 @@ final public class Reservation
 				// A successful grab returns 1, a miss returns 0,
 				// which means it's likely another entity already has this
 				// reservation taken, and we can just skip to the next one
-				String gsql = "INSERT INTO Markers (product, gopherColony, status, location)"
-					+ " SELECT " + theProd + ", " + qgroup + ", 0, " + Utility.quote(mysite + "-" + mypid) + " FROM Mutex"
-					+ " LEFT OUTER JOIN Markers"
-					+ " ON Markers.product=" + theProd
-					+ " AND Markers.gopherColony=" + qgroup
-					+ " WHERE Mutex.i=1 AND Markers.product IS NULL AND Markers.gopherColony IS NULL";
+				String gsql = grabSql(qgroup);
 
 
 				try {
 					//System.err.println("Grabbing marker with " + gsql);
-					int gresult = Utility.executeUpdate(s, gsql);
-					if(gresult == 0)
+					Long id = Long.valueOf(theProd);
+					int gresult = StatementCache.update(connection, gsql,
+									    id, mysite + "-" + mypid, id);
+					// Either way, this product is done in our queue; if the
+					// checks below roll back, the queue entry comes back too
+					WorkQueue.remove(s, qgroup, Arrays.asList(theProd));
+					if(gresult == 0) {
 						// Someone else has it; let them do it
+						Utility.commitConnection(connection);
 						continue nextset;
+					}
 					if(gresult != 1) {
 						// Holy @%*% - we may have destroyed the Markers
 						// table - roll back and continue
@@ -864,46 +960,16 @@ final public class Reservation
 
 					// Then check for other products in the prev and next
 					for(int neighbor = 0; neighbor < prePostCount; neighbor++) {
-						// The time offset we need is
-						// (neighbor + 0.5) * granuleDuration,
-						// and we need to format it as
-						// seconds.microseconds
-						// because date math in MySQl is funky...
-						String timeOffset = String.format("%.06f", granuleDuration * (neighbor + 0.5));
-						// First get the ids for the previous and next products
-						// (skip if they don't exist)
-						// Query is of the form:
-						// SELECT prevprod.id, pp.id, nextprod.id
-						// FROM Products as prevprod, Products as nextprod, Products as pp
-						// WHERE pp.id="theProd"
-						// AND pp.productType = prevprod.productType
-						// AND pp.productType = nextprod.productType
-						// AND prevprod.startTime < DATE_SUB(pp.startTime, INTERVAL 5.000000 SECOND_MICROSECOND)
-						// AND prevprod.stopTime > DATE_SUB(pp.startTime, INTERVAL 5.000000 SECOND_MICROSECOND)
-						// AND nextprod.startTime < DATE_ADD(pp.stopTime, INTERVAL 5.000000 SECOND_MICROSECOND)
-						// AND nextprod.stopTime > DATE_ADD(pp.stopTime, INTERVAL 5.000000 SECOND_MICROSECOND);
-						//
-						String psql =
-							"SELECT prevprod.id, pp.id, nextprod.id, prevprod.pass, nextprod.pass"
-							+ " FROM Products as prevprod, Products as nextprod, Products as pp"
-							+ " WHERE pp.id = " + theProd
-							+ " AND pp.productType = prevprod.productType"
-							+ " AND pp.productType = nextprod.productType"
-							+ " AND prevprod.startTime < DATE_SUB(pp.startTime, INTERVAL " + timeOffset + " SECOND_MICROSECOND)"
-							+ " AND  prevprod.stopTime > DATE_SUB(pp.startTime, INTERVAL " + timeOffset + " SECOND_MICROSECOND)"
-							+ " AND  nextprod.startTime < DATE_ADD(pp.stopTime, INTERVAL " + timeOffset + " SECOND_MICROSECOND)"
-							+ " AND  nextprod.stopTime > DATE_ADD(pp.stopTime, INTERVAL " + timeOffset + " SECOND_MICROSECOND)";
-						rset =  Utility.executeQuery(s, psql);
-						if(!rset.next()) {
+						// First get the previous and next products, from
+						// the granule index if we can (skip if they don't exist)
+						String[] pn = findNeighbors(s, index, theProd, granuleDuration * (neighbor + 0.5));
+						if(pn == null) {
 							//System.err.println("Prev/next products missing");
 							connection.rollback();
 							continue nextset;
 						}
-
-						String thePrevprod = rset.getString(1);
-						String theNextprod = rset.getString(3);
-						String thePrevpass = rset.getString(4);
-						String theNextpass = rset.getString(5);
+						String thePrevpass = pn[2];
+						String theNextpass = pn[3];
 
 						// Then check for the previous/current/next product sets
 
@@ -975,9 +1041,9 @@ final public class Reservation
 					// their resources to the local machine
 
 					try {
-						ResultSet r = Utility.executeQuery(s, "SELECT Products.* from Products where Products.id=" + theProd);
-						r.next();
-						result = ProductFactory.makeProduct(connection,mysite,r);
+						result = ProductFactory.getProduct(connection,mysite,theProd,productLoader);
+						if (result == null)
+							throw new SQLException("Product " + theProd + " is gone");
 						if (!result.resourcesAreLocal()) {
 							Product xproduct = copyProduct(theProd);
 							if (xproduct == null) {
@@ -0,0 +1,200 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.sql.*;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * StatementCache keeps the PreparedStatements for the hot DSM queries, so
+ * that fetching, reserving and storing products do not build and send new
+ * SQL text for every row. Each connection has its own small LRU cache,
+ * keyed by SQL text; it lives as long as the connection does, which with
+ * ConnectionPool is much longer than one DSM object. The cached statements
+ * hold their connection, so nothing here goes away by itself: whoever
+ * closes a connection calls clear() first. ConnectionPool, DSM.dispose()
+ * and DsmProperties.dispose() do.
+ * <p>
+ * A cached statement belongs to the cache. Callers close the ResultSets
+ * they get, never the statements. Because executing a statement again
+ * closes its previous ResultSet, a caller must not run the same SQL while
+ * it is still reading results from it on the same connection.
+ * <p>
+ * The MySQL driver only keeps parsed plans on the server if the JDBC URL
+ * sets useServerPrepStmts=true; without it, this still saves building
+ * and escaping the SQL, and the driver's own statement parse.
+ * The cache size is dsm.statementCacheSize (default 64 per connection).
+ */
+public final class StatementCache
+{
+    private static final int SIZE = Integer.getInteger("dsm.statementCacheSize", 64).intValue();
+
+    // By identity: a Connection's equals() is its own business
+    private static final Map<Connection,Map<String,PreparedStatement>> caches =
+        new IdentityHashMap<Connection,Map<String,PreparedStatement>>();
+
+    private static long hits = 0L;
+    private static long misses = 0L;
+    private static long evictions = 0L;
+
+    private StatementCache() {}
+
+    /**
+     * Get the cached PreparedStatement for this SQL on this connection,
+     * preparing it if need be. Its parameters are cleared.
+     */
+    static PreparedStatement prepare(Connection connection, String sql)
+            throws SQLException
+    {
+        // A DSM's handle shares the statements of the pooled connection
+        connection = ConnectionHandle.unwrap(connection);
+        Map<String,PreparedStatement> cache;
+        PreparedStatement ps;
+        synchronized (caches)
+        {
+            cache = caches.get(connection);
+            if (cache == null)
+            {
+                cache = new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true) {
+                        private static final long serialVersionUID = 1L;
+                        protected boolean removeEldestEntry(
+                                Map.Entry<String,PreparedStatement> eldest) {
+                            if (size() <= SIZE) return false;
+                            close(eldest.getValue());
+                            ++evictions;
+                            return true;
+                        }
+                    };
+                caches.put(connection, cache);
+            }
+            ps = cache.get(sql);
+            if (ps != null && !ps.isClosed())
+            {
+                ++hits;
+                ps.clearParameters();
+                return ps;
+            }
+            ++misses;
+        }
+        ps = connection.prepareStatement(sql);
+        synchronized (caches)
+        {
+            cache.put(sql, ps);
+        }
+        return ps;
+    }
+
+    /**
+     * Run a cached query. Close the ResultSet when done with it.
+     * @param args parameter values, in order; a null binds SQL NULL.
+     */
+    static ResultSet query(Connection connection, String sql, Object... args)
+            throws SQLException
+    {
+        PreparedStatement ps = prepare(connection, sql);
+        bind(ps, args);
+        return ps.executeQuery();
+    }
+
+    /**
+     * Run a cached INSERT, UPDATE or DELETE.
+     * @return the row count
+     */
+    static int update(Connection connection, String sql, Object... args)
+            throws SQLException
+    {
+        PreparedStatement ps = prepare(connection, sql);
+        bind(ps, args);
+        return ps.executeUpdate();
+    }
+
+    /**
+     * Get the AUTO_INCREMENT value made by the last INSERT on this
+     * connection, from whichever statement ran it.
+     */
+    static String lastInsertId(Connection connection) throws SQLException
+    {
+        ResultSet r = query(connection, "SELECT LAST_INSERT_ID()");
+        try
+        {
+            return r.next()? r.getString(1) : null;
+        }
+        finally
+        {
+            r.close();
+        }
+    }
+
+    /**
+     * Set the parameters of a prepared statement.
+     * A Float that is NaN binds SQL NULL, as the DSM stores missing
+     * geolocation.
+     */
+    static void bind(PreparedStatement ps, Object... args) throws SQLException
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            Object a = args[i];
+            if (a == null || (a instanceof Float && ((Float)a).isNaN()))
+            {
+                ps.setNull(i + 1, Types.NULL);
+            }
+            else
+            {
+                ps.setObject(i + 1, a);
+            }
+        }
+    }
+
+    /**
+     * Forget and close the statements cached for a connection. Call it
+     * before closing a connection this class may have seen.
+     */
+    static void clear(Connection connection)
+    {
+        if (connection == null) return;
+        try
+        {
+            connection = ConnectionHandle.unwrap(connection);
+        }
+        catch (SQLException e)
+        {
+            // A released handle; its DSM already gave the connection back
+            return;
+        }
+        Map<String,PreparedStatement> cache;
+        synchronized (caches)
+        {
+            cache = caches.remove(connection);
+        }
+        if (cache != null)
+        {
+            for (PreparedStatement ps : cache.values())
+            {
+                close(ps);
+            }
+        }
+    }
+
+    /**
+     * Get the cache counters, for logging.
+     */
+    public static String getStatistics()
+    {
+        synchronized (caches)
+        {
+            return "connections=" + caches.size() + " hits=" + hits
+                + " misses=" + misses + " evictions=" + evictions;
+        }
+    }
+
+    private static void close(PreparedStatement ps)
+    {
+        try { ps.close(); }
+        catch (SQLException e) {}
+    }
+}
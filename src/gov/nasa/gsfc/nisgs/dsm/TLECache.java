@@ -0,0 +1,235 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * TLECache keeps parsed TLE files, so that pass prediction and geolocation
+ * can ask for a spacecraft's elements once per granule without reading
+ * and parsing the whole compound TLE file each time. There is one cache
+ * per JVM.
+ * <p>
+ * A compound TLE file is a list of three-line sets: the spacecraft name,
+ * then lines 1 and 2 of its elements. One file may hold several sets for a
+ * spacecraft. The cache keeps each spacecraft's sets by their epoch (from
+ * line 1), so picking the set nearest a time is a floor/ceiling lookup.
+ * <p>
+ * A file is parsed again if its length or modification time changes.
+ * DSM.putTLE() and deleteTLE() drop the files they touch. Up to
+ * dsm.tleCacheSize files (default 32) are kept, least recently used first
+ * out.
+ * @version 3.23 Added.
+ */
+public final class TLECache
+{
+    private static final int SIZE = Integer.getInteger("dsm.tleCacheSize", 32).intValue();
+
+    /** The parsed sets of one file. */
+    private static final class Parsed
+    {
+        final long length;
+        final long modified;
+        final Map<String,TreeMap<Long,String[]>> sets =
+            new HashMap<String,TreeMap<Long,String[]>>();
+
+        Parsed(long length, long modified)
+        {
+            this.length = length;
+            this.modified = modified;
+        }
+    }
+
+    private static final Map<String,Parsed> cache =
+        new LinkedHashMap<String,Parsed>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry<String,Parsed> eldest) {
+                return size() > SIZE;
+            }
+        };
+
+    private static long hits = 0L;
+    private static long misses = 0L;
+
+    private TLECache() {}
+
+    /**
+     * Get a spacecraft's elements from a TLE file. If the file holds more
+     * than one set for the spacecraft, this is the one with the latest epoch.
+     * @return the spacecraft name and lines 1 and 2, or null if the file
+     *      has no elements for the spacecraft
+     */
+    public static String[] getElements(File tleFile, String spacecraft) throws Exception
+    {
+        TreeMap<Long,String[]> sets = getSets(tleFile, spacecraft);
+        return (sets == null)? null : sets.lastEntry().getValue().clone();
+    }
+
+    /**
+     * Get a spacecraft's elements from a TLE file, choosing the set whose
+     * epoch is nearest the time.
+     * @return the spacecraft name and lines 1 and 2, or null if the file
+     *      has no elements for the spacecraft
+     */
+    public static String[] getElements(File tleFile, String spacecraft, Date time)
+            throws Exception
+    {
+        TreeMap<Long,String[]> sets = getSets(tleFile, spacecraft);
+        if (sets == null) return null;
+        Long t = Long.valueOf(time.getTime());
+        Map.Entry<Long,String[]> floor = sets.floorEntry(t);
+        Map.Entry<Long,String[]> ceiling = sets.ceilingEntry(t);
+        Map.Entry<Long,String[]> best;
+        if (floor == null)
+        {
+            best = ceiling;
+        }
+        else if (ceiling == null)
+        {
+            best = floor;
+        }
+        else
+        {
+            best = (t.longValue() - floor.getKey().longValue()
+                    <= ceiling.getKey().longValue() - t.longValue())? floor : ceiling;
+        }
+        return best.getValue().clone();
+    }
+
+    /**
+     * Forget a file, because it was replaced or is no longer a TLE.
+     */
+    public static synchronized void invalidate(File tleFile)
+    {
+        cache.remove(tleFile.getAbsolutePath());
+    }
+
+    /**
+     * Forget every file with this name, whatever its directory.
+     */
+    static synchronized void invalidateName(String filename)
+    {
+        java.util.Iterator<String> i = cache.keySet().iterator();
+        while (i.hasNext())
+        {
+            if (new File(i.next()).getName().equals(filename))
+            {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget everything.
+     */
+    public static synchronized void clear()
+    {
+        cache.clear();
+    }
+
+    /**
+     * Get the cache counters, for logging.
+     */
+    public static synchronized String getStatistics()
+    {
+        return "tleFiles=" + cache.size() + " hits=" + hits + " misses=" + misses;
+    }
+
+    private static TreeMap<Long,String[]> getSets(File tleFile, String spacecraft)
+            throws Exception
+    {
+        String path = tleFile.getAbsolutePath();
+        long length = tleFile.length();
+        long modified = tleFile.lastModified();
+        Parsed parsed;
+        synchronized (TLECache.class)
+        {
+            parsed = cache.get(path);
+            if (parsed != null && parsed.length == length && parsed.modified == modified)
+            {
+                ++hits;
+            }
+            else
+            {
+                parsed = null;
+                ++misses;
+            }
+        }
+        if (parsed == null)
+        {
+            // Parse outside the lock; two threads may both parse one file
+            parsed = parse(tleFile, length, modified);
+            synchronized (TLECache.class)
+            {
+                cache.put(path, parsed);
+            }
+        }
+        return parsed.sets.get(spacecraft);
+    }
+
+    private static Parsed parse(File tleFile, long length, long modified) throws Exception
+    {
+        Parsed parsed = new Parsed(length, modified);
+        BufferedReader in = new BufferedReader(new FileReader(tleFile));
+        try
+        {
+            while (true)
+            {
+                String spacecraft = in.readLine();
+                if (spacecraft == null) break;
+                spacecraft = spacecraft.trim();
+                String[] set = new String[3];
+                set[0] = spacecraft;
+                set[1] = in.readLine();
+                set[2] = in.readLine();
+                TreeMap<Long,String[]> sets = parsed.sets.get(spacecraft);
+                if (sets == null)
+                {
+                    sets = new TreeMap<Long,String[]>();
+                    parsed.sets.put(spacecraft, sets);
+                }
+                sets.put(Long.valueOf(epoch(set[1])), set);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return parsed;
+    }
+
+    /**
+     * Get the epoch of line 1 in milliseconds since 1970. Line 1 carries it
+     * in columns 19-32 as YYDDD.DDDDDDDD (two-digit year, then day of year
+     * and its fraction). A line we cannot read has epoch 0.
+     */
+    static long epoch(String line1)
+    {
+        if (line1 == null || line1.length() < 32) return 0L;
+        try
+        {
+            int yy = Integer.parseInt(line1.substring(18, 20).trim());
+            double day = Double.parseDouble(line1.substring(20, 32).trim());
+            Calendar c = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+            c.clear();
+            c.set(Calendar.YEAR, (yy < 57)? 2000 + yy : 1900 + yy);
+            return c.getTimeInMillis() + (long)((day - 1.0) * 86400000.0);
+        }
+        catch (NumberFormatException e)
+        {
+            return 0L;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import gov.nasa.gsfc.nisgs.properties.Utility;
+
+/**
+ * TransferWatcher waits for DSMR to finish TransferCommands on behalf of
+ * one DSM object. It is not public.
+ * <p>
+ * Every outstanding transfer gets a CompletableFuture. One daemon thread
+ * checks all of them with a single SELECT ... WHERE id IN (...) every
+ * POLL_INTERVAL and completes the futures whose commands are done, so a
+ * station can have many transfers in flight without a thread each. The
+ * thread only runs while something is outstanding.
+ * <p>
+ * The watcher borrows its own connection from ConnectionPool, because it
+ * commits to see DSMR's updates, and because the DSM connection belongs to
+ * the caller's thread. Copied products are made on that connection too.
+ * Only the watcher thread uses the connection, and it gives it back when
+ * it exits.
+ */
+final class TransferWatcher
+{
+    /** Milliseconds between status queries. */
+    private static final long POLL_INTERVAL =
+        Long.getLong("dsm.transferPollMillis", 1000L).longValue();
+
+    /** One outstanding TransferCommand. */
+    private static final class Pending
+    {
+        final String productId;                      // null unless a product copy
+        final CompletableFuture<Integer> status = new CompletableFuture<Integer>();
+        final CompletableFuture<Product> product = new CompletableFuture<Product>();
+
+        Pending(String productId)
+        {
+            this.productId = productId;
+        }
+
+        boolean abandoned()
+        {
+            return status.isCancelled() || product.isCancelled();
+        }
+
+        void fail(Throwable t)
+        {
+            status.completeExceptionally(t);
+            product.completeExceptionally(t);
+        }
+    }
+
+    private final String mysite;
+    private final Map<String,Pending> pending = new LinkedHashMap<String,Pending>();
+    private Thread thread = null;
+    private DsmProperties dsmp = null;
+    private boolean disposed = false;
+
+    TransferWatcher(String mysite)
+    {
+        this.mysite = mysite;
+    }
+
+    /**
+     * Queue a TransferCommand asking DSMR to copy item tableId of table to
+     * our site, and commit it.
+     * @return the TransferCommands id
+     */
+    String request(Connection connection, String table, String tableId) throws Exception
+    {
+        Statement s = connection.createStatement();
+        try
+        {
+            String today = Utility.format(new java.util.Date());
+            String sql = "INSERT LOW_PRIORITY INTO TransferCommands VALUES (DEFAULT," +
+                Utility.quoteComma(table) +
+                tableId + Utility.COMMA + Utility.quoteComma(mysite) +
+                Utility.quoteComma(today) + "0)";
+            Utility.executeUpdate(s, sql);
+            Utility.commitConnection(connection);
+            return Utility.getLastAutoIncrementedValue(s);
+        }
+        finally
+        {
+            s.close();
+        }
+    }
+
+    /**
+     * Watch a TransferCommand.
+     * @return a future for its completion code (1 is success, 2+ is failure)
+     */
+    CompletableFuture<Integer> watch(String transferId)
+    {
+        return add(transferId, null).status;
+    }
+
+    /**
+     * Watch a TransferCommand that copies a product to our site.
+     * @return a future for the copied product, made after the copy is done,
+     *      or for null if the copy failed.
+     */
+    CompletableFuture<Product> watchProduct(String transferId, String productId)
+    {
+        return add(transferId, productId).product;
+    }
+
+    /**
+     * Fail everything outstanding, and wait for the watcher thread to give
+     * back its connection and exit.
+     */
+    void dispose()
+    {
+        List<Pending> dropped;
+        Thread t;
+        synchronized (this)
+        {
+            disposed = true;
+            dropped = new ArrayList<Pending>(pending.values());
+            pending.clear();
+            t = thread;
+            notifyAll();
+        }
+        Exception gone = new Exception("DSM disposed while waiting for a transfer");
+        for (Pending p : dropped)
+        {
+            p.fail(gone);
+        }
+        if (t != null && t != Thread.currentThread())
+        {
+            try
+            {
+                t.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Future.get() for callers that want the old synchronous behavior:
+     * it throws the exception that failed the future, not an
+     * ExecutionException wrapped around it.
+     */
+    static <T> T await(Future<T> future) throws Exception
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable t = ee.getCause();
+            if (t instanceof Exception) throw (Exception)t;
+            if (t instanceof Error) throw (Error)t;
+            throw ee;
+        }
+    }
+
+    private synchronized Pending add(String transferId, String productId)
+    {
+        Pending p = new Pending(productId);
+        if (disposed)
+        {
+            p.fail(new Exception("DSM disposed"));
+            return p;
+        }
+        pending.put(transferId, p);
+        if (thread == null)
+        {
+            thread = new Thread(new Runnable() {
+                    public void run() {
+                        watch();
+                    }
+                }, "TransferWatcher-" + mysite);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return p;
+    }
+
+    /**
+     * The watcher thread. It exits when there is nothing left to watch.
+     */
+    private void watch()
+    {
+        while (true)
+        {
+            List<String> ids;
+            synchronized (this)
+            {
+                Iterator<Pending> pi = pending.values().iterator();
+                while (pi.hasNext())
+                {
+                    if (pi.next().abandoned()) pi.remove();
+                }
+                if (pending.isEmpty() || disposed)
+                {
+                    // Give back our connection as we go. Taking it in the
+                    // same step as clearing thread means a new watcher
+                    // thread cannot have borrowed one yet.
+                    DsmProperties p = dsmp;
+                    dsmp = null;
+                    thread = null;
+                    if (p != null) ConnectionPool.release(p);
+                    return;
+                }
+                try { wait(POLL_INTERVAL); }
+                catch (InterruptedException e) {}
+                ids = new ArrayList<String>(pending.keySet());
+            }
+            try
+            {
+                check(ids);
+            }
+            catch (Exception e)
+            {
+                // Our connection is probably bad. Drop it and fail
+                // everything we were waiting for, as the old polling
+                // loop would have thrown.
+                closeConnection(true);
+                List<Pending> dropped = new ArrayList<Pending>();
+                synchronized (this)
+                {
+                    for (String id : ids)
+                    {
+                        Pending p = pending.remove(id);
+                        if (p != null) dropped.add(p);
+                    }
+                }
+                for (Pending p : dropped)
+                {
+                    p.fail(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * One batched status query, then complete whatever is done.
+     */
+    private void check(List<String> ids) throws Exception
+    {
+        if (ids.isEmpty()) return;
+        Connection connection = getConnection();
+        Map<String,Integer> done = new LinkedHashMap<String,Integer>();
+        List<String> missing = new ArrayList<String>(ids);
+        Statement s = connection.createStatement();
+        try
+        {
+            StringBuilder sql = new StringBuilder(256);
+            sql.append("SELECT id, complete FROM TransferCommands WHERE id IN (");
+            for (int i = 0; i < ids.size(); i++)
+            {
+                if (i > 0) sql.append(Utility.COMMA);
+                sql.append(ids.get(i));
+            }
+            sql.append(")");
+            ResultSet r = Utility.executeQuery(s, sql.toString());
+            while (r.next())
+            {
+                String id = r.getString(1);
+                missing.remove(id);
+                int complete = r.getInt(2);
+                if (complete != 0) done.put(id, complete);
+            }
+            // End our snapshot so the next query sees DSMR's updates
+            Utility.commitConnection(connection);
+        }
+        finally
+        {
+            s.close();
+        }
+
+        for (String id : missing)
+        {
+            Pending p;
+            synchronized (this) { p = pending.remove(id); }
+            if (p != null) p.fail(new Exception("TransferCommand " + id + " disappeared"));
+        }
+        for (Map.Entry<String,Integer> e : done.entrySet())
+        {
+            Pending p;
+            synchronized (this) { p = pending.remove(e.getKey()); }
+            if (p == null) continue;
+            int complete = e.getValue().intValue();
+            p.status.complete(Integer.valueOf(complete));
+            if (p.productId != null)
+            {
+                try
+                {
+                    p.product.complete((complete == 1)? getProduct(connection, p.productId) : null);
+                }
+                catch (Exception pe)
+                {
+                    p.product.completeExceptionally(pe);
+                }
+            }
+        }
+    }
+
+    private Product getProduct(Connection connection, String productID) throws Exception
+    {
+        Product product = ProductFactory.getProduct(connection,mysite,productID);
+        Utility.commitConnection(connection);
+        return product;
+    }
+
+    /**
+     * Get the watcher thread's connection, borrowing one if need be.
+     */
+    private synchronized Connection getConnection() throws Exception
+    {
+        if (disposed)
+        {
+            throw new Exception("DSM disposed");
+        }
+        if (dsmp == null)
+        {
+            dsmp = ConnectionPool.borrow();
+        }
+        return dsmp.getConnection();
+    }
+
+    private void closeConnection(boolean bad)
+    {
+        DsmProperties p;
+        synchronized (this)
+        {
+            p = dsmp;
+            dsmp = null;
+        }
+        if (p != null)
+        {
+            if (bad)
+                ConnectionPool.invalidate(p);
+            else
+                ConnectionPool.release(p);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import gov.nasa.gsfc.nisgs.properties.Utility;
+
+/**
+ * WorkQueue keeps a per-gopherColony queue of products that the colony
+ * has not reserved yet, so that Reservation does not have to anti-join
+ * Markers against the whole Products table. It is not public.
+ * <p>
+ * A colony subscribes to a product type (or a LIKE mask) the first time
+ * one of its stations reserves it; the subscription back-fills the queue
+ * from the old anti-join once. After that, ProductStore fans each stored
+ * product out to every subscribed colony, and Reservation dequeues with
+ * SELECT ... FOR UPDATE SKIP LOCKED, so stations in the same colony do
+ * not fight over the same rows. A queue row is only a hint: the Markers
+ * grab is still what decides who owns a product, and a row whose grab
+ * misses is simply deleted.
+ * <p>
+ * Deleting a marker puts its product back on the queue. Because products
+ * can also arrive from writers that do not fan out, a colony re-runs the
+ * back-fill every SWEEP_INTERVAL as a safety net, busy or not.
+ * <p>
+ * The queue needs the WorkQueue tables. If they are missing, isAvailable()
+ * goes false for a while and callers use the old anti-join. dequeue() also
+ * needs MySQL 8 (SKIP LOCKED); on an older server only dequeue() falls
+ * back, and products are still queued and unqueued as usual. Any other
+ * error while reading the queue falls back for that one call.
+ */
+final class WorkQueue
+{
+    private static final long RETRY_INTERVAL = 10L * 60L * 1000L;
+    private static final long SWEEP_INTERVAL = 10L * 60L * 1000L;
+
+    private static volatile long unavailableUntil = 0L;
+    private static volatile long noSkipLockedUntil = 0L;
+    private static final Map<String,Long> lastSweep = new HashMap<String,Long>();
+
+    /*
+     * Join condition matching a subscription s to a product p.
+     */
+    private static final String SUBSCRIBED =
+        "((s.compareOp = '=' AND s.productType = p.productType)"
+        + " OR (s.compareOp = 'LIKE' AND p.productType LIKE s.productType))";
+
+    private WorkQueue() {}
+
+    static boolean isAvailable()
+    {
+        return System.currentTimeMillis() >= unavailableUntil;
+    }
+
+    /**
+     * Determine if an error means the queue tables (or a column of them)
+     * are not there, as opposed to a failure of the statement itself.
+     */
+    static boolean isMissingTable(SQLException e)
+    {
+        // ER_NO_SUCH_TABLE, ER_BAD_FIELD_ERROR
+        return e.getErrorCode() == 1146 || e.getErrorCode() == 1054;
+    }
+
+    private static void unavailable(SQLException e)
+    {
+        if (isAvailable())
+        {
+            System.err.println("WorkQueue unavailable, using Markers anti-join: " + e);
+        }
+        unavailableUntil = System.currentTimeMillis() + RETRY_INTERVAL;
+    }
+
+    /**
+     * Note why reading the queue failed. Only missing tables turn the
+     * queue off; anything else (a deadlock or lock wait timeout, say)
+     * only sends this one caller to the anti-join.
+     */
+    private static void readFailed(Connection connection, SQLException e)
+    {
+        rollback(connection);
+        if (isMissingTable(e))
+        {
+            unavailable(e);
+        }
+        else
+        {
+            System.err.println("WorkQueue read failed, using Markers anti-join this time: " + e);
+        }
+    }
+
+    /**
+     * Subscribe a colony to a product type, and back-fill its queue if the
+     * subscription is new. Commits.
+     * @param qgroup the gopherColony, quoted
+     * @param qproductType a product type or LIKE mask, quoted
+     * @param whereCompare "=" or "LIKE"
+     */
+    static void subscribe(Connection connection, String qgroup, String qproductType,
+            String whereCompare)
+    {
+        if (!isAvailable()) return;
+        try
+        {
+            Statement s = connection.createStatement();
+            try
+            {
+                int added = Utility.executeUpdate(s,
+                        "INSERT IGNORE INTO WorkQueueSubscriptions"
+                        + " (gopherColony, productType, compareOp, creation) VALUES ("
+                        + qgroup + ", " + qproductType + ", " + Utility.quote(whereCompare)
+                        + ", " + Utility.quote(Utility.format(new java.util.Date())) + ")");
+                if (added > 0)
+                {
+                    backfill(s, qgroup, qproductType, whereCompare);
+                    swept(qgroup + " " + qproductType);
+                }
+                Utility.commitConnection(connection);
+            }
+            finally
+            {
+                s.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            // The subscription rolled back too, so the next reserve tries again
+            readFailed(connection, e);
+        }
+    }
+
+    /**
+     * Lock and return up to limit queued products for this colony that are
+     * ready to reserve. Rows other stations have locked are skipped. The
+     * locks are held until the caller commits or rolls back.
+     * @param eligible extra conditions on Products AS p (starting with AND)
+     * @return product IDs, or null if the caller should use the anti-join
+     */
+    static List<String> dequeue(Connection connection, Statement s, String qgroup,
+            String qproductType, String whereCompare, String eligible, int limit)
+    {
+        if (!isAvailable() || System.currentTimeMillis() < noSkipLockedUntil) return null;
+        try
+        {
+            sweep(connection, s, qgroup, qproductType, whereCompare);
+            return lockQueued(s, qgroup, qproductType, whereCompare, eligible, limit);
+        }
+        catch (SQLException e)
+        {
+            readFailed(connection, e);
+            return null;
+        }
+    }
+
+    /**
+     * List queued products for this colony, with their passes, without
+     * locking. Used by the granule reserve, which grabs one at a time.
+     * @return rows of {pass, product}, or null if the caller should use
+     *      the anti-join
+     */
+    static List<String[]> queued(Connection connection, Statement s, String qgroup,
+            String qproductType, String whereCompare)
+    {
+        if (!isAvailable()) return null;
+        try
+        {
+            sweep(connection, s, qgroup, qproductType, whereCompare);
+            return listQueued(s, qgroup, qproductType, whereCompare);
+        }
+        catch (SQLException e)
+        {
+            readFailed(connection, e);
+            return null;
+        }
+    }
+
+    /**
+     * Take products off a colony's queue, because the colony grabbed them
+     * or found them already marked. Does NOT commit.
+     */
+    static void remove(Statement s, String qgroup, List<String> productIDs) throws SQLException
+    {
+        if (productIDs.isEmpty() || !isAvailable()) return;
+        StringBuilder sql = new StringBuilder(256);
+        sql.append("DELETE FROM WorkQueue WHERE gopherColony = ").append(qgroup);
+        sql.append(" AND product IN (");
+        for (int i = 0; i < productIDs.size(); i++)
+        {
+            if (i > 0) sql.append(Utility.COMMA);
+            sql.append(productIDs.get(i));
+        }
+        sql.append(")");
+        update(s, sql.toString());
+    }
+
+    /**
+     * Queue a newly stored product for every colony subscribed to its type.
+     * ProductStore calls this inside its transaction. Does NOT commit.
+     */
+    static void fanOut(Statement s, String productID) throws SQLException
+    {
+        if (!isAvailable()) return;
+        update(s, "INSERT IGNORE INTO WorkQueue (gopherColony, product, productType)"
+               + " SELECT s.gopherColony, p.id, p.productType"
+               + " FROM Products AS p JOIN WorkQueueSubscriptions AS s ON " + SUBSCRIBED
+               + " WHERE p.id = " + productID);
+    }
+
+    /**
+     * fanOut() for many newly stored products at once.
+     */
+    static void fanOut(Statement s, List<String> productIDs) throws SQLException
+    {
+        if (productIDs.isEmpty() || !isAvailable()) return;
+        StringBuilder sql = new StringBuilder(256);
+        sql.append("INSERT IGNORE INTO WorkQueue (gopherColony, product, productType)");
+        sql.append(" SELECT s.gopherColony, p.id, p.productType");
+        sql.append(" FROM Products AS p JOIN WorkQueueSubscriptions AS s ON ").append(SUBSCRIBED);
+        sql.append(" WHERE p.id IN (");
+        for (int i = 0; i < productIDs.size(); i++)
+        {
+            if (i > 0) sql.append(Utility.COMMA);
+            sql.append(productIDs.get(i));
+        }
+        sql.append(")");
+        update(s, sql.toString());
+    }
+
+    /**
+     * Put products back on the queue for the Markers rows that are about to
+     * be deleted. Call this before the DELETE. Does NOT commit.
+     * @param markerCondition a condition on Markers AS m
+     */
+    static void requeue(Statement s, String markerCondition) throws SQLException
+    {
+        if (!isAvailable()) return;
+        update(s, "INSERT IGNORE INTO WorkQueue (gopherColony, product, productType)"
+               + " SELECT s.gopherColony, p.id, p.productType FROM Markers AS m"
+               + " JOIN Products AS p ON p.id = m.product"
+               + " JOIN WorkQueueSubscriptions AS s ON s.gopherColony = m.gopherColony"
+               + " AND " + SUBSCRIBED
+               + " WHERE " + markerCondition);
+    }
+
+    /**
+     * Drop a deleted product from every queue. Does NOT commit.
+     */
+    static void removeProduct(Statement s, String productID) throws SQLException
+    {
+        if (!isAvailable()) return;
+        update(s, "DELETE FROM WorkQueue WHERE product = " + productID);
+    }
+
+    /**
+     * removeProduct() for many deleted products. Does NOT commit.
+     */
+    static void removeProducts(Statement s, List<String> productIDs) throws SQLException
+    {
+        if (productIDs.isEmpty() || !isAvailable()) return;
+        StringBuilder sql = new StringBuilder(256);
+        sql.append("DELETE FROM WorkQueue WHERE product IN (");
+        for (int i = 0; i < productIDs.size(); i++)
+        {
+            if (i > 0) sql.append(Utility.COMMA);
+            sql.append(Utility.quote(productIDs.get(i)));
+        }
+        sql.append(")");
+        update(s, sql.toString());
+    }
+
+    private static List<String> lockQueued(Statement s, String qgroup, String qproductType,
+            String whereCompare, String eligible, int limit) throws SQLException
+    {
+        String sql = "SELECT q.product FROM WorkQueue AS q"
+            + " JOIN Products AS p ON p.id = q.product"
+            + " WHERE q.gopherColony = " + qgroup
+            + " AND q.productType " + whereCompare + " " + qproductType
+            + eligible
+            + " ORDER BY q.product LIMIT " + limit
+            + " FOR UPDATE OF q SKIP LOCKED";
+        ResultSet r;
+        try
+        {
+            r = Utility.executeQuery(s, sql);
+        }
+        catch (SQLException e)
+        {
+            // ER_PARSE_ERROR: a server older than MySQL 8
+            if (e.getErrorCode() == 1064)
+            {
+                if (System.currentTimeMillis() >= noSkipLockedUntil)
+                {
+                    System.err.println("WorkQueue dequeue needs SKIP LOCKED, using Markers anti-join: " + e);
+                }
+                noSkipLockedUntil = System.currentTimeMillis() + RETRY_INTERVAL;
+            }
+            throw e;
+        }
+        List<String> ids = new ArrayList<String>();
+        while (r.next())
+        {
+            ids.add(r.getString(1));
+        }
+        return ids;
+    }
+
+    private static List<String[]> listQueued(Statement s, String qgroup, String qproductType,
+            String whereCompare) throws SQLException
+    {
+        String sql = "SELECT p.pass, p.id FROM WorkQueue AS q"
+            + " JOIN Products AS p ON p.id = q.product"
+            + " WHERE q.gopherColony = " + qgroup
+            + " AND q.productType " + whereCompare + " " + qproductType
+            + " ORDER BY q.product";
+        ResultSet r = Utility.executeQuery(s, sql);
+        List<String[]> rows = new ArrayList<String[]>();
+        while (r.next())
+        {
+            rows.add(new String[] {r.getString(1), r.getString(2)});
+        }
+        return rows;
+    }
+
+    /**
+     * Queue every product of this type that the colony has not marked.
+     * This is the old anti-join, run once per subscription and then only
+     * by the sweep.
+     */
+    private static void backfill(Statement s, String qgroup, String qproductType,
+            String whereCompare) throws SQLException
+    {
+        Utility.executeUpdate(s,
+                "INSERT IGNORE INTO WorkQueue (gopherColony, product, productType)"
+                + " SELECT " + qgroup + ", p.id, p.productType FROM Products AS p"
+                + " LEFT JOIN Markers AS m ON m.product = p.id AND m.gopherColony = " + qgroup
+                + " WHERE m.product IS NULL"
+                + " AND p.productType " + whereCompare + " " + qproductType);
+    }
+
+    /**
+     * Back-fill a colony's queue, and commit, the first time this JVM reads
+     * it and then once per SWEEP_INTERVAL. This runs before the queue is
+     * read, so the commit cannot release the caller's row locks.
+     */
+    private static void sweep(Connection connection, Statement s, String qgroup,
+            String qproductType, String whereCompare) throws SQLException
+    {
+        if (sweepDue(qgroup + " " + qproductType))
+        {
+            backfill(s, qgroup, qproductType, whereCompare);
+            Utility.commitConnection(connection);
+        }
+    }
+
+    /**
+     * True the first time a colony's queue is read in this JVM, and then
+     * at most once per SWEEP_INTERVAL.
+     */
+    private static boolean sweepDue(String key)
+    {
+        long now = System.currentTimeMillis();
+        synchronized (lastSweep)
+        {
+            Long last = lastSweep.get(key);
+            if (last != null && now - last.longValue() < SWEEP_INTERVAL)
+            {
+                return false;
+            }
+            lastSweep.put(key, now);
+            return true;
+        }
+    }
+
+    private static void swept(String key)
+    {
+        synchronized (lastSweep)
+        {
+            lastSweep.put(key, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Run a queue maintenance statement inside someone else's transaction.
+     * If the queue tables are missing, the statement fails without
+     * aborting the transaction, so we note that the queue is gone and carry
+     * on. Any other error (a deadlock or lock wait timeout, which roll the
+     * transaction back) is thrown, so the caller's transaction fails too.
+     */
+    private static void update(Statement s, String sql) throws SQLException
+    {
+        try
+        {
+            Utility.executeUpdate(s, sql);
+        }
+        catch (SQLException e)
+        {
+            if (!isMissingTable(e)) throw e;
+            unavailable(e);
+        }
+    }
+
+    private static void rollback(Connection connection)
+    {
+        try
+        {
+            connection.rollback();
+        }
+        catch (SQLException e) {}
+    }
+}
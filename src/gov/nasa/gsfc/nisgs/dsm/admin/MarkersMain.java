@@ -294,15 +294,20 @@ public class MarkersMain extends JFrame
 			selrowLabel[i+1] = marker.productId + " " + marker.productType + " " + marker.gopherColony;
 		    }
 		    if(JOptionPane.showConfirmDialog(MarkersMain.this, selrowLabel, "Confirm Delete", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
-			for(int selrow : selrows) {
-			    XMarker marker = markersModel.getMarker(selrow);
-			    if (marker != null)
-				{
-				    dsm.update("DELETE FROM Markers WHERE product=" +
-					       marker.productId +
-					       " AND gopherColony=" +
-					       Utility.quote(marker.gopherColony));
-				}
+			java.sql.Statement stmt = dsm.getConnection().createStatement();
+			try {
+			    for(int selrow : selrows) {
+				XMarker marker = markersModel.getMarker(selrow);
+				if (marker != null)
+				    {
+					ProductFactory.deleteMarker(stmt,
+					    new MarkerRef(Integer.parseInt(marker.productId),
+							  marker.gopherColony));
+				    }
+			    }
+			}
+			finally {
+			    stmt.close();
 			}
 			dsm.commit();
 			java.util.List<XMarker> markerList = getMarkers();
@@ -315,7 +320,7 @@ public class MarkersMain extends JFrame
                     JOptionPane.showMessageDialog(MarkersMain.this,"You must select at least one marker to delete.");
                 }
             }
-            catch (java.sql.SQLException e)
+            catch (Exception e)
             {
                 e.printStackTrace();
                 try { dsm.rollback(); } catch (Exception er) {}
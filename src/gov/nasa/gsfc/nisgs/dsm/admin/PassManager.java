@@ -191,36 +191,20 @@ public class PassManager extends javax.swing.JFrame
 					setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 				    for (Pass pass : safePass) {
 					Connection connection = dsm.getConnection();
+					// Load the pass's product tree once
+					LineageGraph lineage = LineageGraph.forPass(connection, pass.getId());
 					// Collect the products to be deleted.  Start with the roots
-					Set<String> deleters = ProductFactory.rootProducts(connection, pass.getId());
+					Set<String> deleters = lineage.rootProducts();
 					// Then collect all the children
-					Set<String> deleterKids = new HashSet<String>();
-					ProductFactory.addAllChildren(connection, deleters, deleterKids);
+					Set<String> deleterKids = lineage.descendants(deleters);
 					// Collect the markers to be removed
-					Set<MarkerRef> mrs = new HashSet<MarkerRef>();
-					Statement stmt = connection.createStatement();
-					try {
-					    for (String pid : deleters) {
-						MarkerRef mr = ProductFactory.findControllingMarker(stmt, pid);
-						if(mr != null) {
-						    mrs.add(mr);
-						}
-					    }
-					    for (String pid : deleterKids) {
-						MarkerRef mr = ProductFactory.findControllingMarker(stmt, pid);
-						if(mr != null) {
-						    mrs.add(mr);
-						}
-					    }
-					}
-					finally {
-					    stmt.close();
-					}
+					Set<MarkerRef> mrs = lineage.controllingMarkers(deleters);
+					mrs.addAll(lineage.controllingMarkers(deleterKids));
 					// Delete the products
-					ProductFactory.removeProducts(connection, deleters, fm);
+					lineage.removeProducts(connection, deleters, fm);
 					// Delete any markers that didn't get nailed already
 					// (only for products outside the current pass, really)
-					stmt = connection.createStatement();
+					Statement stmt = connection.createStatement();
 					try {
 					    for (MarkerRef mr : mrs) {
 						ProductFactory.deleteMarker(stmt, mr);
@@ -231,7 +215,7 @@ public class PassManager extends javax.swing.JFrame
 					}
 					// Belt and suspenders time - if somehow a Pass has
 					// no products, removeProducts() won't delete it, so...
-					dsm.update("DELETE FROM Passes WHERE id="+pass.getId());
+					dsm.deletePass(pass);
 
 					// IPOPP 2.4: Increase the ProgressMonitor's progress:
 					passCounter++;
@@ -322,41 +306,25 @@ public class PassManager extends javax.swing.JFrame
 					    setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 					    for (Pass pass : safePass) {
 						Connection connection = dsm.getConnection();
+						// Load the pass's product tree once
+						LineageGraph lineage = LineageGraph.forPass(connection, pass.getId());
 						// Get the list of root products
-						Set<String> rootIDs = ProductFactory.rootProducts(connection, pass.getId());
+						Set<String> rootIDs = lineage.rootProducts();
 						// Use it to generate the list of children of the roots
 						Set<String> rootChildProducts = new HashSet<String>();
 						for (String r : rootIDs) {
-						    ProductFactory.addChildren(connection, r, rootChildProducts);
+						    rootChildProducts.addAll(lineage.children(r));
 						}
 						// And the list of everybody else to be deleted
-						Set<String> otherChildren = new HashSet<String>();
-						ProductFactory.addAllChildren(connection, rootChildProducts, otherChildren);
+						Set<String> otherChildren = lineage.descendants(rootChildProducts);
 						// Get the list of MarkerRefs for the markers we're
 						// about to remove
-						Set<MarkerRef> mrs = new HashSet<MarkerRef>();
-						Statement stmt = connection.createStatement();
-						try {
-						    for (String pid : rootChildProducts) {
-							MarkerRef mr = ProductFactory.findControllingMarker(stmt, pid);
-							if(mr != null) {
-							    mrs.add(mr);
-							}
-						    }
-						    for (String pid : otherChildren) {
-							MarkerRef mr = ProductFactory.findControllingMarker(stmt, pid);
-							if(mr != null) {
-							    mrs.add(mr);
-							}
-						    }
-						}
-						finally {
-						    stmt.close();
-						}
+						Set<MarkerRef> mrs = lineage.controllingMarkers(rootChildProducts);
+						mrs.addAll(lineage.controllingMarkers(otherChildren));
 						// Delete the child products
-						ProductFactory.removeProducts(connection, rootChildProducts, fm);
+						lineage.removeProducts(connection, rootChildProducts, fm);
 						// Finally, remove the markers
-						stmt = connection.createStatement();
+						Statement stmt = connection.createStatement();
 						try {
 						    for (String r : rootIDs) {
 							ProductFactory.deleteMarkersOnProduct(stmt, r);
@@ -498,10 +466,7 @@ public class PassManager extends javax.swing.JFrame
 		    dialog[1] = passIDs;
 		    if (JOptionPane.showConfirmDialog(PassManager.this, dialog, "Confirm " + opString, JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
 			for (Pass pass : safePass) {
-			    dsm.update("UPDATE Passes SET deleteProtected=" +
-				       (protectP ? "1" : "0") +
-				       " WHERE id="+ pass.getId());
-			    pass.setDeleteProtection(protectP);
+			    dsm.updatePassDeleteProtection(pass, protectP);
 			}
 			dsm.commit();
 			for (int n : selrows) {
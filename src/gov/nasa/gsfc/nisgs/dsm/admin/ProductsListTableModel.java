@@ -4,8 +4,7 @@ the Administrator for The National Aeronautics and Space Administration.
 All rights reserved.
 */
 package gov.nasa.gsfc.nisgs.dsm.admin;
-import gov.nasa.gsfc.nisgs.dsm.Product;
-import gov.nasa.gsfc.nisgs.properties.Utility;
+import gov.nasa.gsfc.nisgs.dsm.ProductSummary;
 import java.util.*;
 
 class ProductsListTableModel extends javax.swing.table.AbstractTableModel
@@ -32,7 +31,7 @@ class ProductsListTableModel extends javax.swing.table.AbstractTableModel
     private int rowHeight;
 
 
-    ProductsListTableModel(boolean powerUser, List<Product> list)
+    ProductsListTableModel(boolean powerUser, List<ProductSummary> list)
     {
 	this.powerUser = powerUser;
 	COLUMN_NAME = (powerUser ? COLUMN_NAME_POWER : COLUMN_NAME_NORMAL);
@@ -75,17 +74,17 @@ class ProductsListTableModel extends javax.swing.table.AbstractTableModel
         return rowHeight;
     }
 
-    void updateModel(java.util.List<Product> list)
+    void updateModel(java.util.List<ProductSummary> list)
     {
         createDataStructure(list);
         fireTableDataChanged();
     }
 
-    private void createDataStructure(java.util.List<Product> list)
+    private void createDataStructure(java.util.List<ProductSummary> list)
     {
         productList = new XProduct[list.size()];
         int n = 0;
-        for (Product product : list)
+        for (ProductSummary product : list)
         {
             productList[n++] = new XProduct(product);
         }
@@ -109,7 +108,7 @@ class ProductsListTableModel extends javax.swing.table.AbstractTableModel
                 value = x.product.getStopTimeString();
                 break;
             case CREATION:
-                value = Utility.format(x.product.getCreationTime());
+                value = x.product.getCreationTimeString();
                 break;
             case DELETE_PROTECTED:
                 value = x.product.isDeleteProtected()? "YES" : "no";
@@ -139,7 +138,7 @@ class ProductsListTableModel extends javax.swing.table.AbstractTableModel
     {
     }
 
-    Product getProduct(int index)
+    ProductSummary getProduct(int index)
     {
         return productList[index].product;
     }
@@ -152,9 +151,9 @@ class ProductsListTableModel extends javax.swing.table.AbstractTableModel
     */
     private static class XProduct
     {
-        Product product;
+        ProductSummary product;
 
-        XProduct(Product product)
+        XProduct(ProductSummary product)
         {
             this.product = product;
         }
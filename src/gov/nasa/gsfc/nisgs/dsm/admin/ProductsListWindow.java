@@ -43,8 +43,8 @@ class ProductsListWindow extends javax.swing.JDialog
         setDefaultCloseOperation(DISPOSE_ON_CLOSE);
         setLocationByPlatform(true);
 
-        String sql = "SELECT * FROM Products WHERE pass=" + pass.getId();
-        java.util.List<Product> productList = dsm.queryProducts(sql);
+        java.util.List<ProductSummary> productList =
+            dsm.queryProductSummaries("pass=" + pass.getId());
         productsListTableModel = new ProductsListTableModel(powerUser,productList);
         productsListTable = new JTable(productsListTableModel);
 	// Automatic table sorting seems to be good enough here...
@@ -106,7 +106,16 @@ class ProductsListWindow extends javax.swing.JDialog
             if (i == null) return;
 	    // TABLEROW property is view index; as usual we want model index
 	    int modelIndex = productsListTable.convertRowIndexToModel(i);
-            Product product = productsListTableModel.getProduct(modelIndex);
+            Product product = null;
+            try
+            {
+                product = dsm.getProduct(productsListTableModel.getProduct(modelIndex).getId());
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+            if (product == null) return;
             ProductWindow pw = new ProductWindow(parent,product.toString(),dsm,product);
             pw.setVisible(true);
         }
@@ -118,9 +127,9 @@ class ProductsListWindow extends javax.swing.JDialog
      */
     public void refreshTable()
     {
-	java.util.List<Product> productList = null;
+	java.util.List<ProductSummary> productList = null;
 	try {
-	    productList = dsm.queryProducts("SELECT * FROM Products WHERE pass=" + pass.getId());
+	    productList = dsm.queryProductSummaries("pass=" + pass.getId());
 	    productsListTableModel.updateModel(productList);
 	    // If the productList is empty, we might have deleted the pass,
 	    // and the main window should hear about it
@@ -177,9 +186,9 @@ class ProductsListWindow extends javax.swing.JDialog
 		int selectedCount = 0;
 		int selrows[] = selectedRows();
 		// Filter out protected passes
-		List<Product> safeProduct = new ArrayList<Product>();
+		List<ProductSummary> safeProduct = new ArrayList<ProductSummary>();
 		for (int n : selrows) {
-                    Product product = productsListTableModel.getProduct(n);
+                    ProductSummary product = productsListTableModel.getProduct(n);
                     if (product != null) {
                         ++selectedCount;
 			if(product.isDeleteProtected())
@@ -192,7 +201,7 @@ class ProductsListWindow extends javax.swing.JDialog
 		String productIDs = "";
 		if(safeProduct.size() > 0) {
 		    // Do the usual "last chance to not do this" thing
-		    for (Product product : safeProduct) {
+		    for (ProductSummary product : safeProduct) {
 			productIDs += " " + product.getId();
 		    }
 		    dialog[0] = "About to delete";
@@ -200,7 +209,7 @@ class ProductsListWindow extends javax.swing.JDialog
 		    if(JOptionPane.showConfirmDialog(ProductsListWindow.this, dialog, "Confirm Delete", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
 			Statement stmt = dsm.getConnection().createStatement();
 			try {
-			    for (Product prod : safeProduct) {
+			    for (ProductSummary prod : safeProduct) {
 				ProductFactory.removeOneProduct(stmt, prod.getId().toString(), fm);
 			    }
 			    dsm.commit();
@@ -272,9 +281,9 @@ class ProductsListWindow extends javax.swing.JDialog
 		int protectedCount = 0;
 		int selectedCount = 0;
 		int selrows[] = selectedRows();
-		List<Product> safeProduct = new ArrayList<Product>();
+		List<ProductSummary> safeProduct = new ArrayList<ProductSummary>();
 		for (int n : selrows) {
-		    Product product = productsListTableModel.getProduct(n);
+		    ProductSummary product = productsListTableModel.getProduct(n);
 		    if(product != null) {
 			++selectedCount;
 			if(product.isDeleteProtected() == protectP)
@@ -286,23 +295,21 @@ class ProductsListWindow extends javax.swing.JDialog
 		String productIDs = "";
 		if(safeProduct.size() > 0) {
 		    // Do the usual "last chance to not do this" thing
-		    for (Product product : safeProduct) {
+		    for (ProductSummary product : safeProduct) {
 			productIDs += " " + product.getId();
 		    }
 		    String dialog[]= new String[2];
 		    dialog[0] = "About to " + opString;
 		    dialog[1] = productIDs;
 		    if (JOptionPane.showConfirmDialog(ProductsListWindow.this, dialog, "Confirm " + opString, JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
-			for (Product product : safeProduct) {
+			for (ProductSummary product : safeProduct) {
 			    dsm.update("UPDATE Products SET deleteProtected=" +
 				       (protectP ? "1" : "0") +
 				       " WHERE id=" + product.getId());
-                        product.setDeleteProtected(protectP);
 			}
 			dsm.commit();
-			for (int n : selrows) {
-			    productsListTableModel.fireTableRowsUpdated(n,n);
-			}
+			// Summaries do not change; read them again
+			refreshTable();
 			dialog[0] = "Selected products are";
 			dialog[1] = opString + "ed";
 			JOptionPane.showMessageDialog(ProductsListWindow.this,dialog);
@@ -1795,6 +1795,16 @@ private class MakeFloatingDialog extends JDialog implements ActionListener, Prop
 					   "'" + r.get(5) + "');"
 					   );
 		   }
+		   // Tell running stations the types changed, in the same
+		   // transaction; a database without the counter does not mind
+		   try {
+			   stmt.executeUpdate(
+					   "INSERT INTO ChangeCounters (name,counter) VALUES ('ProductTypes',1)"
+					   + " ON DUPLICATE KEY UPDATE counter=counter+1");
+		   }
+		   catch (SQLException e) {
+			   if (e.getErrorCode() != 1146) throw e;
+		   }
 		   connection.commit();
 		   
 	   }
@@ -53,7 +53,7 @@ class AncillaryTransferCommand extends TransferCommand
     /**
      * Execute the transfer. You must test() before you call this method.
      */
-    void execute() throws Exception
+    void execute(MoverSource movers) throws Exception
     {
         state = FAILURE;
 
@@ -117,23 +117,12 @@ class AncillaryTransferCommand extends TransferCommand
 		    }
 		
 		// Strangely enough, this is it...
-		FileMover fm = FileMover.newMover(setup.getIS_Site(), dsm.getSite(), setup);
-		Exception primaryE = null;
-		try {
-		    fm.moveFile(new File(is_directory, filename), localFile);
-		    //A fault means the db already has an entry for the local version.
-		    if (!fault) {
-			final boolean doCommit = true;
-			dsm.insertAncillarySiteUpdate(siteTable,mysite,localDirectory,tableId,doCommit);
-			}
-		}
-		catch (Exception e) {
-		    state = FAILURE;
-		    primaryE = e;
-		    throw e;
-		}
-		finally {
-		    fm.quit(primaryE);
+		FileMover fm = movers.getMover();
+		fm.moveFile(new File(is_directory, filename), localFile);
+		//A fault means the db already has an entry for the local version.
+		if (!fault) {
+		    final boolean doCommit = true;
+		    dsm.insertAncillarySiteUpdate(siteTable,mysite,localDirectory,tableId,doCommit);
 		}
 	    }
 
@@ -5,6 +5,16 @@ All rights reserved.
 */
 package gov.nasa.gsfc.nisgs.dsm.agent;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.sql.ResultSet;
 import gov.nasa.gsfc.nisgs.dsm.*;
 import gov.nasa.gsfc.nisgs.properties.Utility;
@@ -16,13 +26,36 @@ import gov.nasa.gsfc.nisgs.properties.Utility;
  * It fails the request if the item is not on the IS but is registered to be there.
  * @version 3.22a Fixed a bug where DSMR entered an infinite loop if the file did not exist
  *      on the IS.
+ * @version 3.23 Transfers run on a pool of workers, so a large product no
+ *      longer holds up the small files behind it. System properties:
+ *      dsmr.workers (default 4) is the number of workers, and so the
+ *      most transfers from the IS at once; dsmr.typeLimit.TABLE caps the
+ *      transfers of one kind,
+ *      where TABLE is Products (default half the workers) or an ancillary
+ *      table (default dsmr.workers); dsmr.idleSeconds (default 30) is how
+ *      long a worker keeps an unused FileMover session open.
+ * @version 3.23 Duplicate commands are grouped by item and closed by one
+ *      UPDATE; the backlog is logged when it changes.
  */
 public class DSMR
 {
     private static final long ONE_SECOND = 1000L;
+    private static final int WORKERS =
+        Math.max(1, Integer.getInteger("dsmr.workers", 4).intValue());
+    private static final long IDLE_SECONDS =
+        Integer.getInteger("dsmr.idleSeconds", 30).longValue();
     private DsmLog logger = null;
     private DsmProperties config;
 
+    /** Transfers waiting for a worker. */
+    private final BlockingQueue<Job> jobs = new LinkedBlockingQueue<Job>();
+    /** The lead command of every transfer queued or running. */
+    private final Set<TransferCommand> inFlight = new HashSet<TransferCommand>();
+    /** What the last poll reported, so an unchanged backlog is not logged again. */
+    private String lastQueueReport = "";
+    /** Permits by table. */
+    private final Map<String,Semaphore> typeLimits = new HashMap<String,Semaphore>();
+
     public static void main(String[] args) throws Exception
     {
         int n = Integer.getInteger("sleepSeconds",5).intValue();
@@ -80,70 +113,272 @@ public class DSMR
 	    System.exit(-1);
 	}
 
-        logger.report("DSMR ready.");
+        for (int i = 1; i <= WORKERS; i++)
+        {
+            Thread t = new Thread(new Worker(), "DSMR worker " + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        logger.report("DSMR ready with " + WORKERS + " workers.");
     }
 
     void run() throws Exception
     {
         //I make a database connection. I then ask for a list of open transfer
-        //commands for my site.
+        //commands for my site and hand the ones I can start to the workers.
+        //Each worker has its own connection; the commands are given it.
         DSMAdministrator dsm = new DSMAdministrator("DSMR","DSMR");
-        ArrayList<TransferCommand> transferCommands = getTransferCommands(dsm,config);
+        ArrayList<TransferCommand> transferCommands;
+        try
+        {
+            transferCommands = getTransferCommands(dsm,config);
+        }
+        finally
+        {
+            dsm.dispose();
+        }
+
+        //All commands requesting the same thing are done by one transfer.
+        //TransferCommands hash and compare by item, and the map keeps id order.
+        Map<TransferCommand,List<TransferCommand>> groups =
+            new LinkedHashMap<TransferCommand,List<TransferCommand>>();
         for (TransferCommand tc : transferCommands)
         {
-        	// Test can throw an exception and when it does, 
-        	// the entire list is not traversed, and gets to 
-        	// the same point over and over. Breaking it out
-        	// as follows should fix the issue. KR
-        	Boolean tcTestResult = false;
-        	try {
-        		tcTestResult = tc.test();
-        	} catch (Exception te) {
-        		logger.report("DSMR: Error in test method "+tc, te);
-        	}
-            //Is this request open? Is the item on the local or IS computer?
-            //I skip for now items that are not local and have not yet been published.
-            if (tc.isPending() && tcTestResult)
+            List<TransferCommand> group = groups.get(tc);
+            if (group == null)
+            {
+                group = new ArrayList<TransferCommand>();
+                groups.put(tc, group);
+            }
+            group.add(tc);
+        }
+
+        //Commands are in id order. One that cannot start now because its
+        //type is busy is left for a later pass; the others go ahead.
+        //Every transfer reads from the IS, so the worker count is the
+        //only limit per source.
+        int started = 0;
+        for (List<TransferCommand> group : groups.values())
+        {
+            TransferCommand tc = group.get(0);
+            Semaphore type = limit(typeLimits, tc.getTable(), typeLimit(tc.getTable()));
+            synchronized (inFlight)
+            {
+                if (inFlight.contains(tc)) continue;
+                if (!type.tryAcquire()) continue;
+                inFlight.add(tc);
+            }
+            jobs.add(new Job(group, type));
+            ++started;
+        }
+        reportQueue(transferCommands.size(), groups.size(), started);
+    }
+
+    /**
+     * Log the backlog when it changes: open commands, distinct items among
+     * them (the rest are duplicates), items started by this poll, and
+     * items queued for or running on a worker.
+     */
+    private void reportQueue(int commands, int items, int started)
+    {
+        int queued = jobs.size();
+        int running;
+        synchronized (inFlight)
+        {
+            running = inFlight.size() - queued;
+        }
+        String report = "DSMR queue: commands=" + commands + " items=" + items
+            + " dedup=" + ((commands == 0)? 0 : 100 * (commands - items) / commands) + "%"
+            + " started=" + started + " queued=" + queued + " running=" + running;
+        if (commands > 0 && !report.equals(lastQueueReport))
+        {
+            logger.report(report);
+        }
+        lastQueueReport = report;
+    }
+
+    private static int typeLimit(String table)
+    {
+        int dflt = table.equals("Products")? Math.max(1, WORKERS / 2) : WORKERS;
+        return Integer.getInteger("dsmr.typeLimit." + table, dflt).intValue();
+    }
+
+    private static Semaphore limit(Map<String,Semaphore> limits, String name, int permits)
+    {
+        synchronized (limits)
+        {
+            Semaphore s = limits.get(name);
+            if (s == null)
+            {
+                s = new Semaphore(Math.max(1, permits));
+                limits.put(name, s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * One transfer: the command that does it, the others asking for the
+     * same thing, and the permit it holds.
+     */
+    private static final class Job
+    {
+        final List<TransferCommand> group;
+        final Semaphore type;
+
+        Job(List<TransferCommand> group, Semaphore type)
+        {
+            this.group = group;
+            this.type = type;
+        }
+    }
+
+    /**
+     * A worker takes jobs from the queue one at a time. It keeps its own
+     * DSMAdministrator and one FileMover session to the IS, which it opens
+     * when a transfer first needs it and closes after an error or when it
+     * has been idle for dsmr.idleSeconds.
+     */
+    private final class Worker implements Runnable, TransferCommand.MoverSource
+    {
+        private DSMAdministrator dsm = null;
+        private FileMover mover = null;
+
+        public void run()
+        {
+            while (true)
             {
+                Job job;
+                try
+                {
+                    job = jobs.poll(IDLE_SECONDS, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    continue;
+                }
+                if (job == null)
+                {
+                    closeMover(null);
+                    continue;
+                }
+                try
+                {
+                    work(job);
+                }
+                catch (Exception e)
+                {
+                    logger.report("DSMR worker error", e);
+                    closeMover(e);
+                    closeDSM();
+                }
+                finally
+                {
+                    synchronized (inFlight)
+                    {
+                        inFlight.remove(job.group.get(0));
+                    }
+                    job.type.release();
+                }
+            }
+        }
+
+        public FileMover getMover() throws Exception
+        {
+            if (mover == null)
+            {
+                mover = FileMover.newMover(config.getIS_Site(), config.getSite(), config);
+            }
+            return mover;
+        }
+
+        private void work(Job job) throws Exception
+        {
+            if (dsm == null)
+            {
+                dsm = new DSMAdministrator("DSMR","DSMR");
+            }
+            TransferCommand tc = job.group.get(0);
+            tc.setDSM(dsm);
+            try
+            {
+                // Test can throw an exception and when it does, 
+                // the entire list is not traversed, and gets to 
+                // the same point over and over. Breaking it out
+                // as follows should fix the issue. KR
+                boolean tcTestResult = false;
+                try {
+                    tcTestResult = tc.test();
+                } catch (Exception te) {
+                    logger.report("DSMR: Error in test method "+tc, te);
+                }
+                //Is this request open? Is the item on the local or IS computer?
+                //I skip for now items that are not local and have not yet been published.
+                if (!tc.isPending() || !tcTestResult) return;
+
                 //I do the transfer.
                 try
                 {
-                    tc.execute();
+                    tc.execute(this);
                     logger.report("DSMR copied from IS " + tc.getItem());
                 }
                 catch (Exception te)
                 {
                     //Usually because someone deleted it on the IS but not from the DB.
-		    // JRB - changed from the form below:
                     logger.report("DSMR: Error executing "+tc, te);
-		    // because that form caused an exception during
-		    // exception processing.  Bleah.
-                    // logger.report("DSMR: Error executing "+ tc + te);
+                    //The session may be broken; the next transfer opens another.
+                    closeMover(te);
                 }
 
-
-                //I close all commands requesting the same files.
+                //I close all commands requesting the same files, at once.
                 int state = tc.getState();
-                for (TransferCommand tcx : transferCommands)
+                StringBuffer ids = new StringBuffer(16 * job.group.size());
+                for (TransferCommand tcx : job.group)
                 {
-                    if (tc.equals(tcx))
-                    {
-                        tcx.setState(state);
-                        try
-                        {
-                            dsm.update("UPDATE TransferCommands SET complete=" + state +
-                                    " WHERE id=" + tcx.getId());
-                            dsm.commit();
-                        }
-                         catch (Exception ue)
-                        {
-                            logger.report("DSMR: Error updating TransferCommands table "+tcx, ue);
-                        }
-                    }
+                    tcx.setState(state);
+                    if (ids.length() > 0) ids.append(',');
+                    ids.append(tcx.getId());
                 }
+                try
+                {
+                    dsm.update("UPDATE TransferCommands SET complete=" + state +
+                               " WHERE id IN (" + ids + ")");
+                    dsm.commit();
+                }
+                catch (Exception ue)
+                {
+                    logger.report("DSMR: Error updating TransferCommands table "+tc
+                                  + " and " + (job.group.size() - 1) + " duplicates", ue);
+                }
+            }
+            finally
+            {
+                //End the transaction, so the next test sees new rows.
+                dsm.commit();
             }
         }
-        dsm.dispose();
+
+        private void closeMover(Exception primaryE)
+        {
+            if (mover == null) return;
+            try
+            {
+                mover.quit(primaryE);
+            }
+            catch (Exception e)
+            {
+                if (primaryE == null) logger.report("DSMR: Error closing FileMover", e);
+            }
+            mover = null;
+        }
+
+        private void closeDSM()
+        {
+            if (dsm == null) return;
+            try { dsm.dispose(); }
+            catch (Exception e) {}
+            dsm = null;
+        }
     }
 
     /**
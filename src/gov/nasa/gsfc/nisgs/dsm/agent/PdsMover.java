@@ -203,6 +203,7 @@ public class PdsMover
 			for (int n = 0; n < pdsFiles.length; n++)
 			{
 				PDS pds = new PDS(MYNAME,pdsFiles[n],dsm);
+				java.util.List<File[]> renamed = new java.util.ArrayList<File[]>();
 				try
 				{
 					if (pds.getFault() != null)
@@ -228,10 +229,14 @@ public class PdsMover
 						Product product = pds.createProduct(remoteDirectory);
 						logger.report("Send to IS "+product);
 						// ftp.sendPDS(pds,remoteDirectory);
-						fm.moveFile(pds.getDataFile(),
-								new File(remoteDirectory, pds.getDataFile().getName()));
-						fm.moveFile(pds.getRecordFile(),
-								new File(remoteDirectory, pds.getRecordFile().getName()));
+						// pds.delete() below cleans up whatever was copied
+						// rather than renamed
+						relocate(fm, pds.getDataFile(),
+								new File(remoteDirectory, pds.getDataFile().getName()),
+								renamed);
+						relocate(fm, pds.getRecordFile(),
+								new File(remoteDirectory, pds.getRecordFile().getName()),
+								renamed);
 
 						dsm.storeProduct(toSite, product);
 					}
@@ -240,6 +245,9 @@ public class PdsMover
 				{
 					failed = true;
 					logger.report("PdsMover Error", pe);
+					// Nothing was registered, so take back what went into
+					// the IS, before it is quarantined or deleted below
+					putBack(renamed);
 
 					if (consecutiveFailures > errorLimit && pds != null)
 					{
@@ -263,4 +271,34 @@ public class PdsMover
 			}
 		}
 	}
+
+	/**
+	 * FileMover.relocateFile(), noting a file that was renamed into the IS
+	 * rather than copied, so that putBack() can undo it.
+	 */
+	private static void relocate(FileMover fm, File from, File to,
+			java.util.List<File[]> renamed) throws Exception
+	{
+		fm.relocateFile(from, to);
+		File source = fm.makeAbsoluteLocal(from);
+		if (!source.exists())
+		{
+			renamed.add(new File[] {source, fm.makeAbsoluteLocal(to)});
+		}
+	}
+
+	/**
+	 * Move renamed files back to where they came from.
+	 */
+	private void putBack(java.util.List<File[]> renamed)
+	{
+		for (File[] r : renamed)
+		{
+			if (!r[1].renameTo(r[0]))
+			{
+				logger.report("PdsMover could not move " + r[1] + " back to " + r[0]);
+			}
+		}
+		renamed.clear();
+	}
 }
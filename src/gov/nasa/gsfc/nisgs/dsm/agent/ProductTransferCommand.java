@@ -4,7 +4,9 @@ the Administrator for The National Aeronautics and Space Administration.
 All rights reserved.
 */
 package gov.nasa.gsfc.nisgs.dsm.agent;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.io.File;
 import gov.nasa.gsfc.nisgs.dsm.*;
 import gov.nasa.gsfc.nisgs.dsm.FileMover;
@@ -17,7 +19,6 @@ class ProductTransferCommand extends TransferCommand
 {
     private String is_site;
     private Product product;
-    private FileMover fm = null;
 
     ProductTransferCommand(DsmProperties setup, DSMAdministrator dsm,
             String tableId, String commandId)
@@ -58,33 +59,53 @@ class ProductTransferCommand extends TransferCommand
     /**
      * Execute the transfer. Do not execute before you test.
      */
-    void execute() throws Exception
+    void execute(MoverSource movers) throws Exception
     {
         state = SUCCESS;
         Collection<Resource> resources = product.getResources();
-        fm = FileMover.newMover(is_site, dsm.getSite(), setup);
-	Exception primaryE = null;
+        List<Resource> fetch = new ArrayList<Resource>();
+        List<File> from = new ArrayList<File>();
+        List<File> to = new ArrayList<File>();
+        List<Boolean> faults = new ArrayList<Boolean>();
         try
         {
             for (Resource r : resources)
             {
-                fetchResource(r);
+                prepareResource(r, fetch, from, to, faults);
             }
+            if (fetch.isEmpty()) return;
+
+            //All the missing files come over together.
+            Exception[] moved = movers.getMover().moveFiles(from, to);
+            Exception failure = null;
+            for (int i = 0; i < moved.length; i++)
+            {
+                if (moved[i] != null)
+                {
+                    if (failure == null) failure = moved[i];
+                }
+                else if (!faults.get(i).booleanValue())
+                {
+                    //if fault is true, the db already thinks it's local.
+                    final boolean doCommit = true;
+                    dsm.insertResourceSiteUpdate(dsm.getSite(),to.get(i).getParent(),
+                            fetch.get(i).getId(),doCommit);
+                }
+            }
+            if (failure != null) throw failure;
         }
         catch (Exception e)
         {
             state = FAILURE;
-	    primaryE = e;
             throw e;
         }
-        finally
-        {
-            if (fm != null)
-		    fm.quit(primaryE);
-        }
     }
 
-    private void fetchResource(Resource r) throws Exception
+    /**
+     * Find out whether a resource must be fetched, and if so from where to where.
+     */
+    private void prepareResource(Resource r, List<Resource> fetch, List<File> from,
+            List<File> to, List<Boolean> faults) throws Exception
     {
         boolean fault = false;
         File localFile = r.getFile();
@@ -108,14 +129,10 @@ class ProductTransferCommand extends TransferCommand
             {
                 localFile = new File(localDataDirectory,r.getName());
             }
-            fm.moveFile(remoteFile, localFile.getAbsoluteFile());
-            if (!fault)
-            {
-                //if fault is true, the db already thinks it's local.
-                final boolean doCommit = true;
-                dsm.insertResourceSiteUpdate(dsm.getSite(),localFile.getParent(),
-                        r.getId(),doCommit);
-            }
+            fetch.add(r);
+            from.add(remoteFile);
+            to.add(localFile.getAbsoluteFile());
+            faults.add(Boolean.valueOf(fault));
         }
     }
 }
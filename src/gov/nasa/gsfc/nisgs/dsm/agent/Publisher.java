@@ -13,6 +13,7 @@ import gov.nasa.gsfc.nisgs.properties.Utility;
  * Publisher sends resources to the IS computer.
  * @version 3.18 Added "published" database field to Resource and Ancillaries.
  *      Made sleep time a -D field. Added ancillary publishing.
+ * @version 3.23 Each pass sends all its files with one FileMover.moveFiles().
  */
 public class Publisher
 {
@@ -107,9 +108,11 @@ public class Publisher
             if (!resources.isEmpty() || !ancillaries.isEmpty()) {
                 final boolean passive = true;
                 fm = FileMover.newMover(config.getSite(), is_site, config);
+                java.util.List<PFR> items = new java.util.ArrayList<PFR>();
                 for (PResource pr : resources) {
 		    try {
-			publishResource(pr, dsm, fm);
+			prepareResource(pr, dsm, fm);
+			items.add(pr);
 		    }
 		    catch (Exception e) {
 			logger.report("Resource publisher error", e);
@@ -117,12 +120,37 @@ public class Publisher
                 }
                 for (Ancillary a : ancillaries) {
 		    try {
-			publishAncillary(a, dsm, fm);
+			prepareAncillary(a, dsm, fm);
+			items.add(a);
 		    }
 		    catch (Exception e) {
 			logger.report("Ancillary publisher error", e);
 		    }
                 }
+
+		// Send them all at once, then record the ones that went
+		java.util.List<File> from = new java.util.ArrayList<File>(items.size());
+		java.util.List<File> to = new java.util.ArrayList<File>(items.size());
+		for (PFR item : items) {
+		    from.add(item.file);
+		    to.add(new File(item.remoteDirectory, item.file.getName()));
+		}
+		Exception[] moved = fm.moveFiles(from, to);
+		for (int i = 0; i < moved.length; i++) {
+		    PFR item = items.get(i);
+		    String what = (item instanceof PResource)? "Resource" : "Ancillary";
+		    try {
+			if (moved[i] != null)
+			    throw moved[i];
+			if (item instanceof PResource)
+			    publishedResource((PResource)item, dsm);
+			else
+			    publishedAncillary((Ancillary)item, dsm);
+		    }
+		    catch (Exception e) {
+			logger.report(what + " publisher error", e);
+		    }
+		}
             }
         }
         catch (Exception e)
@@ -167,7 +195,10 @@ public class Publisher
         return list;
     }
 
-    private void publishResource(PResource pr, DSMAdministrator dsm, FileMover fm)
+    /**
+     * Check that a resource can be sent, and decide where it goes.
+     */
+    private void prepareResource(PResource pr, DSMAdministrator dsm, FileMover fm)
             throws Exception
     {
         File remoteDirectory = is_dropbox;
@@ -188,10 +219,17 @@ public class Publisher
 	}
 	// Errors from here on might be temporary, so don't mark the database
 	// unless we succeed
-	fm.moveFile(pr.file,
-		    new File(remoteDirectory, pr.file.getName()));
+	pr.remoteDirectory = remoteDirectory;
+    }
+
+    /**
+     * Record a resource that is now on the IS.
+     */
+    private void publishedResource(PResource pr, DSMAdministrator dsm)
+            throws Exception
+    {
 	final boolean doCommit = false;
-	dsm.insertResourceSiteUpdate(is_site,remoteDirectory.getPath(),
+	dsm.insertResourceSiteUpdate(is_site,pr.remoteDirectory.getPath(),
 				     pr.resourceId,doCommit);
 	dsm.update("UPDATE Resources SET published=1 WHERE id=" + pr.resourceId);
 	dsm.commit();
@@ -247,7 +285,10 @@ public class Publisher
         }
     }
 
-    private void publishAncillary(Ancillary a, DSMAdministrator dsm, FileMover fm)
+    /**
+     * Check that an ancillary can be sent, and decide where it goes.
+     */
+    private void prepareAncillary(Ancillary a, DSMAdministrator dsm, FileMover fm)
             throws Exception
     {
         File remoteDirectory = is_dropbox;
@@ -263,10 +304,17 @@ public class Publisher
 	}
 	// Errors from here on might be temporary, so don't mark the database
 	// unless we succeed
-	fm.moveFile(a.file,
-		    new File(remoteDirectory, a.file.getName()));
+	a.remoteDirectory = remoteDirectory;
+    }
+
+    /**
+     * Record an ancillary that is now on the IS.
+     */
+    private void publishedAncillary(Ancillary a, DSMAdministrator dsm)
+            throws Exception
+    {
 	final boolean doCommit = false;
-	dsm.insertAncillarySiteUpdate(a.siteTable,is_site,remoteDirectory.getPath(),
+	dsm.insertAncillarySiteUpdate(a.siteTable,is_site,a.remoteDirectory.getPath(),
 				      a.id,doCommit);
 	dsm.update("UPDATE " + a.table + " SET published=1 WHERE id=" + a.id);
 	dsm.commit();
@@ -278,6 +326,7 @@ public class Publisher
     private class PFR
     {
 	File file;
+	File remoteDirectory;
     }
 
     private class PResource extends PFR
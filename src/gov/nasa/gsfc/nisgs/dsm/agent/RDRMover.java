@@ -76,28 +76,13 @@ public  class RDRMover extends Mover {
 
 	@Override
 	public void dataFileMover(FileMover fileMover, File from, File to) throws MoverException {
-	    // Internal performance enhancement hack:
-	    // If our fileMover is a CopyMover, we will short-circuit the copy
-	    // and try to just do File.renameTo().  If it works, we're good
-	    // since the rest of SDRmover will do the "delete" which will succeed
-	    // since the file won't be there...
-	    if(fileMover instanceof CopyMover) {
-		try {
-		    from = fileMover.makeAbsoluteLocal(from);
-		    to = fileMover.makeAbsoluteLocal(to);
-		    if (!from.renameTo(to))
-			throw new MoverException("RDRMover: renaming " + from + " to " + to + " failed");
-		}
-		catch (Exception e) {
-		    throw new MoverException(e);
-		}
-	    }
-	    else {
-		try {
-		    fileMover.moveFile(from, to);
-		} catch (Exception e) {
-		    throw new MoverException(e);
-		}
+	    // relocateFile() renames rather than copies when it can (the
+	    // incoming and IS directories on one file system); the rest of
+	    // Mover does the "delete", which is harmless if the file is gone
+	    try {
+		fileMover.relocateFile(from, to);
+	    } catch (Exception e) {
+		throw new MoverException(e);
 	    }
 	}
 
@@ -6,10 +6,13 @@ All rights reserved.
 package gov.nasa.gsfc.nisgs.dsm.agent;
 import gov.nasa.gsfc.nisgs.dsm.DSMAdministrator;
 import gov.nasa.gsfc.nisgs.dsm.DsmProperties;
+import gov.nasa.gsfc.nisgs.dsm.FileMover;
 
 /**
  * TransferCommand is an abstract class that copies a product or a file from the
  * IS to the local computer. DSMR uses it.
+ * @version 3.23 DSMR runs commands on worker threads. A command uses the
+ *      worker's DSMAdministrator and FileMover session.
  */
 abstract class TransferCommand
 {
@@ -66,6 +69,30 @@ abstract class TransferCommand
         return id;
     }
 
+    final String getTable()
+    {
+        return table;
+    }
+
+    /**
+     * Use this DSMAdministrator from now on. A command is made on the
+     * thread that lists the commands but tested and executed on a worker,
+     * which has its own.
+     */
+    final void setDSM(DSMAdministrator dsm)
+    {
+        this.dsm = dsm;
+    }
+
+    /**
+     * Where execute() gets its FileMover. Each DSMR worker keeps one open
+     * across transfers and closes it itself.
+     */
+    interface MoverSource
+    {
+        FileMover getMover() throws Exception;
+    }
+
     public boolean equals(Object o)
     {
         boolean match = false;
@@ -77,6 +104,14 @@ abstract class TransferCommand
         return match;
     }
 
+    /**
+     * Commands for the same item hash alike, so DSMR can group them.
+     */
+    public int hashCode()
+    {
+        return table.hashCode() * 31 + tableId.hashCode();
+    }
+
     /**
      * Determine if the thing is present on the IS.
      */
@@ -84,8 +119,9 @@ abstract class TransferCommand
 
     /**
      * Execute the transfer. Do not execute before you test.
+     * Do not quit the mover; its owner does that.
      */
-    abstract void execute() throws Exception;
+    abstract void execute(MoverSource movers) throws Exception;
 
     /**
      * Get a string representation of the thing to be copied.
@@ -0,0 +1,154 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm.test;
+import com.enterprisedt.net.ftp.*;
+import gov.nasa.gsfc.nisgs.dsm.DsmProperties;
+import gov.nasa.gsfc.nisgs.dsm.FileMover;
+import gov.nasa.gsfc.nisgs.dsm.FtpSessionPool;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FtpBenchmark times sending small files to the IS three ways: a fresh FTP
+ * login per file (what every FileMover used to do), one pooled FileMover
+ * with moveFile() per file, and FileMover.moveFiles() over parallel
+ * sessions. It writes to the IS_Host, IS_ftpWriterUser and
+ * IS_ftpWriterPassword of the DSM properties, so point those at a local
+ * stand-in FTP server (vsftpd, or "python -m pyftpdlib -w") rather than a
+ * real IS. FileMover copies instead of using FTP when the IS host name is
+ * this site's host name, so give the stand-in a different name for the same
+ * machine (127.0.0.1 rather than localhost, say). The remote directory must
+ * exist and is left holding the files.
+ * <p>
+ * Usage: FtpBenchmark [fileCount [fileKB [remoteDirectory]]]
+ * <br>
+ * Use -Ddsm.ftp.streams=N to change the number of parallel sessions.
+ */
+public class FtpBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int count = (args.length > 0)? Integer.parseInt(args[0]) : 100;
+        int kb = (args.length > 1)? Integer.parseInt(args[1]) : 16;
+        String remote = (args.length > 2)? args[2] : "/benchmark";
+
+        DsmProperties dsmp = new DsmProperties();
+        File local = new File(System.getProperty("java.io.tmpdir"), "FtpBenchmark");
+        List<File> from = makeFiles(local, count, kb);
+        List<File> to = new ArrayList<File>(count);
+        for (File f : from)
+        {
+            to.add(new File(remote, f.getName()));
+        }
+        System.out.println("Sending " + count + " files of " + kb + " KB to "
+                           + dsmp.getIS_Host() + ":" + remote);
+
+        try
+        {
+            long t0 = System.nanoTime();
+            loginPerFile(dsmp, from, to);
+            long t1 = System.nanoTime();
+            report("login per file", t1 - t0, count);
+
+            FileMover fm = FileMover.newMover(dsmp.getSite(), dsmp.getIS_Site(), dsmp);
+            t0 = System.nanoTime();
+            for (int i = 0; i < count; i++)
+            {
+                fm.moveFile(from.get(i), to.get(i));
+            }
+            t1 = System.nanoTime();
+            report("pooled moveFile", t1 - t0, count);
+
+            t0 = System.nanoTime();
+            Exception[] result = fm.moveFiles(from, to);
+            t1 = System.nanoTime();
+            fm.quit();
+            report("moveFiles", t1 - t0, count);
+            int failed = 0;
+            for (Exception e : result)
+            {
+                if (e != null) failed++;
+            }
+            if (failed > 0)
+            {
+                System.out.println(failed + " moveFiles transfers failed, first: "
+                                   + firstFailure(result));
+            }
+            System.out.println("FtpSessionPool: " + FtpSessionPool.getStatistics());
+        }
+        finally
+        {
+            for (File f : from)
+            {
+                f.delete();
+            }
+            local.delete();
+            FtpSessionPool.clear();
+            dsmp.dispose();
+        }
+    }
+
+    private static void loginPerFile(DsmProperties dsmp, List<File> from, List<File> to)
+            throws Exception
+    {
+        for (int i = 0; i < from.size(); i++)
+        {
+            FTPClient ftp = new FTPClient();
+            ftp.setRemoteHost(dsmp.getIS_Host());
+            ftp.connect();
+            ftp.login(dsmp.getProperty("IS_ftpWriterUser"),
+                      dsmp.getProperty("IS_ftpWriterPassword"));
+            ftp.setType(FTPTransferType.BINARY);
+            ftp.setConnectMode(FTPConnectMode.PASV);
+            ftp.chdir(to.get(i).getParent());
+            ftp.put(from.get(i).getPath(), to.get(i).getName());
+            ftp.quit();
+        }
+    }
+
+    private static List<File> makeFiles(File dir, int count, int kb) throws Exception
+    {
+        dir.mkdirs();
+        byte[] data = new byte[kb * 1024];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (byte)i;
+        }
+        List<File> files = new ArrayList<File>(count);
+        for (int i = 0; i < count; i++)
+        {
+            File f = new File(dir, "file" + i + ".dat");
+            FileOutputStream out = new FileOutputStream(f);
+            try
+            {
+                out.write(data);
+            }
+            finally
+            {
+                out.close();
+            }
+            files.add(f);
+        }
+        return files;
+    }
+
+    private static Exception firstFailure(Exception[] result)
+    {
+        for (Exception e : result)
+        {
+            if (e != null) return e;
+        }
+        return null;
+    }
+
+    private static void report(String what, long nanos, int files)
+    {
+        System.out.println(what + ": " + (nanos / 1000000L) + " ms, "
+                           + (nanos / 1000L / files) + " us per file");
+    }
+}
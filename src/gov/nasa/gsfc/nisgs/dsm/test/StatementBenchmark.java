@@ -0,0 +1,218 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm.test;
+import gov.nasa.gsfc.nisgs.dsm.DSMAdministrator;
+import gov.nasa.gsfc.nisgs.dsm.DsmProperties;
+import gov.nasa.gsfc.nisgs.dsm.StatementCache;
+import gov.nasa.gsfc.nisgs.properties.Utility;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * StatementBenchmark times the queries that make a Product, sent as new
+ * SQL text each time (the way ProductFactory used to) and as re-executed
+ * PreparedStatements (the way StatementCache does it), on the most recent
+ * products in the database. It then times DSM.getProduct() itself.
+ * It only reads.
+ * <p>
+ * Usage: StatementBenchmark [productCount [rounds]]
+ * <br>
+ * Add useServerPrepStmts=true to the JDBC URL to see the server-side
+ * parse savings as well.
+ */
+public class StatementBenchmark
+{
+    // The makeProduct sub-loads, with ? where the product or resource ID goes
+    private static final String[] LOADS = {
+        "SELECT * FROM Products WHERE id=?",
+        "SELECT * FROM Resources WHERE product=?",
+        "SELECT Thumbnails.path,Thumbnails.description FROM Thumbnails,ProductThumbnails WHERE ProductThumbnails.product=? AND Thumbnails.id=ProductThumbnails.thumbnail",
+        "SELECT ancestor FROM Ancestors WHERE product=?",
+        "SELECT Contributors.path,Contributors.description FROM Contributors,ProductContributors WHERE ProductContributors.product=? AND Contributors.id=ProductContributors.contributor",
+    };
+    private static final String LOCATIONS =
+        "SELECT ResourceSites.site,ResourceSites.creation,Directories.path " +
+        "FROM ResourceSites,Directories WHERE ResourceSites.resource=? " +
+        "AND ResourceSites.directory=Directories.id";
+
+    private DsmProperties config;
+    private Connection connection;
+
+    public static void main(String[] args) throws Exception
+    {
+        int count = (args.length > 0)? Integer.parseInt(args[0]) : 200;
+        int rounds = (args.length > 1)? Integer.parseInt(args[1]) : 5;
+
+        StatementBenchmark sb = new StatementBenchmark();
+        try
+            {
+                sb.run(count, rounds);
+            }
+        catch (Exception re)
+            {
+                System.err.println("StatementBenchmark error:");
+                re.printStackTrace();
+            }
+        finally
+            {
+                sb.config.dispose();
+            }
+    }
+
+    StatementBenchmark() throws Exception
+    {
+        config = new DsmProperties();
+        config.initializeConnection();
+        connection = config.getConnection();
+    }
+
+    void run(int count, int rounds) throws Exception
+    {
+        List<String> ids = recentProducts(count);
+        if (ids.isEmpty())
+        {
+            System.out.println("No products to read");
+            return;
+        }
+        System.out.println("Reading " + ids.size() + " products, " + rounds + " rounds");
+
+        // One untimed pass of each to warm the buffer pool and the JIT
+        literal(ids);
+        prepared(ids);
+
+        long literalTime = 0L;
+        long preparedTime = 0L;
+        for (int i = 0; i < rounds; i++)
+        {
+            long t0 = System.nanoTime();
+            literal(ids);
+            long t1 = System.nanoTime();
+            prepared(ids);
+            long t2 = System.nanoTime();
+            literalTime += t1 - t0;
+            preparedTime += t2 - t1;
+        }
+        report("literal SQL", literalTime, ids.size() * rounds);
+        report("prepared", preparedTime, ids.size() * rounds);
+
+        DSMAdministrator dsm = new DSMAdministrator("StatementBenchmark","StatementBenchmark");
+        try
+        {
+            for (String id : ids) dsm.getProduct(id);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+            {
+                for (String id : ids) dsm.getProduct(id);
+            }
+            report("DSM.getProduct", System.nanoTime() - t0, ids.size() * rounds);
+        }
+        finally
+        {
+            dsm.dispose();
+        }
+        System.out.println("StatementCache: " + StatementCache.getStatistics());
+    }
+
+    private List<String> recentProducts(int count) throws SQLException
+    {
+        List<String> ids = new ArrayList<String>();
+        Statement s = connection.createStatement();
+        try
+        {
+            ResultSet r = Utility.executeQuery(s,
+                    "SELECT id FROM Products ORDER BY id DESC LIMIT " + count);
+            while (r.next())
+            {
+                ids.add(r.getString(1));
+            }
+        }
+        finally
+        {
+            s.close();
+        }
+        Utility.commitConnection(connection);
+        return ids;
+    }
+
+    /**
+     * The old way: a Statement and fresh SQL text for each query.
+     */
+    private void literal(List<String> ids) throws SQLException
+    {
+        for (String id : ids)
+        {
+            for (String sql : LOADS)
+            {
+                Statement s = connection.createStatement();
+                ResultSet r = Utility.executeQuery(s, sql.replace("?", id));
+                boolean resources = sql.startsWith("SELECT * FROM Resources");
+                while (r.next())
+                {
+                    if (resources)
+                    {
+                        Statement ls = connection.createStatement();
+                        drain(Utility.executeQuery(ls, LOCATIONS.replace("?", r.getString("id"))));
+                        ls.close();
+                    }
+                }
+                s.close();
+            }
+        }
+        Utility.commitConnection(connection);
+    }
+
+    /**
+     * The new way: prepare once, bind and execute for each product.
+     */
+    private void prepared(List<String> ids) throws SQLException
+    {
+        PreparedStatement[] loads = new PreparedStatement[LOADS.length];
+        for (int i = 0; i < LOADS.length; i++)
+        {
+            loads[i] = connection.prepareStatement(LOADS[i]);
+        }
+        PreparedStatement locations = connection.prepareStatement(LOCATIONS);
+        try
+        {
+            for (String id : ids)
+            {
+                for (int i = 0; i < loads.length; i++)
+                {
+                    loads[i].setString(1, id);
+                    ResultSet r = loads[i].executeQuery();
+                    while (r.next())
+                    {
+                        if (i == 1)
+                        {
+                            locations.setString(1, r.getString("id"));
+                            drain(locations.executeQuery());
+                        }
+                    }
+                    r.close();
+                }
+            }
+        }
+        finally
+        {
+            for (PreparedStatement ps : loads) ps.close();
+            locations.close();
+        }
+        Utility.commitConnection(connection);
+    }
+
+    private static void drain(ResultSet r) throws SQLException
+    {
+        while (r.next()) r.getString(1);
+        r.close();
+    }
+
+    private static void report(String what, long nanos, int products)
+    {
+        System.out.println(what + ": " + (nanos / 1000000L) + " ms, "
+                           + (nanos / 1000L / products) + " us per product");
+    }
+}
@@ -0,0 +1,144 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.nisgs.dsm.test;
+import gov.nasa.gsfc.nisgs.dsm.DSMAdministrator;
+import gov.nasa.gsfc.nisgs.dsm.Pass;
+import gov.nasa.gsfc.nisgs.dsm.Product;
+import gov.nasa.gsfc.nisgs.dsm.ProductFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * StoreBenchmark times storing products one at a time with storeProduct()
+ * against storing them all at once with storeProducts(). It makes a
+ * scratch pass and products of type "benchmark.store" with two resources
+ * and one ancestor each, and removes them all when it is done. The
+ * resource files do not need to exist.
+ * <p>
+ * Usage: StoreBenchmark [productCount [rounds]]
+ * <br>
+ * Add rewriteBatchedStatements=true to the JDBC URL to see multi-row
+ * inserts as well.
+ */
+public class StoreBenchmark
+{
+    private static final String TYPE = "benchmark.store";
+
+    private DSMAdministrator dsm;
+    private Pass pass;
+    private Product root;
+    private List<String> stored = new ArrayList<String>();
+    private int serial = 0;
+
+    public static void main(String[] args) throws Exception
+    {
+        int count = (args.length > 0)? Integer.parseInt(args[0]) : 500;
+        int rounds = (args.length > 1)? Integer.parseInt(args[1]) : 3;
+
+        StoreBenchmark sb = new StoreBenchmark();
+        try
+            {
+                sb.run(count, rounds);
+            }
+        catch (Exception re)
+            {
+                System.err.println("StoreBenchmark error:");
+                re.printStackTrace();
+            }
+        finally
+            {
+                sb.cleanup();
+            }
+    }
+
+    StoreBenchmark() throws Exception
+    {
+        dsm = new DSMAdministrator("StoreBenchmark","StoreBenchmark");
+        long now = System.currentTimeMillis();
+        pass = new Pass("BENCHMARK","BENCHMARK",new Date(now - 600000L),new Date(now));
+        dsm.createPass(pass);
+        root = makeProduct();
+        dsm.storeProduct(root);
+        stored.add(root.getId());
+    }
+
+    void run(int count, int rounds) throws Exception
+    {
+        System.out.println("Storing " + count + " products, " + rounds + " rounds");
+
+        // One untimed round of each to warm up
+        single(count);
+        batch(count);
+
+        long singleTime = 0L;
+        long batchTime = 0L;
+        for (int i = 0; i < rounds; i++)
+        {
+            long t0 = System.nanoTime();
+            single(count);
+            long t1 = System.nanoTime();
+            batch(count);
+            long t2 = System.nanoTime();
+            singleTime += t1 - t0;
+            batchTime += t2 - t1;
+        }
+        report("storeProduct", singleTime, count * rounds);
+        report("storeProducts", batchTime, count * rounds);
+    }
+
+    private void single(int count) throws Exception
+    {
+        for (int i = 0; i < count; i++)
+        {
+            Product p = makeProduct();
+            stored.add(dsm.storeProduct(p));
+        }
+    }
+
+    private void batch(int count) throws Exception
+    {
+        List<Product> products = new ArrayList<Product>(count);
+        for (int i = 0; i < count; i++)
+        {
+            products.add(makeProduct());
+        }
+        stored.addAll(dsm.storeProducts(products));
+    }
+
+    private Product makeProduct() throws Exception
+    {
+        int n = ++serial;
+        Product p = new Product(pass.getAos(),pass.getLos(),"StoreBenchmark",TYPE,pass);
+        p.addResource("DATA","/tmp/StoreBenchmark/data" + n + ".dat");
+        p.addResource("HEADER","/tmp/StoreBenchmark/data" + n + ".hdr");
+        if (root != null) p.addContributingProduct(root);
+        return p;
+    }
+
+    void cleanup()
+    {
+        try
+        {
+            // Removing the root removes its descendants and the pass
+            ProductFactory.removeProducts(dsm.getConnection(),stored);
+            System.out.println("Removed " + stored.size() + " products");
+        }
+        catch (Exception e)
+        {
+            System.err.println("StoreBenchmark cleanup error:");
+            e.printStackTrace();
+        }
+        try { dsm.dispose(); }
+        catch (Exception e) {}
+    }
+
+    private static void report(String what, long nanos, int products)
+    {
+        System.out.println(what + ": " + (nanos / 1000000L) + " ms, "
+                           + (nanos / 1000L / products) + " us per product");
+    }
+}